@@ -28,6 +28,8 @@ public interface Connection extends AutoCloseable{
   
   KeyValueStore getKeyValueStore();
   
+  RangeAdmin getRangeAdmin();
+  
   @Override
   void close();
 }
@@ -21,8 +21,13 @@
 package com.chicm.cmraft;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.math.RandomUtils;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,10 +36,14 @@ import com.chicm.cmraft.common.CmRaftConfiguration;
 import com.chicm.cmraft.common.Configuration;
 import com.chicm.cmraft.common.ServerInfo;
 import com.chicm.cmraft.core.ClusterMemberManager;
+import com.chicm.cmraft.core.RangeTable;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.DeleteRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.DeleteResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GetRangesRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GetRangesResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.GetRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.GetResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyRange;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyValuePair;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.ListRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.ListResponse;
@@ -42,6 +51,8 @@ import com.chicm.cmraft.protobuf.generated.RaftProtos.LookupLeaderRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.LookupLeaderResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.SetRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.SetResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.UpdateRangeRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.UpdateRangeResponse;
 import com.chicm.cmraft.rpc.RpcClient;
 import com.google.common.base.Preconditions;
 import com.google.protobuf.ByteString;
@@ -49,14 +60,35 @@ import com.google.protobuf.ServiceException;
 
 public class ConnectionManager {
   static final Log LOG = LogFactory.getLog(ConnectionManager.class);
+  private static final String READ_MAX_STALENESS_KEY = "raft.read.max.staleness.ms";
+  private static final String READ_MAX_LAG_KEY = "raft.read.max.lag.index";
+  /** Times a request is re-routed after the routing table is refreshed */
+  private static final int MAX_ROUTING_RETRIES = 3;
+  private static final int ROUTING_SYNC_TIMEOUT = 5000;
+  private static final int ROUTING_SYNC_INTERVAL = 50;
+  /** Time a write waits for the range of its key to finish moving */
+  private static final int MOVING_WAIT_TIMEOUT = 10000;
+  private Configuration conf;
+  private List<ServerInfo> servers;
+  /** Connections to servers other than remoteServer, for reads which do not need to 
+   *  go to leader, and for groups led by other servers */
+  private Map<ServerInfo, RpcClient> readClients = new ConcurrentHashMap<>();
   private RpcClient rpcClient;
   private ConnectionImpl userConnection;
   private KeyValueStore kvs;
+  private RangeAdmin rangeAdmin;
   private ServerInfo remoteServer;
+  /** Routing table cached from the meta group, refreshed when a server 
+   *  reports the key is owned by another group */
+  private volatile RangeTable rangeTable = new RangeTable();
+  /** Cached leaders of raft groups, dropped when a request to the leader fails */
+  private Map<Integer, ServerInfo> groupLeaders = new ConcurrentHashMap<>();
   
   private ConnectionManager(Configuration conf, Set<ServerInfo> servers) {
     Preconditions.checkNotNull(servers);
     Preconditions.checkArgument(!servers.isEmpty());
+    this.conf = conf;
+    this.servers = new ArrayList<>(servers);
     boolean connected = false;
     LOG.info("Raft servers:" + servers);
     for(ServerInfo server: servers) {
@@ -84,7 +116,7 @@ public class ConnectionManager {
     }
     
     connected = false;
-    ServerInfo leader = lookupLeader();
+    ServerInfo leader = lookupLeader(RangeTable.META_GROUP_ID);
     LOG.info("lookupLeader:" + leader);
     if(leader != null && !leader.equals(remoteServer)) {
       LOG.info("closing connection to " + remoteServer + ", connecting to " + leader);
@@ -112,8 +144,12 @@ public class ConnectionManager {
     }
     Preconditions.checkArgument(rpcClient.isConnected());
     
+    groupLeaders.put(RangeTable.META_GROUP_ID, remoteServer);
+    refreshRanges();
+    
     userConnection = new ConnectionImpl();
     kvs = new KeyValueStoreImpl();
+    rangeAdmin = new RangeAdminImpl();
   }
   
   public ServerInfo getRemoteServer() {
@@ -131,22 +167,168 @@ public class ConnectionManager {
   
   public void close() {
     rpcClient.close();
+    closeReadClients();
+  }
+  
+  private void closeReadClients() {
+    for(RpcClient client: readClients.values()) {
+      client.close();
+    }
+    readClients.clear();
+  }
+  
+  /**
+   * Pick a random server for reads which can be served by followers, 
+   * to spread read load across all servers. Falls back to leader if 
+   * the picked server could not be connected.
+   */
+  private RpcClient getReadClient() {
+    ServerInfo server = servers.get(RandomUtils.nextInt(servers.size()));
+    RpcClient client = getClient(server);
+    return client != null ? client : rpcClient;
+  }
+  
+  private RpcClient getClient(ServerInfo server) {
+    if(server.equals(remoteServer)) {
+      return rpcClient;
+    }
+    RpcClient client = readClients.get(server);
+    if(client != null && client.isConnected()) {
+      return client;
+    }
+    try {
+      client = new RpcClient(conf, server);
+      if(client.connect()) {
+        readClients.put(server, client);
+        return client;
+      }
+    } catch(Exception e) {
+      LOG.error("Failed connecting to:" + server, e);
+    }
+    return null;
   }
   
-  private ServerInfo lookupLeader() {
+  /**
+   * Every server hosts all groups, so the leader of a group is looked up 
+   * from the connected server.
+   */
+  private RpcClient getLeaderClient(int groupId) {
+    ServerInfo leader = groupLeaders.get(groupId);
+    if(leader == null) {
+      leader = lookupLeader(groupId);
+      if(leader == null) {
+        return null;
+      }
+      groupLeaders.put(groupId, leader);
+    }
+    return getClient(leader);
+  }
+  
+  private ServerInfo lookupLeader(int groupId) {
     LookupLeaderRequest.Builder builder = LookupLeaderRequest.newBuilder();
     try {
-      LookupLeaderResponse response = rpcClient.getStub().lookupLeader(null, builder.build());
+      LookupLeaderResponse response = rpcClient.getStub(groupId).lookupLeader(null, builder.build());
       if(response.getSuccess()) {
         return ServerInfo.copyFrom(response.getLeader());
       }
     } catch(Exception e) {
       LOG.error("lookupLeader failed:" + e.getMessage(), e);
     }
-    LOG.error("lookupLeader returned null");
+    LOG.error("lookupLeader returned null, group:" + groupId);
+    return null;
+  }
+  
+  private boolean refreshRanges() {
+    RpcClient client = getLeaderClient(RangeTable.META_GROUP_ID);
+    if(client == null) {
+      return false;
+    }
+    RangeTable table = getRanges(client);
+    if(table == null) {
+      groupLeaders.remove(RangeTable.META_GROUP_ID);
+      return false;
+    }
+    rangeTable = table;
+    LOG.debug("Routing table refreshed:" + table);
+    return true;
+  }
+  
+  private RangeTable getRanges(RpcClient client) {
+    GetRangesRequest.Builder builder = GetRangesRequest.newBuilder();
+    try {
+      GetRangesResponse response = client.getStub(RangeTable.META_GROUP_ID).getRanges(null, builder.build());
+      if(response != null && response.getSuccess()) {
+        return RangeTable.copyFrom(response.getRangesList());
+      }
+    } catch(Exception e) {
+      LOG.error("getRanges failed:" + e.getMessage());
+    }
+    return null;
+  }
+  
+  private SetResponse set(int groupId, KeyValuePair kv, boolean ignoreRange) throws Exception {
+    RpcClient client = getLeaderClient(groupId);
+    if(client == null) {
+      return null;
+    }
+    SetRequest.Builder builder = SetRequest.newBuilder();
+    builder.setKv(kv);
+    builder.setIgnoreRange(ignoreRange);
+    SetResponse response = client.getStub(groupId).set(null, builder.build());
+    if(response != null && !response.getSuccess() && !response.getWrongGroup() && !response.getMoving()) {
+      groupLeaders.remove(groupId);
+    }
+    return response;
+  }
+  
+  private DeleteResponse delete(int groupId, ByteString key, boolean ignoreRange) throws Exception {
+    RpcClient client = getLeaderClient(groupId);
+    if(client == null) {
+      return null;
+    }
+    DeleteRequest.Builder builder = DeleteRequest.newBuilder();
+    builder.setKey(key);
+    builder.setIgnoreRange(ignoreRange);
+    return client.getStub(groupId).delete(null, builder.build());
+  }
+  
+  private List<KeyValuePair> list(int groupId, byte[] pattern, boolean barrier) throws Exception {
+    RpcClient client = getLeaderClient(groupId);
+    if(client == null) {
+      return null;
+    }
+    ListRequest.Builder builder = ListRequest.newBuilder();
+    if(pattern != null) {
+      builder.setPattern(ByteString.copyFrom(pattern));
+    }
+    builder.setBarrier(barrier);
+    ListResponse response = client.getStub(groupId).list(null, builder.build());
+    if(response != null && response.getSuccess()) {
+      return response.getResultsList();
+    }
     return null;
   }
   
+  /**
+   * Writes of a moving range are rejected until the move is done, wait a while and 
+   * refresh the routing table before retrying.
+   * @return false if the deadline passed
+   */
+  private boolean waitForMove(long deadline) {
+    if(System.currentTimeMillis() > deadline) {
+      LOG.warn("Range still moving after " + MOVING_WAIT_TIMEOUT + "ms");
+      return false;
+    }
+    try {
+      Thread.sleep(ROUTING_SYNC_INTERVAL);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    refreshRanges();
+    return true;
+  }
+  
   private class ConnectionImpl implements Connection {
 
     @Override
@@ -154,9 +336,15 @@ public class ConnectionManager {
       return kvs;
     }
 
+    @Override
+    public RangeAdmin getRangeAdmin() {
+      return rangeAdmin;
+    }
+
     @Override
     public void close() {
       rpcClient.close();
+      closeReadClients();
     }
     
   }
@@ -175,15 +363,23 @@ public class ConnectionManager {
       kvBuilder.setKey(ByteString.copyFrom(key));
       kvBuilder.setValue(ByteString.copyFrom(value));
       
-      SetRequest.Builder builder = SetRequest.newBuilder();
-      builder.setKv(kvBuilder.build());
-      
-      try {
-        SetResponse response = rpcClient.getStub().set(null, builder.build());
-        if(response != null && response.getSuccess())
-          return true;
-      } catch(Exception e) {
-        LOG.error("set failed:" + e.getMessage());
+      long deadline = System.currentTimeMillis() + MOVING_WAIT_TIMEOUT;
+      int retries = 0;
+      while(true) {
+        try {
+          SetResponse response = ConnectionManager.this.set(rangeTable.getGroupId(key), kvBuilder.build(), false);
+          if(response != null && response.getSuccess())
+            return true;
+          if(response != null && response.getMoving()) {
+            if(!waitForMove(deadline))
+              break;
+          } else if(response == null || !response.getWrongGroup() || retries++ >= MAX_ROUTING_RETRIES 
+              || !refreshRanges()) 
+            break;
+        } catch(Exception e) {
+          LOG.error("set failed:" + e.getMessage());
+          break;
+        }
       }
       return false;
     }
@@ -198,30 +394,67 @@ public class ConnectionManager {
 
     @Override
     public byte[] get(byte[] key) {
+      return get(key, ReadConsistency.LINEARIZABLE);
+    }
+    
+    @Override
+    public byte[] get(byte[] key, ReadConsistency consistency) {
       Preconditions.checkNotNull(key);
+      Preconditions.checkNotNull(consistency);
       GetRequest.Builder builder = GetRequest.newBuilder();
       builder.setKey(ByteString.copyFrom(key));
+      builder.setConsistency(consistency.toProto());
       
-      try {
-        GetResponse response = rpcClient.getStub().get(null, builder.build());
-        if(response.getSuccess()) {
-          return response.getValue().toByteArray();
+      if(consistency == ReadConsistency.BOUNDED_STALENESS) {
+        int maxStaleness = conf.getInt(READ_MAX_STALENESS_KEY, -1);
+        int maxLag = conf.getInt(READ_MAX_LAG_KEY, -1);
+        if(maxStaleness >= 0) {
+          builder.setMaxStalenessMs(maxStaleness);
+        }
+        if(maxLag >= 0) {
+          builder.setMaxLagIndex(maxLag);
+        }
+      }
+      
+      for(int i = 0; i <= MAX_ROUTING_RETRIES; i++) {
+        int groupId = rangeTable.getReadGroupId(key);
+        RpcClient client;
+        if(consistency != ReadConsistency.LINEARIZABLE) {
+          client = getReadClient();
         } else {
+          client = getLeaderClient(groupId);
+        }
+        if(client == null) {
+          return null;
+        }
+        try {
+          GetResponse response = client.getStub(groupId).get(null, builder.build());
+          if(response.getSuccess()) {
+            return response.getValue().toByteArray();
+          } else if(!response.getWrongGroup() || !refreshRanges()) {
+            return null;
+          }
+        } catch (ServiceException e) {
+          LOG.error("Get exception,", e);
+          return null;
+        } catch (Exception e) {
+          LOG.error("Get exception,", e);
           return null;
         }
-      } catch (ServiceException e) {
-        LOG.error("Get exception,", e);
-      } catch (Exception e) {
-        LOG.error("Get exception,", e);
       }
       return null;
     }
 
     @Override
     public String get(String key) {
+      return get(key, ReadConsistency.LINEARIZABLE);
+    }
+    
+    @Override
+    public String get(String key, ReadConsistency consistency) {
       Preconditions.checkNotNull(key);
       Preconditions.checkArgument(!key.isEmpty());
-      byte[] result = get(key.getBytes());
+      byte[] result = get(key.getBytes(), consistency);
       
       return result==null ? null : new String(result) ;
     }
@@ -231,18 +464,31 @@ public class ConnectionManager {
       Preconditions.checkNotNull(key);
       Preconditions.checkArgument(key.length > 0);
       
-      DeleteRequest.Builder builder = DeleteRequest.newBuilder();
-      builder.setKey(ByteString.copyFrom(key));
-      
-      try {
-        DeleteResponse response = rpcClient.getStub().delete(null, builder.build());
-        return response.getSuccess();
-      } catch (ServiceException e) {
-        LOG.error("Delete exception,", e);
-      } catch (Exception e) {
-        LOG.error("Delete exception,", e);
+      long deadline = System.currentTimeMillis() + MOVING_WAIT_TIMEOUT;
+      int retries = 0;
+      while(true) {
+        try {
+          DeleteResponse response = ConnectionManager.this.delete(rangeTable.getGroupId(key), 
+            ByteString.copyFrom(key), false);
+          if(response == null) {
+            return false;
+          } else if(response.getSuccess()) {
+            return true;
+          } else if(response.getMoving()) {
+            if(!waitForMove(deadline)) {
+              return false;
+            }
+          } else if(!response.getWrongGroup() || retries++ >= MAX_ROUTING_RETRIES || !refreshRanges()) {
+            return false;
+          }
+        } catch (ServiceException e) {
+          LOG.error("Delete exception,", e);
+          return false;
+        } catch (Exception e) {
+          LOG.error("Delete exception,", e);
+          return false;
+        }
       }
-      return false;
     }
 
     @Override
@@ -252,22 +498,24 @@ public class ConnectionManager {
 
     @Override
     public List<KeyValue> list(byte[] pattern) {
-      ListRequest.Builder builder = ListRequest.newBuilder();
-      if(pattern != null) {
-        builder.setPattern(ByteString.copyFrom(pattern));
-      }
       List<KeyValue> result = new ArrayList<>();
+      RangeTable table = rangeTable;
       
-      try {
-        ListResponse response = rpcClient.getStub().list(null, builder.build());
-        if(response != null && response.getSuccess()) {
-          for(KeyValuePair kvp: response.getResultsList()) {
-            KeyValue kv = KeyValue.copyFrom(kvp);
-            result.add(kv);
+      for(int groupId: table.getGroupIds()) {
+        try {
+          List<KeyValuePair> kvps = ConnectionManager.this.list(groupId, pattern, false);
+          if(kvps == null) {
+            continue;
+          }
+          for(KeyValuePair kvp: kvps) {
+            // skip keys copied to, or left in, a group not serving reads of their range
+            if(table.getReadGroupId(kvp.getKey()) == groupId) {
+              result.add(KeyValue.copyFrom(kvp));
+            }
           }
+        } catch(Exception e) {
+          LOG.error("list failed:" + e.getMessage());
         }
-      } catch(Exception e) {
-        LOG.error("list failed:" + e.getMessage());
       }
       return result;
     }
@@ -280,5 +528,256 @@ public class ConnectionManager {
         return list("".getBytes());
     }
   }
-}
+  
+  /**
+   * Moves the keys of a range between groups as transitions of the replicated range table:
+   * the range is fenced first, routed to the target group with writes rejected and reads 
+   * served by the source group. Once all servers fence it, the keys are copied, then the 
+   * range is routed to the target group without the fence, and the keys are deleted from 
+   * the source group. A move failed after fencing leaves the range fenced, and is resumed 
+   * by splitting or merging the range again, one range moves at a time.
+   */
+  private class RangeAdminImpl implements RangeAdmin {
+
+    @Override
+    public boolean split(byte[] splitKey, int groupId) {
+      Preconditions.checkNotNull(splitKey);
+      Preconditions.checkArgument(groupId >= 0);
+      if(!refreshRanges()) {
+        return false;
+      }
+      ByteString start = ByteString.copyFrom(splitKey);
+      RangeTable table = rangeTable;
+      if(isMoving(table, start)) {
+        return false;
+      }
+      if(table.isMoving(start)) {
+        if(table.getGroupId(start) != groupId) {
+          LOG.error("split failed, range is moving to group " + table.getGroupId(start));
+          return false;
+        }
+        LOG.info("resuming move of range " + start.toStringUtf8() + " to group " + groupId);
+        return moveKeys(start, table.getMovingFrom(start), groupId, range(start, groupId), false);
+      }
+      int source = table.getGroupId(start);
+      if(source == groupId) {
+        return updateRange(range(start, groupId), false);
+      }
+      if(!fence(table, start, source, groupId)) {
+        return false;
+      }
+      return moveKeys(start, source, groupId, range(start, groupId), false);
+    }
 
+    @Override
+    public boolean merge(byte[] startKey) {
+      Preconditions.checkNotNull(startKey);
+      if(!refreshRanges()) {
+        return false;
+      }
+      ByteString start = ByteString.copyFrom(startKey);
+      RangeTable table = rangeTable;
+      if(!table.containsStartKey(start)) {
+        LOG.error("merge failed, no range starts at:" + start.toStringUtf8());
+        return false;
+      }
+      if(isMoving(table, start)) {
+        return false;
+      }
+      int target = table.getPrecedingGroupId(start);
+      if(table.isMoving(start)) {
+        if(table.getGroupId(start) != target) {
+          LOG.error("merge failed, range is moving to group " + table.getGroupId(start));
+          return false;
+        }
+        LOG.info("resuming merge of range " + start.toStringUtf8() + " to group " + target);
+        return moveKeys(start, table.getMovingFrom(start), target, range(start, target), true);
+      }
+      int source = table.getGroupId(start);
+      if(source == target) {
+        return updateRange(range(start, source), true);
+      }
+      if(!fence(table, start, source, target)) {
+        return false;
+      }
+      return moveKeys(start, source, target, range(start, target), true);
+    }
+
+    @Override
+    public int getGroupId(byte[] key) {
+      return rangeTable.getGroupId(key);
+    }
+    
+    /**
+     * @return whether a range other than the one starting at start is moving
+     */
+    private boolean isMoving(RangeTable table, ByteString start) {
+      for(KeyRange range: table.toKeyRanges()) {
+        if(range.hasMovingFrom() && !range.getStartKey().equals(start)) {
+          LOG.error("range " + range.getStartKey().toStringUtf8() + " is moving, retry it first");
+          return true;
+        }
+      }
+      return false;
+    }
+    
+    private KeyRange range(ByteString start, int groupId) {
+      KeyRange.Builder builder = KeyRange.newBuilder();
+      builder.setStartKey(start);
+      builder.setGroupId(groupId);
+      return builder.build();
+    }
+    
+    private boolean updateRange(KeyRange range, boolean remove) {
+      RpcClient client = getLeaderClient(RangeTable.META_GROUP_ID);
+      if(client == null) {
+        return false;
+      }
+      UpdateRangeRequest.Builder builder = UpdateRangeRequest.newBuilder();
+      builder.setRange(range);
+      builder.setRemove(remove);
+      try {
+        UpdateRangeResponse response = client.getStub(RangeTable.META_GROUP_ID).updateRange(null, builder.build());
+        if(response != null && response.getSuccess()) {
+          return refreshRanges();
+        }
+      } catch(Exception e) {
+        LOG.error("updateRange failed:" + e.getMessage());
+      }
+      groupLeaders.remove(RangeTable.META_GROUP_ID);
+      return false;
+    }
+    
+    /**
+     * Fence the range moving from the source group to the target group, and wait until 
+     * all servers fence it, so that no more writes of the range are accepted by the 
+     * source group. The range is restored as in the table if not all servers fence it.
+     */
+    private boolean fence(RangeTable table, ByteString start, int source, int target) {
+      KeyRange.Builder fenced = KeyRange.newBuilder();
+      fenced.setStartKey(start);
+      fenced.setGroupId(target);
+      fenced.setMovingFrom(source);
+      if(!updateRange(fenced.build(), false)) {
+        return false;
+      }
+      if(waitForRouting()) {
+        return true;
+      }
+      LOG.error("moving range " + start.toStringUtf8() + " aborted, routing table not updated on all servers");
+      boolean restored = table.containsStartKey(start) ? updateRange(range(start, source), false) 
+          : updateRange(range(start, source), true);
+      if(!restored) {
+        LOG.error("range " + start.toStringUtf8() + " not restored, it stays fenced until moved again");
+      }
+      return false;
+    }
+    
+    /**
+     * Servers check keys against the replica of the range table in their own process,
+     * wait until all replicas have the new table.
+     * @return false if not all replicas have the new table in time
+     */
+    private boolean waitForRouting() {
+      List<KeyRange> expected = rangeTable.toKeyRanges();
+      long deadline = System.currentTimeMillis() + ROUTING_SYNC_TIMEOUT;
+      for(ServerInfo server: servers) {
+        while(true) {
+          RpcClient client = getClient(server);
+          RangeTable table = client == null ? null : getRanges(client);
+          if(table != null && table.toKeyRanges().equals(expected)) {
+            break;
+          }
+          if(System.currentTimeMillis() > deadline) {
+            LOG.warn("Routing table not updated on " + server + " in " + ROUTING_SYNC_TIMEOUT + "ms");
+            return false;
+          }
+          try {
+            Thread.sleep(ROUTING_SYNC_INTERVAL);
+          } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    
+    /**
+     * Copy the keys of a fenced range from a group to another, replacing keys left in the 
+     * target group by failed moves, then put the range done, and delete the keys from the 
+     * source group once all servers route the range to the target group. The source group 
+     * is listed after the writes it accepted before the fence complete.
+     */
+    private boolean moveKeys(ByteString start, int from, int to, KeyRange done, boolean remove) {
+      ByteString end = rangeTable.getRangeEnd(start);
+      try {
+        List<KeyValuePair> source = listRange(from, start, end, true);
+        List<KeyValuePair> target = listRange(to, start, end, false);
+        if(source == null || target == null) {
+          LOG.error("moving range failed, could not list group " + from + " or " + to);
+          return false;
+        }
+        Set<ByteString> copied = new HashSet<>();
+        for(KeyValuePair kvp: source) {
+          SetResponse response = ConnectionManager.this.set(to, kvp, true);
+          if(response == null || !response.getSuccess()) {
+            LOG.error("moving range failed, could not set key:" + kvp.getKey().toStringUtf8());
+            return false;
+          }
+          copied.add(kvp.getKey());
+        }
+        for(KeyValuePair kvp: target) {
+          if(!copied.contains(kvp.getKey()) && !deleteKey(to, kvp.getKey())) {
+            return false;
+          }
+        }
+        if(!updateRange(done, remove)) {
+          LOG.error("moving range failed, could not route range to group " + to);
+          return false;
+        }
+        LOG.info("Moved " + source.size() + " keys from group " + from + " to group " + to);
+        
+        // keys left in the source group are not visible, as it does not serve the range
+        if(!waitForRouting()) {
+          LOG.warn("Keys of range " + start.toStringUtf8() + " kept in group " + from 
+            + ", still routed to it by some servers");
+          return true;
+        }
+        for(KeyValuePair kvp: source) {
+          if(!deleteKey(from, kvp.getKey())) {
+            break;
+          }
+        }
+        return true;
+      } catch(Exception e) {
+        LOG.error("moving range failed:" + e.getMessage(), e);
+      }
+      return false;
+    }
+    
+    private List<KeyValuePair> listRange(int groupId, ByteString start, ByteString end, 
+        boolean barrier) throws Exception {
+      List<KeyValuePair> kvps = ConnectionManager.this.list(groupId, null, barrier);
+      if(kvps == null) {
+        return null;
+      }
+      List<KeyValuePair> result = new ArrayList<>();
+      for(KeyValuePair kvp: kvps) {
+        if(RangeTable.inRange(kvp.getKey(), start, end)) {
+          result.add(kvp);
+        }
+      }
+      return result;
+    }
+    
+    private boolean deleteKey(int groupId, ByteString key) throws Exception {
+      DeleteResponse response = ConnectionManager.this.delete(groupId, key, true);
+      if(response == null || !response.getSuccess()) {
+        LOG.error("could not delete key " + key.toStringUtf8() + " from group " + groupId);
+        return false;
+      }
+      return true;
+    }
+  }
+}
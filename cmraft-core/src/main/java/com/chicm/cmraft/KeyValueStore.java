@@ -38,6 +38,9 @@ public interface KeyValueStore {
   byte[] get(byte[] key);
   String get(String key);
   
+  byte[] get(byte[] key, ReadConsistency consistency);
+  String get(String key, ReadConsistency consistency);
+  
   boolean delete(byte[] key);
   boolean delete(String key);
   
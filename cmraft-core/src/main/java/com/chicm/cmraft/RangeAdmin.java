@@ -0,0 +1,54 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft;
+
+/**
+ * Administration of key ranges, when the keyspace is sharded over raft groups.
+ *
+ * example, move keys from "m" to the end of its range to raft group 2:
+ * RangeAdmin admin = ConnectionManager.getConnection().getRangeAdmin();
+ * admin.split("m".getBytes(), 2);
+ *
+ * @author chicm
+ *
+ */
+public interface RangeAdmin {
+  /**
+   * Split the range containing splitKey at splitKey, keys from splitKey to the end of
+   * the range are moved to the raft group. Splitting to the group owning the range
+   * only adds a range boundary. Writes of the keys being moved are rejected until the 
+   * move is done. A move which failed leaves the range fenced, splitting it again to 
+   * the same group resumes the move.
+   * @return false if the move failed, or was aborted and the range restored
+   */
+  boolean split(byte[] splitKey, int groupId);
+
+  /**
+   * Remove the range starting at startKey, its keys are moved to the group owning
+   * the preceding range. A merge which failed is resumed by merging the range again.
+   */
+  boolean merge(byte[] startKey);
+
+  /**
+   * @return raft group owning the key, according to the cached routing table
+   */
+  int getGroupId(byte[] key);
+}
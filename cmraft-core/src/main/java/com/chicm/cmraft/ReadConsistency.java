@@ -0,0 +1,45 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft;
+
+import com.chicm.cmraft.protobuf.generated.RaftProtos;
+
+/**
+ * Consistency level of read requests.
+ * 
+ * LINEARIZABLE: reads reflect all writes committed before the read started, 
+ * served by leader, or by followers after getting a read index from leader.
+ * BOUNDED_STALENESS: reads may be served by any server whose state is fresh enough,
+ * bounds are configured by raft.read.max.staleness.ms and raft.read.max.lag.index.
+ * ANY: reads are served by any server from its local state.
+ * 
+ * @author chicm
+ *
+ */
+public enum ReadConsistency {
+  LINEARIZABLE,
+  BOUNDED_STALENESS,
+  ANY;
+  
+  public RaftProtos.ReadConsistency toProto() {
+    return RaftProtos.ReadConsistency.valueOf(name());
+  }
+}
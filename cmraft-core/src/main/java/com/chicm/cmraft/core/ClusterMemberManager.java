@@ -25,10 +25,13 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,11 +44,27 @@ public class ClusterMemberManager {
   static final Log LOG = LogFactory.getLog(ClusterMemberManager.class);
   private static final String RAFT_SERVER_KEY_PREFIX = "raft.server";
   private static final String RAFT_LOCAL_SERVER_KEY = "raft.local.server";
+  private static final String RAFT_LEARNER_KEY = "raft.learner";
   
-  private Set<ServerInfo> remoteServers = new HashSet<ServerInfo>();
+  /** All servers of current configuration except local server, updated in place on configuration change */
+  private Set<ServerInfo> remoteServers = Collections.newSetFromMap(new ConcurrentHashMap<ServerInfo, Boolean>());
   private ServerInfo localServer;
   private Set<String> localAddresses = new HashSet<String>();
   
+  /** Members loaded from configuration file, used until a configuration entry is appended to log */
+  private Set<ServerInfo> initialMembers = new HashSet<ServerInfo>();
+  private Set<ServerInfo> initialLearners = new HashSet<ServerInfo>();
+  
+  /** Members of current configuration, including local server if it is a member. 
+   *  During joint consensus, these are members of the old configuration */
+  private volatile Set<ServerInfo> members;
+  
+  /** Members of the new configuration during joint consensus, null otherwise */
+  private volatile Set<ServerInfo> newMembers = null;
+  
+  /** Non-voting learners, they receive the log but are not counted in any quorum */
+  private volatile Set<ServerInfo> learners = Collections.emptySet();
+  
   public ClusterMemberManager(Configuration conf) {
     initLocalAddresses();
     LOG.debug("local addresses: " + localAddresses.toString());
@@ -60,6 +79,113 @@ public class ClusterMemberManager {
     return remoteServers;
   }
   
+  public Set<ServerInfo> getMembers() {
+    return members;
+  }
+  
+  public Set<ServerInfo> getNewMembers() {
+    return newMembers;
+  }
+  
+  public Set<ServerInfo> getLearners() {
+    return learners;
+  }
+  
+  public boolean isLearner(ServerInfo server) {
+    return learners.contains(server);
+  }
+  
+  public boolean isJointConsensus() {
+    return newMembers != null;
+  }
+  
+  /**
+   * @return true if the server is a voting member of current configuration,
+   * either old or new configuration during joint consensus.
+   */
+  public boolean isMember(ServerInfo server) {
+    Set<ServerInfo> cNew = newMembers;
+    return members.contains(server) || (cNew != null && cNew.contains(server));
+  }
+  
+  /**
+   * Change current configuration.
+   * @param oldMembers members of current configuration, or old configuration during joint consensus
+   * @param newMembers members of new configuration during joint consensus, null if not in joint consensus
+   * @param learners non-voting learners
+   */
+  public synchronized void setConfiguration(Set<ServerInfo> oldMembers, Set<ServerInfo> newMembers, 
+      Set<ServerInfo> learners) {
+    Preconditions.checkNotNull(oldMembers);
+    Preconditions.checkNotNull(learners);
+    Preconditions.checkArgument(!oldMembers.isEmpty());
+    
+    Set<ServerInfo> all = new HashSet<>(oldMembers);
+    if(newMembers != null) {
+      all.addAll(newMembers);
+    }
+    all.addAll(learners);
+    all.remove(localServer);
+    
+    this.members = Collections.unmodifiableSet(new HashSet<>(oldMembers));
+    this.newMembers = newMembers == null ? null : Collections.unmodifiableSet(new HashSet<>(newMembers));
+    this.learners = Collections.unmodifiableSet(new HashSet<>(learners));
+    remoteServers.retainAll(all);
+    remoteServers.addAll(all);
+    LOG.info(localServer + ": configuration changed, members:" + this.members + ", new members:" 
+        + this.newMembers + ", learners:" + this.learners);
+  }
+  
+  /**
+   * Go back to the configuration loaded from configuration file.
+   */
+  public void resetConfiguration() {
+    setConfiguration(initialMembers, null, initialLearners);
+  }
+  
+  /**
+   * Check whether the servers form a majority of current configuration, 
+   * during joint consensus, a majority of both old and new configuration is required.
+   */
+  public boolean isQuorum(Set<ServerInfo> servers) {
+    Set<ServerInfo> cNew = newMembers;
+    return isMajority(members, servers) && (cNew == null || isMajority(cNew, servers));
+  }
+  
+  private boolean isMajority(Set<ServerInfo> config, Set<ServerInfo> servers) {
+    int n = 0;
+    for(ServerInfo server: config) {
+      if(servers.contains(server)) {
+        n++;
+      }
+    }
+    return n > config.size()/2;
+  }
+  
+  /**
+   * @param values value of each server, servers missing from the map are considered 0
+   * @return the largest value V such that servers with value at least V form a quorum
+   * of current configuration.
+   */
+  public long getQuorumValue(Map<ServerInfo, Long> values) {
+    Set<ServerInfo> cNew = newMembers;
+    long result = getMajorityValue(members, values);
+    if(cNew != null) {
+      result = Math.min(result, getMajorityValue(cNew, values));
+    }
+    return result;
+  }
+  
+  private long getMajorityValue(Set<ServerInfo> config, Map<ServerInfo, Long> values) {
+    List<Long> list = new ArrayList<>();
+    for(ServerInfo server: config) {
+      Long value = values.get(server);
+      list.add(value == null ? 0 : value);
+    }
+    Collections.sort(list, Collections.reverseOrder());
+    return list.get(list.size()/2);
+  }
+  
   // For Raft client to iterate all raft servers
   public static Set<ServerInfo> getRaftServers(Configuration conf) {
     Set<ServerInfo> servers = new HashSet<ServerInfo>();
@@ -113,8 +239,15 @@ public class ClusterMemberManager {
       LOG.error("SHOULD NOT BE HERE.");
       return;
     }
-    remoteServers.addAll(configuredServers);
-    remoteServers.remove(localServer);
+    initialMembers.addAll(configuredServers);
+    if(Boolean.parseBoolean(conf.getString(RAFT_LEARNER_KEY, "false"))) {
+      // a learner only knows the existing members, until the leader adds it to the configuration
+      initialMembers.remove(localServer);
+      initialLearners.add(localServer);
+    } else {
+      initialMembers.add(localServer);
+    }
+    resetConfiguration();
   }
 
   public boolean isLocalAddress(String hostAddress) {
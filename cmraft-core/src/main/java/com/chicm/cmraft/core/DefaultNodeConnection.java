@@ -31,11 +31,19 @@ import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.CollectVoteRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.CollectVoteResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.PreVoteRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.PreVoteResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftLogEntry;
-import com.chicm.cmraft.protobuf.generated.RaftProtos.ServerId;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadIndexRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadIndexResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TimeoutNowRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TimeoutNowResponse;
 import com.chicm.cmraft.rpc.RpcClient;
+import com.chicm.cmraft.rpc.RpcServer;
 import com.google.common.base.Preconditions;
-import com.google.protobuf.ServiceException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.Descriptors.MethodDescriptor;
 
 /**
  * @author chicm
@@ -43,38 +51,97 @@ import com.google.protobuf.ServiceException;
  */
 public class DefaultNodeConnection implements NodeConnection {
   static final Log LOG = LogFactory.getLog(DefaultNodeConnection.class);
+  private static final MethodDescriptor COLLECT_VOTE = 
+      RaftService.getDescriptor().findMethodByName("collectVote");
+  private static final MethodDescriptor PRE_VOTE = 
+      RaftService.getDescriptor().findMethodByName("preVote");
+  private static final MethodDescriptor APPEND_ENTRIES = 
+      RaftService.getDescriptor().findMethodByName("appendEntries");
   private Configuration conf;
   private RpcClient rpcClient;
   private ServerInfo remoteServer;
+  private int groupId = RpcServer.DEFAULT_GROUP_ID;
+  /** whether the RpcClient is shared with other raft groups, it is not closed with the connection */
+  private boolean sharedClient = false;
   
   public DefaultNodeConnection(Configuration conf, ServerInfo remoteServer) {
     this.conf = conf;
     this.remoteServer = remoteServer;
     rpcClient = new RpcClient(conf, remoteServer);
   }
+  
+  /**
+   * Connection of a raft group, over a RpcClient shared with other groups.
+   */
+  public DefaultNodeConnection(ServerInfo remoteServer, int groupId, RpcClient sharedClient) {
+    this.remoteServer = remoteServer;
+    this.groupId = groupId;
+    this.rpcClient = sharedClient;
+    this.sharedClient = true;
+  }
 
   /* (non-Javadoc)
-   * @see com.chicm.cmraft.core.NodeConnection#collectVote(com.chicm.cmraft.common.ServerInfo, long, long, long)
+   * @see com.chicm.cmraft.core.NodeConnection#collectVote(com.chicm.cmraft.common.ServerInfo, long, long, long, boolean)
    */
   @Override
-  public CollectVoteResponse collectVote(ServerInfo candidate, long term, long lastLogIndex,
-      long lastLogTerm) throws Exception  {
+  public ListenableFuture<CollectVoteResponse> collectVote(ServerInfo candidate, long term, long lastLogIndex,
+      long lastLogTerm, boolean leadershipTransfer) {
         
     CollectVoteRequest.Builder builder = CollectVoteRequest.newBuilder();
     builder.setCandidateId(candidate.toServerId());
     builder.setTerm(term);
     builder.setLastLogIndex(lastLogIndex);
     builder.setLastLogTerm(lastLogTerm);
+    builder.setLeadershipTransfer(leadershipTransfer);
+    
+    return rpcClient.callAsync(groupId, COLLECT_VOTE, builder.build());
+  }
+  
+  /* (non-Javadoc)
+   * @see com.chicm.cmraft.core.NodeConnection#preVote(com.chicm.cmraft.common.ServerInfo, long, long, long)
+   */
+  @Override
+  public ListenableFuture<PreVoteResponse> preVote(ServerInfo candidate, long term, long lastLogIndex,
+      long lastLogTerm) {
+        
+    PreVoteRequest.Builder builder = PreVoteRequest.newBuilder();
+    builder.setCandidateId(candidate.toServerId());
+    builder.setTerm(term);
+    builder.setLastLogIndex(lastLogIndex);
+    builder.setLastLogTerm(lastLogTerm);
     
-    return (CollectVoteResponse)(rpcClient.getStub().collectVote(null, builder.build()));
+    return rpcClient.callAsync(groupId, PRE_VOTE, builder.build());
+  }
+  
+  /* (non-Javadoc)
+   * @see com.chicm.cmraft.core.NodeConnection#readIndex(com.chicm.cmraft.common.ServerInfo)
+   */
+  @Override
+  public ReadIndexResponse readIndex(ServerInfo from) throws Exception {
+    ReadIndexRequest.Builder builder = ReadIndexRequest.newBuilder();
+    builder.setFromHost(from.toServerId());
+    
+    return rpcClient.getStub(groupId).readIndex(null, builder.build());
+  }
+  
+  /* (non-Javadoc)
+   * @see com.chicm.cmraft.core.NodeConnection#timeoutNow(com.chicm.cmraft.common.ServerInfo, long)
+   */
+  @Override
+  public TimeoutNowResponse timeoutNow(ServerInfo leader, long term) throws Exception {
+    TimeoutNowRequest.Builder builder = TimeoutNowRequest.newBuilder();
+    builder.setLeaderId(leader.toServerId());
+    builder.setTerm(term);
+    
+    return rpcClient.getStub(groupId).timeoutNow(null, builder.build());
   }
 
   /* (non-Javadoc)
    * @see com.chicm.cmraft.core.NodeConnection#appendEntries(long, com.chicm.cmraft.common.ServerInfo, long, long, long, java.util.List)
    */
   @Override
-  public AppendEntriesResponse appendEntries(long term, ServerInfo leaderId, long leaderCommit,
-      long prevLogIndex, long prevLogTerm, List<RaftLogEntry> entries) throws ServiceException {
+  public ListenableFuture<AppendEntriesResponse> appendEntries(long term, ServerInfo leaderId, long leaderCommit,
+      long prevLogIndex, long prevLogTerm, List<RaftLogEntry> entries) {
 
     Preconditions.checkNotNull(entries);
     
@@ -86,16 +153,8 @@ public class DefaultNodeConnection implements NodeConnection {
     builder.setPrevLogTerm(prevLogTerm);
     builder.addAllEntries(entries);
     
-    try {
-      LOG.debug(leaderId + "making appendEntries call to: " + getRemoteServer());
-      AppendEntriesResponse response = rpcClient.getStub().appendEntries(null, builder.build());
-      return response;
-    } catch(Exception e) {
-      LOG.error("exception", e);
-      LOG.error("remote server:" + getRemoteServer());
-      LOG.error("Log entries:" + entries.toString());
-    }
-    return null;
+    LOG.debug(leaderId + "making appendEntries call to: " + getRemoteServer());
+    return rpcClient.callAsync(groupId, APPEND_ENTRIES, builder.build());
   }
   
   /* (non-Javadoc)
@@ -111,7 +170,9 @@ public class DefaultNodeConnection implements NodeConnection {
    */
   @Override
   public void close() {
-    rpcClient.close();
+    if(!sharedClient) {
+      rpcClient.close();
+    }
   }
 
 }
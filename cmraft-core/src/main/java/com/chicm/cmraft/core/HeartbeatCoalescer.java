@@ -0,0 +1,179 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GroupHeartbeat;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GroupHeartbeatResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.MultiHeartbeatRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.MultiHeartbeatResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * Coalesces heartbeats of all groups led by this host into one MultiHeartbeat RPC
+ * for each follower host. The first heartbeat queued for a follower host schedules
+ * a flush after a short delay, heartbeats of other groups due within the delay are
+ * sent in the same RPC, so the number of heartbeat RPCs between two hosts does not
+ * grow with the number of groups.
+ *
+ * @author chicm
+ *
+ */
+class HeartbeatCoalescer {
+  static final Log LOG = LogFactory.getLog(HeartbeatCoalescer.class);
+  private static final MethodDescriptor MULTI_HEARTBEAT = 
+      RaftService.getDescriptor().findMethodByName("multiHeartbeat");
+
+  private final MultiRaftHost host;
+  private final long delay;
+  private final ConcurrentMap<ServerInfo, Batch> batches = new ConcurrentHashMap<>();
+  private volatile boolean closed = false;
+  /** MultiHeartbeat RPCs sent */
+  private final AtomicLong sent = new AtomicLong(0);
+
+  /**
+   * @param delay maximum time in milliseconds a heartbeat waits for others
+   */
+  HeartbeatCoalescer(MultiRaftHost host, long delay) {
+    this.host = host;
+    this.delay = delay;
+  }
+
+  /**
+   * Queue the heartbeat of a group to a follower host, a newer heartbeat of the
+   * same group replaces the queued one.
+   */
+  void add(ServerInfo server, GroupHeartbeat heartbeat) {
+    Batch batch = batches.get(server);
+    if(batch == null) {
+      batch = new Batch(server);
+      Batch existing = batches.putIfAbsent(server, batch);
+      if(existing != null) {
+        batch = existing;
+      }
+    }
+    boolean schedule;
+    synchronized(batch) {
+      batch.heartbeats.put(heartbeat.getGroupId(), heartbeat);
+      schedule = !batch.scheduled;
+      batch.scheduled = true;
+    }
+    if(schedule) {
+      RaftTimerService.getInstance().schedule(batch, delay);
+    }
+  }
+
+  /**
+   * @return number of MultiHeartbeat RPCs sent
+   */
+  long getSentCount() {
+    return sent.get();
+  }
+
+  /**
+   * Stop sending heartbeats, queued ones are dropped.
+   */
+  void close() {
+    closed = true;
+  }
+
+  private class Batch implements Runnable {
+    private final ServerInfo server;
+    private Map<Integer, GroupHeartbeat> heartbeats = new HashMap<>();
+    private boolean scheduled = false;
+
+    Batch(ServerInfo server) {
+      this.server = server;
+    }
+
+    // runs on timer callback thread, the RPC is sent asynchronously
+    @Override
+    public void run() {
+      Map<Integer, GroupHeartbeat> sending;
+      synchronized(this) {
+        sending = heartbeats;
+        heartbeats = new HashMap<>();
+        scheduled = false;
+      }
+      if(sending.isEmpty() || closed) {
+        return;
+      }
+      send(server, sending);
+    }
+  }
+
+  private void send(final ServerInfo server, final Map<Integer, GroupHeartbeat> heartbeats) {
+    MultiHeartbeatRequest.Builder builder = MultiHeartbeatRequest.newBuilder();
+    builder.setLeaderId(host.getLocalServer().toServerId());
+    builder.addAllHeartbeats(heartbeats.values());
+    // routed by any group in the batch, the request is handled by the host
+    int routingGroup = heartbeats.keySet().iterator().next();
+
+    final long sendTime = System.currentTimeMillis();
+    // the confirmation round sequence each group's heartbeat carries
+    final Map<Integer, Long> seqs = new HashMap<>();
+    for(Integer groupId: heartbeats.keySet()) {
+      RaftNode node = host.getGroup(groupId);
+      seqs.put(groupId, node == null ? 0 : node.getNodeConnectionManager().getConfirmSeq());
+    }
+    sent.incrementAndGet();
+    Futures.addCallback(host.getRpcClient(server).<MultiHeartbeatResponse>callAsync(routingGroup, 
+      MULTI_HEARTBEAT, builder.build()), new FutureCallback<MultiHeartbeatResponse>() {
+        // runs on netty event loop
+        @Override
+        public void onSuccess(MultiHeartbeatResponse response) {
+          if(response != null) {
+            responded(server, heartbeats, response, sendTime, seqs);
+          }
+        }
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.error("RPC: multiHeartbeat failed: from " + host.getLocalServer() + ", to: " + server
+            + ": " + t.getMessage());
+        }
+      });
+  }
+
+  private void responded(ServerInfo server, Map<Integer, GroupHeartbeat> heartbeats, 
+      MultiHeartbeatResponse response, long sendTime, Map<Integer, Long> seqs) {
+    for(GroupHeartbeatResponse groupResponse: response.getResponsesList()) {
+      RaftNode node = host.getGroup(groupResponse.getGroupId());
+      GroupHeartbeat heartbeat = heartbeats.get(groupResponse.getGroupId());
+      if(node == null || heartbeat == null) {
+        continue;
+      }
+      node.getNodeConnectionManager().heartbeatResponded(server, heartbeat.getTerm(),
+        groupResponse.getTerm(), sendTime, seqs.get(groupResponse.getGroupId()));
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import io.netty.util.Timeout;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.chicm.cmraft.common.Configuration;
+import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GroupHeartbeat;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GroupHeartbeatResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.MultiHeartbeatRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.MultiHeartbeatResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ServerId;
+import com.chicm.cmraft.rpc.AsyncRpcHandler;
+import com.chicm.cmraft.rpc.RpcClient;
+import com.chicm.cmraft.rpc.RpcServer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.Message;
+
+/**
+ * Hosts many raft groups in one process. All groups share one RpcServer port, 
+ * one connection to each remote server, a fixed number of event loop threads and 
+ * the process wide timer wheel. Requests are routed to groups by the group ID in 
+ * request header, so the keyspace can be sharded over groups with different leaders.
+ * MultiHeartbeat requests are handled by the host for all its groups, asynchronously,
+ * so that a heartbeat waiting for busy group event loops does not hold a control lane 
+ * thread needed by votes.
+ * 
+ * @author chicm
+ *
+ */
+public class MultiRaftHost {
+  static final Log LOG = LogFactory.getLog(MultiRaftHost.class);
+  private static final String EVENT_LOOP_THREADS_KEY = "raft.multi.event.loop.threads";
+  private static final int DEFAULT_EVENT_LOOP_THREADS = Runtime.getRuntime().availableProcessors();
+  private static final String HEARTBEAT_DELAY_KEY = "raft.multi.heartbeat.delay";
+  private static final String HEARTBEAT_INTERVAL_KEY = "raft.heartbeat.interval";
+  private static final String RPC_TIMEOUT_KEY = "raft.rpc.timeout";
+  private static final int DEFAULT_RPC_TIMEOUT = 3000;
+  
+  private final Configuration conf;
+  private final ServerInfo localServer;
+  private final RpcServer rpcServer;
+  private final RaftEventLoopGroup eventLoops;
+  private final HeartbeatCoalescer heartbeatCoalescer;
+  private final ConcurrentMap<Integer, RaftNode> groups = new ConcurrentHashMap<>();
+  private final ConcurrentMap<ServerInfo, RpcClient> clients = new ConcurrentHashMap<>();
+  private boolean closed = false;
+  
+  public MultiRaftHost(Configuration conf) {
+    this.conf = conf;
+    this.localServer = new ClusterMemberManager(conf).getLocalServer();
+    eventLoops = new RaftEventLoopGroup("RaftHost" + localServer + "-event-loop", 
+      conf.getInt(EVENT_LOOP_THREADS_KEY, DEFAULT_EVENT_LOOP_THREADS));
+    // heartbeats are delayed at most a tenth of heartbeat interval by default
+    heartbeatCoalescer = new HeartbeatCoalescer(this, conf.getInt(HEARTBEAT_DELAY_KEY, 
+      Math.max(1, conf.getInt(HEARTBEAT_INTERVAL_KEY) / 10)));
+    rpcServer = new RpcServer(conf, localServer);
+    rpcServer.registerAsyncHandler(RaftService.getDescriptor().findMethodByName("multiHeartbeat"), 
+      new AsyncRpcHandler() {
+        @Override
+        public ListenableFuture<? extends Message> handle(int groupId, Message request) {
+          return multiHeartbeat((MultiHeartbeatRequest)request);
+        }
+      });
+    rpcServer.startRpcServer();
+    LOG.info("RaftHost" + localServer + " started");
+  }
+  
+  public ServerInfo getLocalServer() {
+    return localServer;
+  }
+  
+  /**
+   * Start a raft group with the servers configured for this host.
+   */
+  public RaftNode addGroup(int groupId) {
+    return addGroup(groupId, conf);
+  }
+  
+  /**
+   * Start a raft group, local server of the group configuration must be the same as the host's.
+   */
+  public synchronized RaftNode addGroup(int groupId, Configuration groupConf) {
+    if(closed) {
+      throw new IllegalStateException("RaftHost" + localServer + " closed");
+    }
+    if(groups.containsKey(groupId)) {
+      LOG.error("RaftHost" + localServer + ": raft group already exists:" + groupId);
+      return groups.get(groupId);
+    }
+    RaftNode node = new RaftNode(groupConf, groupId, this);
+    if(!localServer.equals(node.getServerInfo())) {
+      String msg = "Local server of raft group " + groupId + " is " + node.getServerInfo() 
+          + ", expected:" + localServer;
+      RuntimeException e = new RuntimeException(msg);
+      LOG.error("Configuration error", e);
+      node.close();
+      throw e;
+    }
+    groups.put(groupId, node);
+    return node;
+  }
+  
+  /**
+   * Stop a raft group hosted on this server, its log is kept.
+   */
+  public synchronized boolean removeGroup(int groupId) {
+    RaftNode node = groups.remove(groupId);
+    if(node == null) {
+      return false;
+    }
+    node.close();
+    return true;
+  }
+  
+  /**
+   * Stop all raft groups, their logs are kept, then stop the server, connections and 
+   * event loops shared by the groups. The host can not be used after closed.
+   */
+  public synchronized void close() {
+    if(closed) {
+      return;
+    }
+    closed = true;
+    heartbeatCoalescer.close();
+    for(RaftNode node: groups.values()) {
+      node.close();
+    }
+    groups.clear();
+    rpcServer.stopRpcServer();
+    for(RpcClient client: clients.values()) {
+      client.close();
+    }
+    clients.clear();
+    eventLoops.stop();
+    LOG.info("RaftHost" + localServer + " closed");
+  }
+  
+  public RaftNode getGroup(int groupId) {
+    return groups.get(groupId);
+  }
+  
+  public Collection<RaftNode> getGroups() {
+    return Collections.unmodifiableCollection(groups.values());
+  }
+  
+  RpcServer getRpcServer() {
+    return rpcServer;
+  }
+  
+  RaftEventLoop nextEventLoop() {
+    return eventLoops.next();
+  }
+  
+  HeartbeatCoalescer getHeartbeatCoalescer() {
+    return heartbeatCoalescer;
+  }
+  
+  /**
+   * Handle heartbeats of the groups led by a remote host, each heartbeat is handled 
+   * on its group's event loop as an empty AppendEntries RPC. The response is completed 
+   * by the last group handling its heartbeat, no thread waits for the groups. Groups not 
+   * hosted here, or not handling their heartbeat within the RPC timeout, are left out 
+   * of the response.
+   */
+  ListenableFuture<MultiHeartbeatResponse> multiHeartbeat(MultiHeartbeatRequest request) {
+    final ServerId leaderId = request.getLeaderId();
+    List<GroupHeartbeat> heartbeats = request.getHeartbeatsList();
+    final PendingHeartbeats pending = new PendingHeartbeats(heartbeats);
+    
+    for(int i = 0; i < heartbeats.size(); i++) {
+      final int n = i;
+      final GroupHeartbeat heartbeat = heartbeats.get(i);
+      final RaftNode node = groups.get(heartbeat.getGroupId());
+      if(node == null) {
+        LOG.warn("RaftHost" + localServer + ": heartbeat for unknown raft group:" + heartbeat.getGroupId());
+        pending.groupDone(n, null);
+        continue;
+      }
+      try {
+        node.getEventLoop().execute(new Runnable() {
+          @Override
+          public void run() {
+            AppendEntriesResponse response = null;
+            try {
+              AppendEntriesRequest.Builder builder = AppendEntriesRequest.newBuilder();
+              builder.setTerm(heartbeat.getTerm());
+              builder.setLeaderId(leaderId);
+              builder.setLeaderCommit(heartbeat.getLeaderCommit());
+              builder.setPrevLogIndex(heartbeat.getPrevLogIndex());
+              builder.setPrevLogTerm(heartbeat.getPrevLogTerm());
+              response = node.getRaftService().doAppendEntries(builder.build());
+            } catch(Exception e) {
+              LOG.error(node.getName() + ": heartbeat failed", e);
+            } finally {
+              pending.groupDone(n, response);
+            }
+          }
+        });
+      } catch(RejectedExecutionException e) {
+        // group closed
+        pending.groupDone(n, null);
+      }
+    }
+    return pending.future;
+  }
+  
+  /**
+   * Responses of the groups in one MultiHeartbeat request, completed by the last group 
+   * or by the RPC timeout, whichever comes first.
+   */
+  private class PendingHeartbeats implements Runnable {
+    private final List<GroupHeartbeat> heartbeats;
+    private final AtomicReferenceArray<AppendEntriesResponse> responses;
+    private final AtomicInteger remaining;
+    private final SettableFuture<MultiHeartbeatResponse> future = SettableFuture.create();
+    private final Timeout timeout;
+    
+    PendingHeartbeats(List<GroupHeartbeat> heartbeats) {
+      this.heartbeats = heartbeats;
+      responses = new AtomicReferenceArray<>(heartbeats.size());
+      remaining = new AtomicInteger(heartbeats.size());
+      if(heartbeats.isEmpty()) {
+        timeout = null;
+        complete();
+      } else {
+        timeout = RaftTimerService.getInstance().schedule(this, 
+          conf.getInt(RPC_TIMEOUT_KEY, DEFAULT_RPC_TIMEOUT));
+      }
+    }
+    
+    void groupDone(int n, AppendEntriesResponse response) {
+      if(response != null) {
+        responses.set(n, response);
+      }
+      if(remaining.decrementAndGet() == 0) {
+        timeout.cancel();
+        complete();
+      }
+    }
+    
+    // runs on timer callback thread
+    @Override
+    public void run() {
+      if(!future.isDone()) {
+        LOG.warn("RaftHost" + localServer + ": multiHeartbeat timed out");
+        complete();
+      }
+    }
+    
+    private void complete() {
+      MultiHeartbeatResponse.Builder builder = MultiHeartbeatResponse.newBuilder();
+      for(int i = 0; i < responses.length(); i++) {
+        AppendEntriesResponse response = responses.get(i);
+        if(response == null) {
+          continue;
+        }
+        GroupHeartbeatResponse.Builder groupBuilder = GroupHeartbeatResponse.newBuilder();
+        groupBuilder.setGroupId(heartbeats.get(i).getGroupId());
+        groupBuilder.setTerm(response.getTerm());
+        groupBuilder.setSuccess(response.getSuccess());
+        builder.addResponses(groupBuilder.build());
+      }
+      future.set(builder.build());
+    }
+  }
+  
+  /**
+   * @return connection to the remote server shared by all groups
+   */
+  RpcClient getRpcClient(ServerInfo server) {
+    RpcClient client = clients.get(server);
+    if(client != null) {
+      return client;
+    }
+    synchronized(this) {
+      if(closed) {
+        throw new IllegalStateException("RaftHost" + localServer + " closed");
+      }
+      client = clients.get(server);
+      if(client == null) {
+        client = new RpcClient(conf, server);
+        clients.put(server, client);
+      }
+      return client;
+    }
+  }
+}
@@ -25,21 +25,33 @@ import java.util.List;
 import com.chicm.cmraft.common.ServerInfo;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.CollectVoteResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.PreVoteResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftLogEntry;
-import com.google.protobuf.ServiceException;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadIndexResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TimeoutNowResponse;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * RPC Interface between Raft nodes. 
+ * Votes and AppendEntries are sent asynchronously, the futures are completed on netty event 
+ * loop when responses arrive, so a node can have many RPCs in flight without a thread for each.
  * @author chicm
  *
  */
 public interface NodeConnection {
   
-  CollectVoteResponse collectVote(ServerInfo candidate, long term, long lastLogIndex,
-      long lastLogTerm) throws Exception ;
+  ListenableFuture<CollectVoteResponse> collectVote(ServerInfo candidate, long term, long lastLogIndex,
+      long lastLogTerm, boolean leadershipTransfer);
   
-  AppendEntriesResponse appendEntries(long term, ServerInfo leaderId, long leaderCommit,
-      long prevLogIndex, long prevLogTerm, List<RaftLogEntry> entries) throws Exception; 
+  ListenableFuture<PreVoteResponse> preVote(ServerInfo candidate, long term, long lastLogIndex,
+      long lastLogTerm);
+  
+  ListenableFuture<AppendEntriesResponse> appendEntries(long term, ServerInfo leaderId, long leaderCommit,
+      long prevLogIndex, long prevLogTerm, List<RaftLogEntry> entries);
+  
+  ReadIndexResponse readIndex(ServerInfo from) throws Exception;
+  
+  TimeoutNowResponse timeoutNow(ServerInfo leader, long term) throws Exception;
   
   ServerInfo getRemoteServer();
   
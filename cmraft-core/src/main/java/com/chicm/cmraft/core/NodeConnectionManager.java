@@ -22,14 +22,13 @@
 package com.chicm.cmraft.core;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,28 +38,87 @@ import com.chicm.cmraft.common.ServerInfo;
 import com.chicm.cmraft.log.RaftLog;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.CollectVoteResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GroupHeartbeat;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.PreVoteResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftLogEntry;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadIndexResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TimeoutNowResponse;
 import com.google.common.base.Preconditions;
-import com.google.protobuf.ServiceException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 
 public class NodeConnectionManager {
   static final Log LOG = LogFactory.getLog(NodeConnectionManager.class);
+  private final static String HEARTBEAT_INTERVAL_KEY = "raft.heartbeat.interval";
+  
   private Configuration conf;
   private Map<ServerInfo, NodeConnection> connections;
   private RaftNode raftNode;
+  private int heartbeatInterval;
+  
+  /** Time of the last AppendEntries RPC (heartbeat or not) sent to each follower,
+   *  a follower only needs a heartbeat if nothing was sent to it within the heartbeat interval. */
+  private Map<ServerInfo, AtomicLong> lastAppendTime = new ConcurrentHashMap<>();
+  
+  /** Send time of the latest AppendEntries RPC acknowledged by each follower in current term,
+   *  used by leader to check it can still reach majority of the cluster, and to
+   *  calculate its lease. */
+  private Map<ServerInfo, AtomicLong> lastContact = new ConcurrentHashMap<>();
+  
+  /** Sequence of the latest round confirming leadership. Each AppendEntries RPC carries 
+   *  the sequence current when it is sent, an acknowledgement of it proves the follower 
+   *  still followed this leader after the rounds up to that sequence started. */
+  private final AtomicLong confirmSeq = new AtomicLong(0);
+  
+  /** Latest round sequence carried by an AppendEntries RPC acknowledged by each follower 
+   *  in current term */
+  private Map<ServerInfo, AtomicLong> ackedSeq = new ConcurrentHashMap<>();
+  
+  /** Followers are considered contacted at the time of becoming leader by CheckQuorum */
+  private volatile long contactGraceStart = 0;
   
   public NodeConnectionManager(Configuration conf, RaftNode node) {
     this.conf = conf;
     this.raftNode = node;
+    this.heartbeatInterval = conf.getInt(HEARTBEAT_INTERVAL_KEY);
     initServerList();
   }
   
   private void initServerList() {
     connections = new ConcurrentHashMap<>();
+    updateConnections(getRaftNode().getRemoteServers());
+  }
+  
+  /**
+   * Create connections to servers newly added to the configuration, 
+   * and close connections to servers removed from it.
+   */
+  public synchronized void updateConnections(Set<ServerInfo> remoteServers) {
+    for (ServerInfo remote : remoteServers) {
+      if(connections.containsKey(remote)) {
+        continue;
+      }
+      LOG.info(getRaftNode().getName() + ": adding connection to:" + remote);
+      lastAppendTime.put(remote, new AtomicLong(0));
+      lastContact.put(remote, new AtomicLong(0));
+      ackedSeq.put(remote, new AtomicLong(0));
+      connections.put(remote, getRaftNode().createNodeConnection(remote));
+    }
     
-    for (ServerInfo remote : getRaftNode().getRemoteServers()) {
-      NodeConnection client = new DefaultNodeConnection(conf, remote);
-      connections.put(remote, client);
+    for (ServerInfo remote : new ArrayList<>(connections.keySet())) {
+      if(remoteServers.contains(remote)) {
+        continue;
+      }
+      LOG.info(getRaftNode().getName() + ": removing connection to:" + remote);
+      NodeConnection conn = connections.remove(remote);
+      lastAppendTime.remove(remote);
+      lastContact.remove(remote);
+      ackedSeq.remove(remote);
+      try {
+        conn.close();
+      } catch(Exception e) {
+        LOG.error(getRaftNode().getName() + ": failed closing connection to:" + remote, e);
+      }
     }
   }
   
@@ -72,11 +130,184 @@ public class NodeConnectionManager {
     return connections.keySet();
   }
   
-  public void beatHeart(long term, ServerInfo leaderId, long leaderCommit,
+  private void appendSent(ServerInfo server, long time) {
+    AtomicLong lastTime = lastAppendTime.get(server);
+    if(lastTime != null) {
+      lastTime.set(time);
+    }
+  }
+  
+  private void contacted(ServerInfo server, long sendTime, long seq) {
+    AtomicLong time = lastContact.get(server);
+    AtomicLong acked = ackedSeq.get(server);
+    if(time == null || acked == null) {
+      return;
+    }
+    raise(time, sendTime);
+    raise(acked, seq);
+    getRaftNode().contactArrived();
+  }
+  
+  private static void raise(AtomicLong value, long newValue) {
+    long current = value.get();
+    while(newValue > current && !value.compareAndSet(current, newValue)) {
+      current = value.get();
+    }
+  }
+  
+  /**
+   * @return send time of the latest AppendEntries RPC acknowledged by the server in 
+   * current term, 0 if none
+   */
+  long getLastContact(ServerInfo server) {
+    AtomicLong time = lastContact.get(server);
+    return time == null ? 0 : time.get();
+  }
+  
+  /**
+   * Forget contacts from previous terms, called when becoming leader.
+   */
+  public void resetContacts() {
+    contactGraceStart = System.currentTimeMillis();
+    for(AtomicLong time: lastContact.values()) {
+      time.set(0);
+    }
+    for(AtomicLong seq: ackedSeq.values()) {
+      seq.set(0);
+    }
+  }
+  
+  /**
+   * Start a round confirming leadership, AppendEntries RPCs sent from now on carry its sequence.
+   * @return sequence of the round
+   */
+  long startConfirmRound() {
+    return confirmSeq.incrementAndGet();
+  }
+  
+  /**
+   * @return sequence of the latest round confirming leadership, to be carried by 
+   * an AppendEntries RPC about to be sent
+   */
+  long getConfirmSeq() {
+    return confirmSeq.get();
+  }
+  
+  /**
+   * @return the largest round sequence S, such that a quorum of servers, including local 
+   * server, acknowledged AppendEntries RPCs carrying S or a later sequence.
+   */
+  long getQuorumAckedSeq() {
+    Map<ServerInfo, Long> seqs = new HashMap<>();
+    seqs.put(getRaftNode().getServerInfo(), Long.MAX_VALUE);
+    for(Map.Entry<ServerInfo, AtomicLong> entry: ackedSeq.entrySet()) {
+      seqs.put(entry.getKey(), entry.getValue().get());
+    }
+    return getRaftNode().getMemberManager().getQuorumValue(seqs);
+  }
+  
+  /**
+   * @return the latest time T, such that a quorum of servers, including local server,
+   * acknowledged AppendEntries RPCs sent at or after T.
+   */
+  public long getQuorumContactTime() {
+    Map<ServerInfo, Long> times = new HashMap<>();
+    times.put(getRaftNode().getServerInfo(), System.currentTimeMillis());
+    for(Map.Entry<ServerInfo, AtomicLong> entry: lastContact.entrySet()) {
+      times.put(entry.getKey(), entry.getValue().get());
+    }
+    return getRaftNode().getMemberManager().getQuorumValue(times);
+  }
+  
+  /**
+   * @param timeout in milliseconds
+   * @return true if a quorum of servers, including local server, 
+   * acknowledged AppendEntries RPCs sent within the timeout. 
+   */
+  public boolean hasQuorumContact(long timeout) {
+    long now = System.currentTimeMillis();
+    Set<ServerInfo> contacted = new HashSet<>();
+    contacted.add(getRaftNode().getServerInfo());
+    for(Map.Entry<ServerInfo, AtomicLong> entry: lastContact.entrySet()) {
+      if(now - Math.max(entry.getValue().get(), contactGraceStart) < timeout) {
+        contacted.add(entry.getKey());
+      }
+    }
+    return getRaftNode().getMemberManager().isQuorum(contacted);
+  }
+  
+  /**
+   * Send heartbeats to the followers which have not received any AppendEntries RPC
+   * within the heartbeat interval. Followers which are receiving log entries are skipped,
+   * the data AppendEntries RPCs already serve as heartbeats.
+   * @return milliseconds until the next heartbeat is due for any follower
+   */
+  public long beatHeart(long term, ServerInfo leaderId, long leaderCommit,
       long prevLogIndex, long prevLogTerm) {
-    appendEntries(term, leaderId, leaderCommit, prevLogIndex, prevLogTerm, 
-      new ArrayList<RaftLogEntry>(), 0);
+    return beatHeart(term, leaderId, leaderCommit, prevLogIndex, prevLogTerm, false);
+  }
+  
+  /**
+   * @param force send heartbeats to all followers, used when leader needs confirmation 
+   * from majority right away.
+   */
+  public long beatHeart(long term, ServerInfo leaderId, long leaderCommit,
+      long prevLogIndex, long prevLogTerm, boolean force) {
+    long now = System.currentTimeMillis();
+    long nextDue = heartbeatInterval;
+    Set<ServerInfo> servers = new HashSet<>();
+    
+    for(ServerInfo server: getRemoteServers()) {
+      AtomicLong lastTime = lastAppendTime.get(server);
+      long elapsed = lastTime == null ? heartbeatInterval : now - lastTime.get();
+      if(force || elapsed >= heartbeatInterval) {
+        servers.add(server);
+      } else {
+        nextDue = Math.min(nextDue, heartbeatInterval - elapsed);
+        LOG.debug(getRaftNode().getName() + ": heartbeat to " + server + " skipped, data sent " + elapsed + " ms ago");
+      }
+    }
     
+    MultiRaftHost host = getRaftNode().getHost();
+    if(host != null && !force) {
+      queueHeartbeats(host, servers, term, leaderCommit, prevLogIndex, prevLogTerm);
+    } else {
+      appendEntries(servers, term, leaderId, leaderCommit, prevLogIndex, prevLogTerm, 
+        new ArrayList<RaftLogEntry>(), 0);
+    }
+    return nextDue;
+  }
+  
+  /**
+   * Heartbeats of hosted groups are coalesced with other groups of the host into 
+   * MultiHeartbeat RPCs. Forced heartbeats are sent right away to confirm leadership.
+   */
+  private void queueHeartbeats(MultiRaftHost host, Set<ServerInfo> servers, long term, 
+      long leaderCommit, long prevLogIndex, long prevLogTerm) {
+    GroupHeartbeat.Builder builder = GroupHeartbeat.newBuilder();
+    builder.setGroupId(getRaftNode().getGroupId());
+    builder.setTerm(term);
+    builder.setLeaderCommit(leaderCommit);
+    builder.setPrevLogIndex(prevLogIndex);
+    builder.setPrevLogTerm(prevLogTerm);
+    GroupHeartbeat heartbeat = builder.build();
+    
+    for(ServerInfo server: servers) {
+      LOG.debug(getRaftNode().getName() + ": queueing heartbeat TO: " + server);
+      appendSent(server, System.currentTimeMillis());
+      host.getHeartbeatCoalescer().add(server, heartbeat);
+    }
+  }
+  
+  /**
+   * Handle the response of a heartbeat sent in a MultiHeartbeat RPC, may be called from any thread.
+   */
+  void heartbeatResponded(ServerInfo server, long term, long responseTerm, long sendTime, long seq) {
+    if(responseTerm > term) {
+      getRaftNode().checkRpcTerm(server, responseTerm);
+      return;
+    }
+    contacted(server, sendTime, seq);
   }
   
   public void appendEntries(RaftLog logMgr, long lastApplied) {
@@ -85,160 +316,240 @@ public class NodeConnectionManager {
       return;
     }
     
-    ExecutorService executor = Executors.newFixedThreadPool(nServers,
-      new ThreadFactory() {
-        @Override
-        public Thread newThread(Runnable r) {
-          Thread t = new Thread(r);
-          t.setName(getRaftNode().getName() + "-AsyncRpcCaller" + (byte)System.currentTimeMillis());
-          return t;
-        }
-    });
-    
     for(ServerInfo server: getRemoteServers()) {
-      NodeConnection conn = connections.get(server);
-      long startIndex = logMgr.getFollowerMatchIndex(server) + 1;
-          
-      LOG.info(getRaftNode().getName() + ": SENDING appendEntries Request TO: " + server);
-      Thread t = new Thread(new AsynchronousAppendEntriesWorker(getRaftNode(), conn, getRaftNode().getRaftLog(), 
-        getRaftNode().getServerInfo(), getRaftNode().getCurrentTerm(), logMgr.getCommitIndex(), startIndex-1, 
-        logMgr.getLogTerm(startIndex-1), logMgr.getLogEntries(startIndex, lastApplied), lastApplied));
-      t.setDaemon(true);
-      executor.execute(t);
+      appendEntries(logMgr, lastApplied, server);
+    }
+  }
+  
+  /**
+   * Send the server the entries after its match index, up to lastApplied.
+   */
+  public void appendEntries(RaftLog logMgr, long lastApplied, ServerInfo server) {
+    NodeConnection conn = connections.get(server);
+    if(conn == null) {
+      LOG.error(getRaftNode().getName() + ": no connection to:" + server);
+      return;
     }
+    long startIndex = logMgr.getFollowerMatchIndex(server) + 1;
+        
+    LOG.info(getRaftNode().getName() + ": SENDING appendEntries Request TO: " + server);
+    long sendTime = System.currentTimeMillis();
+    long seq = confirmSeq.get();
+    appendSent(server, sendTime);
+    List<RaftLogEntry> entries = logMgr.getLogEntries(startIndex, lastApplied);
+    long term = getRaftNode().getCurrentTerm();
+    Futures.addCallback(conn.appendEntries(term, getRaftNode().getServerInfo(), logMgr.getCommitIndex(), 
+      startIndex-1, logMgr.getLogTerm(startIndex-1), entries), 
+      new AppendEntriesCallback(getRaftNode(), conn, logMgr, term, entries, lastApplied, sendTime, seq));
   }
   
-  private void appendEntries(long term, ServerInfo leaderId, long leaderCommit,
+  private void appendEntries(Set<ServerInfo> servers, long term, ServerInfo leaderId, long leaderCommit,
       long prevLogIndex, long prevLogTerm, List<RaftLogEntry> entries, long maxIndex) {
     Preconditions.checkNotNull(entries);
     
-    int nServers = getRemoteServers().size();
+    int nServers = servers.size();
     if(nServers <= 0) {
       return;
     }
     
-    ExecutorService executor = Executors.newFixedThreadPool(nServers,
-      new ThreadFactory() {
-        @Override
-        public Thread newThread(Runnable r) {
-          Thread t = new Thread(r);
-          t.setName(getRaftNode().getName() + "-AsyncRpcCaller" + (byte)System.currentTimeMillis());
-          return t;
-        }
-    });
-    
-    for(ServerInfo server: getRemoteServers()) {
+    for(ServerInfo server: servers) {
       NodeConnection connection = connections.get(server);
       LOG.debug(getRaftNode().getName() + ": SENDING appendEntries Request TO: " + server);
-      Thread t = new Thread(new AsynchronousAppendEntriesWorker(getRaftNode(), connection, getRaftNode().getRaftLog(), getRaftNode().getServerInfo(), term,
-        leaderCommit, prevLogIndex, prevLogTerm, entries, maxIndex));
-      t.setDaemon(true);
-      executor.execute(t);
+      long sendTime = System.currentTimeMillis();
+      long seq = confirmSeq.get();
+      appendSent(server, sendTime);
+      Futures.addCallback(connection.appendEntries(term, leaderId, leaderCommit, prevLogIndex, prevLogTerm, entries), 
+        new AppendEntriesCallback(getRaftNode(), connection, getRaftNode().getRaftLog(), term, entries, 
+          maxIndex, sendTime, seq));
     }
   }
   
   public void collectVote(long term, long lastLogIndex, long lastLogTerm) {
+    collectVote(term, lastLogIndex, lastLogTerm, false);
+  }
+  
+  /**
+   * @param leadershipTransfer the election is started on leader's request, voters should 
+   * grant votes even though they are hearing from the leader.
+   */
+  public void collectVote(long term, long lastLogIndex, long lastLogTerm, boolean leadershipTransfer) {
     int nServers = getRemoteServers().size();
     if(nServers <= 0) {
       return;
     }
-    ExecutorService executor = Executors.newFixedThreadPool(nServers,
-      new ThreadFactory() {
-        @Override
-        public Thread newThread(Runnable r) {
-          Thread t = new Thread(r);
-          t.setName(getRaftNode().getName() + "-AsyncRpcCaller" + (byte)System.currentTimeMillis());
-          return t;
-        }
-    });
-    
     for(ServerInfo server: getRemoteServers()) {
       NodeConnection conn = connections.get(server);
       LOG.debug(getRaftNode().getName() + ": SENDING COLLECTVOTE Request TO: " + server);
-      Thread t = new Thread(new AsynchronousVoteWorker(getRaftNode(), conn, getRaftNode().getServerInfo(), term,
-        lastLogIndex, lastLogTerm));
-      t.setDaemon(true);
-      executor.execute(t);
+      Futures.addCallback(conn.collectVote(getRaftNode().getServerInfo(), term, lastLogIndex, lastLogTerm, 
+        leadershipTransfer), new VoteCallback(getRaftNode(), conn));
+    }
+  }
+  
+  /**
+   * Ask leader for a read index, used by followers to serve linearizable reads.
+   * @return the read index, or -1 if leader failed to confirm its leadership
+   */
+  public long readIndex(ServerInfo leader) {
+    NodeConnection conn = connections.get(leader);
+    if(conn == null) {
+      LOG.error(getRaftNode().getName() + ": no connection to leader:" + leader);
+      return -1;
     }
+    try {
+      ReadIndexResponse response = conn.readIndex(getRaftNode().getServerInfo());
+      if(response != null && response.getSuccess()) {
+        return response.getReadIndex();
+      }
+    } catch(Exception e) {
+      LOG.error(getRaftNode().getName() + ": readIndex failed:" + e.getMessage(), e);
+    }
+    return -1;
+  }
+  
+  /**
+   * Tell the target server to start an election right away, used for leadership transfer.
+   * @return true if the target started an election
+   */
+  public boolean timeoutNow(ServerInfo target, long term) {
+    NodeConnection conn = connections.get(target);
+    if(conn == null) {
+      LOG.error(getRaftNode().getName() + ": no connection to:" + target);
+      return false;
+    }
+    try {
+      TimeoutNowResponse response = conn.timeoutNow(getRaftNode().getServerInfo(), term);
+      if(response != null) {
+        getRaftNode().checkRpcTerm(target, response.getTerm());
+        return response.getSuccess();
+      }
+    } catch(Exception e) {
+      LOG.error(getRaftNode().getName() + ": timeoutNow failed:" + e.getMessage(), e);
+    }
+    return false;
   }
   
-  class AsynchronousVoteWorker implements Runnable {
-    private ServerInfo candidate;
+  public void collectPreVote(long term, long lastLogIndex, long lastLogTerm) {
+    int nServers = getRemoteServers().size();
+    if(nServers <= 0) {
+      return;
+    }
+    for(ServerInfo server: getRemoteServers()) {
+      NodeConnection conn = connections.get(server);
+      LOG.debug(getRaftNode().getName() + ": SENDING PREVOTE Request TO: " + server);
+      Futures.addCallback(conn.preVote(getRaftNode().getServerInfo(), term, lastLogIndex, lastLogTerm), 
+        new PreVoteCallback(getRaftNode(), conn, term));
+    }
+  }
+  
+  /*
+   * Callbacks of asynchronous RPCs run on netty event loop or timer threads, they must not 
+   * block. Raft node and raft log methods they call are dispatched to the node's event loop.
+   */
+  class PreVoteCallback implements FutureCallback<PreVoteResponse> {
     private long term;
-    private long lastLogIndex;
-    private long lastLogTerm;
     private RaftNode node;
     private NodeConnection connection;
     
-    public AsynchronousVoteWorker(RaftNode node, NodeConnection connnection, ServerInfo thisServer, long term,
-        long lastLogIndex, long lastLogTerm) {
+    public PreVoteCallback(RaftNode node, NodeConnection connnection, long term) {
       this.connection = connnection;
       this.node = node;
-      this.candidate = thisServer;
       this.term = term;
-      this.lastLogIndex = lastLogIndex;
-      this.lastLogTerm = lastLogTerm;
     }
     
     @Override
-    public void run () {
-      CollectVoteResponse response = null;
-      try {
-        response = connection.collectVote(candidate, term, lastLogIndex, lastLogTerm);
-        if(response != null && response.getGranted()) {
-          node.voteReceived(ServerInfo.copyFrom(response.getFromHost()), response.getTerm());
-        } else if( response == null) {
-          LOG.error("RPC failed, response == null");
-        } else if(response.getGranted() == false) {
-          LOG.info(node.getName() + "VOTE REJECTED BY " + response.getFromHost().getHostName()
-            + ":" + response.getFromHost().getPort());
-        }
-      } catch(Exception e) {
-        LOG.error("RPC: collectVote failed: from " + getRaftNode().getName() + 
-          ", to: " + connection.getRemoteServer() + ": " + e.getMessage());
+    public void onSuccess(PreVoteResponse response) {
+      if(response != null && response.getGranted()) {
+        node.preVoteReceived(ServerInfo.copyFrom(response.getFromHost()), term);
+      } else if( response == null) {
+        LOG.error("RPC failed, response == null");
+      } else if(response.getGranted() == false) {
+        LOG.info(node.getName() + "PRE-VOTE REJECTED BY " + response.getFromHost().getHostName()
+          + ":" + response.getFromHost().getPort());
+        node.checkRpcTerm(ServerInfo.copyFrom(response.getFromHost()), response.getTerm());
       }
     }
+    
+    @Override
+    public void onFailure(Throwable t) {
+      LOG.error("RPC: preVote failed: from " + getRaftNode().getName() + 
+        ", to: " + connection.getRemoteServer() + ": " + t.getMessage());
+    }
+  }
+  
+  class VoteCallback implements FutureCallback<CollectVoteResponse> {
+    private RaftNode node;
+    private NodeConnection connection;
+    
+    public VoteCallback(RaftNode node, NodeConnection connnection) {
+      this.connection = connnection;
+      this.node = node;
+    }
+    
+    @Override
+    public void onSuccess(CollectVoteResponse response) {
+      if(response != null && response.getGranted()) {
+        node.voteReceived(ServerInfo.copyFrom(response.getFromHost()), response.getTerm());
+      } else if( response == null) {
+        LOG.error("RPC failed, response == null");
+      } else if(response.getGranted() == false) {
+        LOG.info(node.getName() + "VOTE REJECTED BY " + response.getFromHost().getHostName()
+          + ":" + response.getFromHost().getPort());
+      }
+    }
+    
+    @Override
+    public void onFailure(Throwable t) {
+      LOG.error("RPC: collectVote failed: from " + getRaftNode().getName() + 
+        ", to: " + connection.getRemoteServer() + ": " + t.getMessage());
+    }
   }
 
-  class AsynchronousAppendEntriesWorker implements Runnable {
-    private ServerInfo leader;
+  class AppendEntriesCallback implements FutureCallback<AppendEntriesResponse> {
     private long term;
-    private long leaderCommit;
-    private long prevLogIndex;
-    private long prevLogTerm;
     private List<RaftLogEntry> entries;
     private long maxIndex;
+    private long sendTime;
+    private long seq;
     private RaftNode node;
     private NodeConnection connection;
     private RaftLog logManager;
     
-    public AsynchronousAppendEntriesWorker(RaftNode node, NodeConnection connection, RaftLog logMgr, ServerInfo thisServer, long term,
-        long leaderCommit, long prevLogIndex, long prevLogTerm, List<RaftLogEntry> entries, Long maxIndex) {
+    public AppendEntriesCallback(RaftNode node, NodeConnection connection, RaftLog logMgr, long term,
+        List<RaftLogEntry> entries, long maxIndex, long sendTime, long seq) {
       this.connection = connection;
       this.node = node;
       this.logManager = logMgr;
-      this.leader = thisServer;
       this.term = term;
-      this.leaderCommit = leaderCommit;
-      this.prevLogIndex = prevLogIndex;
-      this.prevLogTerm = prevLogTerm;
       this.entries = entries;
       this.maxIndex = maxIndex;
+      this.sendTime = sendTime;
+      this.seq = seq;
     }
     
     @Override
-    public void run () {
-      try {
-        AppendEntriesResponse response = connection.appendEntries(term, leader, leaderCommit, prevLogIndex, prevLogTerm, entries);
-        
-        if(response != null && entries != null && logManager != null) {
-          logManager.onAppendEntriesResponse(connection.getRemoteServer(), response.getTerm(),
-            response.getSuccess(), maxIndex); 
-        }
-      } catch(Exception e) {
-        LOG.error("RPC: collectVote failed: from " + getRaftNode().getName() + 
-          ", to: " + connection.getRemoteServer(), e);
+    public void onSuccess(AppendEntriesResponse response) {
+      if(response == null) {
+        node.appendEntriesResponded(connection.getRemoteServer(), true);
+        return;
+      }
+      if(response.getTerm() > term) {
+        node.checkRpcTerm(connection.getRemoteServer(), response.getTerm());
+        node.appendEntriesResponded(connection.getRemoteServer(), false);
+        return;
+      }
+      contacted(connection.getRemoteServer(), sendTime, seq);
+      if(entries != null && logManager != null) {
+        logManager.onAppendEntriesResponse(connection.getRemoteServer(), response.getTerm(),
+          response.getSuccess(), maxIndex); 
       }
+      node.appendEntriesResponded(connection.getRemoteServer(), false);
+    }
+    
+    @Override
+    public void onFailure(Throwable t) {
+      LOG.error("RPC: appendEntries failed: from " + getRaftNode().getName() + 
+        ", to: " + connection.getRemoteServer() + ": " + t.getMessage());
+      node.appendEntriesResponded(connection.getRemoteServer(), true);
     }
   }
 }
@@ -0,0 +1,151 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Single thread which owns the state of a raft node. RPCs, RPC responses, timer ticks 
+ * and proposals are queued as events, and processed one by one in batches, so that 
+ * raft node and raft log state is only mutated by this thread, and state transitions 
+ * happen in a deterministic order. 
+ * <p>
+ * Events must not block, work which waits for other servers, like waiting for an entry 
+ * to be committed, should be done by the caller after the event returns.
+ * <p>
+ * Once stopped, new events are rejected, and calls still queued fail, so that no caller 
+ * waits for an event which never runs.
+ * @author chicm
+ *
+ */
+public class RaftEventLoop implements Runnable {
+  static final Log LOG = LogFactory.getLog(RaftEventLoop.class);
+  private static final int MAX_BATCH_SIZE = 256;
+  
+  private final BlockingQueue<Runnable> events = new LinkedBlockingQueue<>();
+  private final Thread thread;
+  private volatile boolean stopped = false;
+  
+  public RaftEventLoop(String name) {
+    thread = new Thread(this);
+    thread.setName(name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+  
+  public boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+  
+  /**
+   * Queue the event, it is run on event loop thread later.
+   * @throws RejectedExecutionException if the event loop is stopped
+   */
+  public void execute(Runnable event) {
+    if(stopped) {
+      throw new RejectedExecutionException(thread.getName() + " stopped");
+    }
+    events.add(event);
+    // the loop may have drained its queue for the last time after the check above
+    if(stopped && events.remove(event)) {
+      throw new RejectedExecutionException(thread.getName() + " stopped");
+    }
+  }
+  
+  /**
+   * Run the event on event loop thread and wait for its result, 
+   * the event is run right away if called from event loop thread.
+   * @throws RejectedExecutionException if the event loop is stopped
+   * @throws java.util.concurrent.CancellationException if it is stopped before the event runs
+   */
+  public <T> T call(Callable<T> event) {
+    try {
+      if(inEventLoop()) {
+        return event.call();
+      }
+      FutureTask<T> task = new FutureTask<>(event);
+      execute(task);
+      return task.get();
+    } catch(ExecutionException e) {
+      throw propagate(e.getCause());
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(thread.getName() + " interrupted waiting for event", e);
+    } catch(Exception e) {
+      throw propagate(e);
+    }
+  }
+  
+  private static RuntimeException propagate(Throwable t) {
+    if(t instanceof RuntimeException) {
+      return (RuntimeException) t;
+    }
+    if(t instanceof Error) {
+      throw (Error) t;
+    }
+    return new RuntimeException(t);
+  }
+  
+  public void stop() {
+    stopped = true;
+    thread.interrupt();
+  }
+  
+  @Override
+  public void run() {
+    LOG.info(thread.getName() + " started");
+    List<Runnable> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    while(!stopped) {
+      try {
+        batch.add(events.take());
+      } catch(InterruptedException e) {
+        continue;
+      }
+      events.drainTo(batch, MAX_BATCH_SIZE - 1);
+      for(Runnable event: batch) {
+        try {
+          event.run();
+        } catch(Throwable t) {
+          LOG.error(thread.getName() + " event exception", t);
+        }
+      }
+      batch.clear();
+    }
+    events.drainTo(batch);
+    for(Runnable event: batch) {
+      if(event instanceof Future) {
+        ((Future<?>)event).cancel(false);
+      }
+    }
+    LOG.info(thread.getName() + " STOPPED, " + batch.size() + " events dropped");
+  }
+}
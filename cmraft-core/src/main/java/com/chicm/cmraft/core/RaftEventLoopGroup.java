@@ -0,0 +1,57 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of event loop threads shared by many raft groups, each group is 
+ * assigned one loop, and all its events are processed on that loop's thread.
+ * @author chicm
+ *
+ */
+public class RaftEventLoopGroup {
+  private final RaftEventLoop[] loops;
+  private final AtomicInteger next = new AtomicInteger(0);
+  
+  public RaftEventLoopGroup(String name, int nThreads) {
+    if(nThreads <= 0) {
+      throw new IllegalArgumentException("nThreads: " + nThreads);
+    }
+    loops = new RaftEventLoop[nThreads];
+    for(int i = 0; i < nThreads; i++) {
+      loops[i] = new RaftEventLoop(name + "-" + i);
+    }
+  }
+  
+  /**
+   * @return event loop for a new raft group, loops are assigned round robin
+   */
+  public RaftEventLoop next() {
+    return loops[Math.abs(next.getAndIncrement() % loops.length)];
+  }
+  
+  public void stop() {
+    for(RaftEventLoop loop: loops) {
+      loop.stop();
+    }
+  }
+}
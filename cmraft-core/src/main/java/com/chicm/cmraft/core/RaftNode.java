@@ -20,8 +20,21 @@
 
 package com.chicm.cmraft.core;
 
+import io.netty.util.Timeout;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.math.RandomUtils;
@@ -34,6 +47,10 @@ import com.chicm.cmraft.common.ServerInfo;
 import com.chicm.cmraft.log.DefaultRaftLog;
 import com.chicm.cmraft.log.RaftLog;
 import com.chicm.cmraft.rpc.RpcServer;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
 
 /**
  * This class represents a Raft node in a cluster. This class
@@ -53,7 +70,14 @@ import com.chicm.cmraft.rpc.RpcServer;
  * Respond to RPCs from candidates and leaders
  * If election timeout elapses without receiving AppendEntries
  * RPC from current leader or granting vote to candidate:
- * convert to candidate
+ * convert to pre-candidate
+
+ * Pre-candidates :
+ * Send PreVote RPCs for currentTerm + 1 to all other servers, currentTerm
+ * is not increased, so a node rejoining after a partition can not disrupt
+ * the cluster
+ * If pre-votes received from majority of servers: convert to candidate
+ * If election timeout elapses: start new pre-vote
 
  * Candidates :
  * On conversion to candidate, start election:
@@ -81,18 +105,34 @@ import com.chicm.cmraft.rpc.RpcServer;
  * If there exists an N such that N > commitIndex, a majority
  * of matchIndex[i] >= N, and log[N].term == currentTerm:
  * set commitIndex = N 
+ * If majority of servers have not responded within election timeout
+ * (CheckQuorum): convert to follower, so that clients stop sending requests
+ * to an isolated leader
  * 
+ * Threading: node and log state is only mutated on the node's RaftEventLoop thread.
+ * RPCs, RPC responses, timer ticks and proposals are queued to the event loop, and so are 
+ * the RPCs sent on behalf of callers, such as the heartbeats confirming leadership for 
+ * reads and the entries sent to catch up a server. Progress of these is driven by RPC 
+ * responses and timer callbacks completing futures, which callers may wait on; no thread 
+ * polls node state.
  *
  * @author chicm
  *
  */
 public class RaftNode {
   static final Log LOG = LogFactory.getLog(RaftNode.class);
+  private static final String LEASE_CLOCK_DRIFT_KEY = "raft.lease.max.clock.drift";
+  private static final int DEFAULT_LEASE_CLOCK_DRIFT = 200;
+  private static final int CATCH_UP_RETRY_INTERVAL = 100;
   private Configuration conf = null;
   private StateMachine fsm = null;
   private RpcServer rpcServer = null;
   private NodeConnectionManager nodeConnectionManager = null;
   private RaftNodeTimer timer = null;
+  private RaftEventLoop eventLoop = null;
+  private final int groupId;
+  /** Host of the raft group if it shares resources with other groups, null if standalone */
+  private final MultiRaftHost host;
   private TimeoutListener timeoutListener = new TimeoutHandler();
   private RaftStateChangeListener stateChangeListener = new RaftStateChangeListenerImpl();
   private RaftRpcService raftService = null;
@@ -106,20 +146,69 @@ public class RaftNode {
   //need to reset votedFor to null every time increasing currentTerm.
   private volatile ServerInfo votedFor = null;
   private volatile AtomicLong currentTerm = new AtomicLong(0);
-  private volatile AtomicInteger voteCounter = new AtomicInteger(0);
+  /** Servers granted vote or pre-vote to this server in current election */
+  private final Set<ServerInfo> votes = Collections.newSetFromMap(new ConcurrentHashMap<ServerInfo, Boolean>());
+  private final Set<ServerInfo> preVotes = Collections.newSetFromMap(new ConcurrentHashMap<ServerInfo, Boolean>());
+  
+  /** Last time an AppendEntries RPC was received from current leader */
+  private volatile long lastLeaderContact = 0;
+  
+  /** Heartbeat rounds confirming leadership for reads, guarded by confirmLock. The round 
+   *  in flight was sent after its reads arrived, reads arriving meanwhile wait on the next 
+   *  round, which is sent when the one in flight completes. */
+  private final Object confirmLock = new Object();
+  private ConfirmRound sentRound = null;
+  private ConfirmRound nextRound = null;
+  /** Number of heartbeat rounds sent to confirm leadership */
+  private final AtomicLong confirmRounds = new AtomicLong(0);
+  
+  /** Server which leadership is being transferred to, null if no transfer in progress */
+  private volatile ServerInfo transferTarget = null;
+  /** Completed when this server steps down during a leadership transfer */
+  private volatile SettableFuture<Void> leadershipLost = null;
+  
+  /** Servers being brought up to date with the leader's log, see startCatchUp */
+  private final ConcurrentMap<ServerInfo, CatchUp> catchUps = new ConcurrentHashMap<>();
+  
+  /** Sequence numbers of client writes which passed the range check and are not completed, 
+   *  see beginWrite */
+  private final ConcurrentSkipListSet<Long> pendingWrites = new ConcurrentSkipListSet<>();
+  private final AtomicLong writeSequence = new AtomicLong(0);
+  /** Barriers waiting for writes to complete, see awaitWrites */
+  private final Queue<WriteBarrier> writeBarriers = new ConcurrentLinkedQueue<>();
+  
+  /** Whether a membership change started by this leader is in progress */
+  private volatile boolean changingMembership = false;
 
   public RaftNode(Configuration conf) {
+    this(conf, RpcServer.DEFAULT_GROUP_ID, null);
+  }
+  
+  /**
+   * Create a node of a raft group hosted by a MultiRaftHost, which shares the host's 
+   * RpcServer, connections and event loop threads with other groups.
+   * @param host null for a standalone node with its own RpcServer and event loop
+   */
+  RaftNode(Configuration conf, int groupId, MultiRaftHost host) {
     this.conf = conf;
+    this.groupId = groupId;
+    this.host = host;
     memberManager = new ClusterMemberManager(conf);
+    eventLoop = host == null ? new RaftEventLoop(getName() + "-event-loop") : host.nextEventLoop();
     //serverInfo = ServerInfo.parseFromString(conf.getString("raft.server.local"));
     raftService = RaftRpcService.create(this, conf);
     raftLog= new DefaultRaftLog(this, conf);
     //initialize the term value to be the saved term of last run
     currentTerm.set(raftLog.getLogTerm(raftLog.getCommitIndex()));
     fsm = new StateMachine(stateChangeListener);
-    rpcServer = new RpcServer(conf, raftService, getServerInfo());
     nodeConnectionManager = new NodeConnectionManager(conf, this);
-    rpcServer.startRpcServer();
+    if(host == null) {
+      rpcServer = new RpcServer(conf, raftService, getServerInfo());
+      rpcServer.startRpcServer();
+    } else {
+      rpcServer = host.getRpcServer();
+      rpcServer.registerService(groupId, raftService.getService());
+    }
     timer = RaftNodeTimer.create(getName()+ "-timeout-worker", getElectionTimeout(), timeoutListener);
     
     LOG.info(String.format("%s initialized", getName()));
@@ -152,10 +241,18 @@ public class RaftNode {
     return raftService;
   }
   
+  public RaftEventLoop getEventLoop() {
+    return eventLoop;
+  }
+  
   public NodeConnectionManager getNodeConnectionManager() {
     return this.nodeConnectionManager;
   }
   
+  RpcServer getRpcServer() {
+    return rpcServer;
+  }
+  
   private int getElectionTimeout() {
     int confTimeout = conf.getInt("raft.election.timeout");
     int r = RandomUtils.nextInt(confTimeout);
@@ -163,11 +260,140 @@ public class RaftNode {
   }
   
   public String getName() {
-    return "RaftNode" + getServerInfo().toString();
+    if(groupId == RpcServer.DEFAULT_GROUP_ID) {
+      return "RaftNode" + getServerInfo().toString();
+    }
+    return "RaftNode" + getServerInfo().toString() + "#" + groupId;
+  }
+  
+  public int getGroupId() {
+    return groupId;
+  }
+  
+  /**
+   * @return the host of this group, or null for standalone nodes
+   */
+  MultiRaftHost getHost() {
+    return host;
+  }
+
+  /**
+   * Check the key against the range table of the meta group hosted in the same process.
+   * A key owned by another group means the client's routing table is stale.
+   * Standalone nodes own all keys.
+   */
+  public boolean ownsKey(byte[] key) {
+    return ownsKey(ByteString.copyFrom(key));
+  }
+
+  public boolean ownsKey(ByteString key) {
+    RangeTable table = getRangeTable();
+    return table == null || table.getGroupId(key) == groupId;
+  }
+
+  /**
+   * @return whether this group serves reads of the key, which is the group a range is 
+   * moving from until the move is done
+   */
+  public boolean servesReads(ByteString key) {
+    RangeTable table = getRangeTable();
+    return table == null || table.getReadGroupId(key) == groupId;
+  }
+
+  /**
+   * @return whether the range of the key is moving between groups, writes of the key 
+   * are rejected until the move is done
+   */
+  public boolean isKeyMoving(ByteString key) {
+    RangeTable table = getRangeTable();
+    return table != null && table.isMoving(key);
+  }
+
+  private RangeTable getRangeTable() {
+    if(host == null) {
+      return null;
+    }
+    RaftNode meta = host.getGroup(RangeTable.META_GROUP_ID);
+    return meta == null ? null : meta.getRaftLog().getRangeTable();
+  }
+
+  /**
+   * Start a client write, before checking the key against the range table. 
+   * @return sequence number of the write, to be passed to endWrite when it completes
+   */
+  public long beginWrite() {
+    long seq = writeSequence.incrementAndGet();
+    pendingWrites.add(seq);
+    return seq;
+  }
+
+  public void endWrite(long seq) {
+    pendingWrites.remove(seq);
+    if(!writeBarriers.isEmpty()) {
+      completeWriteBarriers();
+    }
+  }
+
+  /**
+   * Wait for the writes begun before the call to complete. Once a range is fenced on 
+   * this server, writes begun afterwards are rejected, so the keys of the range do not 
+   * change after the barrier. The barrier is completed by the last of those writes
+   * to end, or right away if there is none.
+   * @return false if the writes did not complete in time
+   */
+  public boolean awaitWrites(long timeout) {
+    WriteBarrier barrier = new WriteBarrier(writeSequence.get());
+    writeBarriers.add(barrier);
+    // writes ending before the barrier was added did not see it
+    completeWriteBarriers();
+    try {
+      return barrier.future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch(TimeoutException | ExecutionException e) {
+      return false;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      writeBarriers.remove(barrier);
+    }
+  }
+
+  // may be called from any thread, completing a barrier more than once does nothing
+  private void completeWriteBarriers() {
+    Long first = pendingWrites.ceiling(Long.MIN_VALUE);
+    for(WriteBarrier barrier: writeBarriers) {
+      if(first == null || first > barrier.last) {
+        barrier.future.set(true);
+      }
+    }
+  }
+
+  private static class WriteBarrier {
+    /** sequence of the last write begun before the barrier */
+    private final long last;
+    private final SettableFuture<Boolean> future = SettableFuture.create();
+
+    WriteBarrier(long last) {
+      this.last = last;
+    }
+  }
+
+  /**
+   * Connection to a remote server, shared with other groups of the host if hosted.
+   */
+  NodeConnection createNodeConnection(ServerInfo remote) {
+    if(host == null) {
+      return new DefaultNodeConnection(conf, remote);
+    }
+    return new DefaultNodeConnection(remote, groupId, host.getRpcClient(remote));
   }
   
   public int getTotalServerNumbers () {
-    return nodeConnectionManager.getRemoteServers().size() + 1;
+    return getRemoteServers().size() + 1;
+  }
+  
+  public ClusterMemberManager getMemberManager() {
+    return memberManager;
   }
   
   public void resetTimer() {
@@ -191,19 +417,50 @@ public class RaftNode {
     timer.stop();
   }
   
+  /**
+   * Stop the node, committed entries are flushed and the log is kept on disk.
+   * A standalone node stops its RpcServer and event loop, those of a hosted node
+   * are shared with other groups and stopped with the host.
+   */
+  public void close() {
+    timer.stop();
+    if(host != null) {
+      rpcServer.unregisterService(groupId);
+    } else {
+      rpcServer.stopRpcServer();
+      eventLoop.stop();
+    }
+    nodeConnectionManager.updateConnections(Collections.<ServerInfo>emptySet());
+    raftLog.close();
+    LOG.info(getName() + " closed");
+  }
+  
   public void increaseTerm() {
     this.currentTerm.getAndIncrement();
     this.votedFor = null;
-    this.voteCounter.set(0);
+    this.votes.clear();
   }
    
-  public void checkRpcTerm(ServerInfo leader, long term) {
+  /**
+   * Check the term in an RPC response, may be called from any thread.
+   */
+  public void checkRpcTerm(final ServerInfo leader, final long term) {
+    if(!eventLoop.inEventLoop()) {
+      eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          checkRpcTerm(leader, term);
+        }
+      });
+      return;
+    }
     if(term > getCurrentTerm()) {
       discoverHigherTerm(leader, term);
     }
   }
   
-  public synchronized void discoverHigherTerm(ServerInfo remoteServer, long newTerm) {
+  // runs on event loop
+  public void discoverHigherTerm(ServerInfo remoteServer, long newTerm) {
     if(newTerm <= getCurrentTerm())
       return;
     
@@ -212,42 +469,593 @@ public class RaftNode {
     
     currentTerm.set(newTerm);
     votedFor = null;
-    voteCounter.set(0);
+    votes.clear();
     fsm.discoverHigherTerm();
   }
   
-  public synchronized void discoverLeader(ServerInfo leader, long term) {
+  // runs on event loop
+  public void discoverLeader(ServerInfo leader, long term) {
     if(term < getCurrentTerm()) {
       return;
     }
     LOG.debug(getName() + " discover leader, leader term:" + leader + ":" + term + ", local term:" + getCurrentTerm());
+    // a leader of an older term steps down on the higher term first
+    discoverHigherTerm(leader, term);
     setCurrentLeader(leader);
-    if(term > getCurrentTerm()) {
-      currentTerm.set(term);
-      votedFor = null;
-      voteCounter.set(0);
-    }
+    lastLeaderContact = System.currentTimeMillis();
     fsm.discoverLeader();
   }
   
-  //Received one vote from a follower
-  //This method need to be thread safe, otherwise it should be synchronized.
-  // currently it is thread safe, be careful to modify it.
-  public void voteReceived(ServerInfo server, long term) {
+  //Received one vote from a follower, may be called from any thread
+  public void voteReceived(final ServerInfo server, final long term) {
+    if(!eventLoop.inEventLoop()) {
+      eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          voteReceived(server, term);
+        }
+      });
+      return;
+    }
     if(fsm.getState() != State.CANDIDATE)
       return;
-    voteCounter.incrementAndGet();
+    votes.add(server);
     
-    LOG.info(getName() + "vote received from: " + server + " votecounter:" + voteCounter.get());
+    LOG.info(getName() + "vote received from: " + server + " votes:" + votes.size());
     
-    if(voteCounter.get() > getTotalServerNumbers()/2) {
+    if(memberManager.isQuorum(votes)) {
       LOG.info(String.format("%s: RECEIVED MAJORITY VOTES(%d/%d), term(%d)", 
-        getName(), voteCounter.get(), getTotalServerNumbers(), getCurrentTerm()));
-      voteCounter.set(0);
+        getName(), votes.size(), getTotalServerNumbers(), getCurrentTerm()));
+      votes.clear();
       fsm.voteReceived();
     }
   }
   
+  /**
+   * @return last time an AppendEntries RPC was received from current leader
+   */
+  public long getLastLeaderContact() {
+    return lastLeaderContact;
+  }
+  
+  /**
+   * Whether this server is a follower that has heard from a live leader within minimum 
+   * election timeout. While leader is alive, followers reject vote and pre-vote requests, 
+   * this is also what makes leader lease safe. The leader itself still steps down on 
+   * a higher term in a vote request.
+   */
+  public boolean isLeaderAlive() {
+    return !isLeader() && getCurrentLeader() != null && 
+        System.currentTimeMillis() - lastLeaderContact < conf.getInt("raft.election.timeout");
+  }
+  
+  /**
+   * Followers will not elect a new leader within minimum election timeout after
+   * acknowledging leader's AppendEntries RPC, so leader holds a lease which starts 
+   * when majority acknowledged heartbeats, and lasts for minimum election timeout 
+   * minus the max clock drift between servers.
+   * @return true if this server is leader and its lease has not expired.
+   */
+  public boolean hasValidLease() {
+    if(!isLeader() || isTransferringLeadership()) {
+      return false;
+    }
+    long leaseDuration = conf.getInt("raft.election.timeout") 
+        - conf.getInt(LEASE_CLOCK_DRIFT_KEY, DEFAULT_LEASE_CLOCK_DRIFT);
+    return System.currentTimeMillis() < nodeConnectionManager.getQuorumContactTime() + leaseDuration;
+  }
+  
+  /**
+   * Send heartbeats to all followers and wait for majority to respond, to renew the lease.
+   * @return true if the lease is valid after renewal.
+   */
+  public boolean renewLease() {
+    return confirmLeadership() && hasValidLease();
+  }
+  
+  /**
+   * Confirm this server is still leader at the time of calling, by waiting for majority 
+   * to acknowledge a heartbeat round sent after the call. Concurrent callers share rounds: 
+   * a caller joins the round not sent yet if any, or starts one. A round already in flight 
+   * may have been sent before the call, so callers arriving meanwhile wait for the next 
+   * round, which is sent once the round in flight completes. All callers of a round 
+   * complete together.
+   * @return true if leadership is confirmed
+   */
+  public boolean confirmLeadership() {
+    if(!isLeader()) {
+      return false;
+    }
+    ConfirmRound round;
+    boolean send = false;
+    synchronized(confirmLock) {
+      if(nextRound != null) {
+        round = nextRound;
+      } else if(sentRound != null) {
+        round = nextRound = new ConfirmRound();
+      } else {
+        round = sentRound = new ConfirmRound();
+        send = true;
+      }
+    }
+    if(send) {
+      sendConfirmRound(round);
+    }
+    try {
+      // completed by majority contact, or failed by the timer after election timeout
+      return round.future.get() && isLeader();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch(ExecutionException e) {
+      return false;
+    }
+  }
+  
+  private void sendConfirmRound(final ConfirmRound round) {
+    confirmRounds.incrementAndGet();
+    round.timeout = RaftTimerService.getInstance().schedule(new Runnable() {
+      @Override
+      public void run() {
+        completeConfirmRound(round, false);
+      }
+    }, conf.getInt("raft.election.timeout"));
+    // AppendEntries RPCs sent from here on carry the round's sequence
+    round.seq = nodeConnectionManager.startConfirmRound();
+    try {
+      eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          if(isLeader()) {
+            nodeConnectionManager.beatHeart(getCurrentTerm(), getServerInfo(), raftLog.getCommitIndex(),
+              raftLog.getLastApplied(), raftLog.getLastLogTerm(), true);
+          }
+          // local server alone may be a quorum
+          contactArrived();
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      completeConfirmRound(round, false);
+    }
+  }
+  
+  /**
+   * Complete the round in flight if majority acknowledged AppendEntries RPCs carrying 
+   * its sequence or a later one, called when a follower acknowledges one, from any thread.
+   */
+  void contactArrived() {
+    ConfirmRound round;
+    synchronized(confirmLock) {
+      round = sentRound;
+    }
+    if(round != null && nodeConnectionManager.getQuorumAckedSeq() >= round.seq) {
+      completeConfirmRound(round, true);
+    }
+  }
+  
+  private void completeConfirmRound(ConfirmRound round, boolean confirmed) {
+    ConfirmRound next;
+    synchronized(confirmLock) {
+      if(sentRound != round) {
+        return;
+      }
+      next = sentRound = nextRound;
+      nextRound = null;
+    }
+    round.timeout.cancel();
+    round.future.set(confirmed);
+    if(next != null) {
+      sendConfirmRound(next);
+    }
+  }
+  
+  /**
+   * @return number of heartbeat rounds sent to confirm leadership
+   */
+  long getConfirmRounds() {
+    return confirmRounds.get();
+  }
+  
+  private static class ConfirmRound {
+    private final SettableFuture<Boolean> future = SettableFuture.create();
+    /** not completed by contacts until sent */
+    private volatile long seq = Long.MAX_VALUE;
+    private volatile Timeout timeout;
+  }
+  
+  //Received one pre-vote from a follower, preVoteTerm is the term the pre-vote was requested for.
+  //may be called from any thread
+  public void preVoteReceived(final ServerInfo server, final long preVoteTerm) {
+    if(!eventLoop.inEventLoop()) {
+      eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          preVoteReceived(server, preVoteTerm);
+        }
+      });
+      return;
+    }
+    if(fsm.getState() != State.PRE_CANDIDATE || preVoteTerm != getCurrentTerm() + 1)
+      return;
+    preVotes.add(server);
+    
+    LOG.info(getName() + "pre-vote received from: " + server + " prevotes:" + preVotes.size());
+    
+    if(memberManager.isQuorum(preVotes)) {
+      LOG.info(String.format("%s: RECEIVED MAJORITY PRE-VOTES(%d/%d), term(%d)", 
+        getName(), preVotes.size(), getTotalServerNumbers(), preVoteTerm));
+      preVotes.clear();
+      fsm.preVoteReceived();
+      if(fsm.getState() == State.CANDIDATE) {
+        startElection();
+      }
+    }
+  }
+  
+  private void startPreVote() {
+    long preVoteTerm = getCurrentTerm() + 1;
+    setCurrentLeader(null);
+    preVotes.clear();
+    LOG.debug(getName() + ": PRE-VOTE MYSELF, term:" + preVoteTerm);
+    preVoteReceived(getServerInfo(), preVoteTerm);
+    nodeConnectionManager.collectPreVote(preVoteTerm, raftLog.getLastApplied(), raftLog.getLastLogTerm());
+  }
+  
+  private void startElection() {
+    startElection(false);
+  }
+  
+  private void startElection(boolean leadershipTransfer) {
+    setCurrentLeader(null);
+    increaseTerm();
+    voteMySelf();
+    nodeConnectionManager.collectVote(currentTerm.get(), raftLog.getLastApplied(), raftLog.getLastLogTerm(),
+      leadershipTransfer);
+  }
+  
+  /**
+   * Apply a configuration from log, configuration takes effect once appended to log.
+   * Connections to servers added to or removed from the cluster are created or closed.
+   */
+  public void applyConfiguration(Set<ServerInfo> members, Set<ServerInfo> newMembers, 
+      Set<ServerInfo> learners) {
+    memberManager.setConfiguration(members, newMembers, learners);
+    if(nodeConnectionManager != null) {
+      nodeConnectionManager.updateConnections(getRemoteServers());
+    }
+  }
+  
+  /**
+   * Go back to the configuration loaded from configuration file.
+   */
+  public void resetConfiguration() {
+    memberManager.resetConfiguration();
+    if(nodeConnectionManager != null) {
+      nodeConnectionManager.updateConnections(getRemoteServers());
+    }
+  }
+  
+  /**
+   * Change cluster membership using joint consensus: first commit a C_OLDNEW entry,
+   * which requires majority of both old and new configuration for any decision, then 
+   * commit a C_NEW entry. Leader steps down if it is not a member of new configuration.
+   * Only one membership change is allowed at a time. Learners promoted to members 
+   * are removed from learners, other learners are kept.
+   * @param servers members of the new configuration
+   * @return true if the new configuration is committed
+   */
+  public boolean changeMembership(Set<ServerInfo> servers) {
+    Set<ServerInfo> learners = new HashSet<>(memberManager.getLearners());
+    learners.removeAll(servers);
+    return changeMembership(servers, learners);
+  }
+  
+  /**
+   * Add a non-voting learner, it receives the log but does not vote 
+   * and is not counted in any quorum.
+   */
+  public boolean addLearner(ServerInfo server) {
+    Preconditions.checkNotNull(server);
+    if(memberManager.isMember(server)) {
+      LOG.error(getName() + ": addLearner rejected, already a member:" + server);
+      return false;
+    }
+    Set<ServerInfo> learners = new HashSet<>(memberManager.getLearners());
+    learners.add(server);
+    return changeMembership(new HashSet<>(memberManager.getMembers()), learners);
+  }
+  
+  /**
+   * Promote a learner to voting member, once it has caught up with the leader's log.
+   */
+  public boolean promoteLearner(ServerInfo server) {
+    Preconditions.checkNotNull(server);
+    if(!memberManager.isLearner(server)) {
+      LOG.error(getName() + ": promoteLearner rejected, not a learner:" + server);
+      return false;
+    }
+    Set<ServerInfo> servers = new HashSet<>(memberManager.getMembers());
+    servers.add(server);
+    return changeMembership(servers);
+  }
+  
+  /**
+   * Change members and learners of the cluster. If only learners change, a single C_NEW 
+   * entry is committed since quorums are not affected. Servers joining as members must 
+   * catch up with the leader's log within an election timeout, otherwise the change is 
+   * rejected and they should join as learners first.
+   * @param servers members of the new configuration
+   * @param learners learners of the new configuration
+   * @return true if the new configuration is committed
+   */
+  public boolean changeMembership(Set<ServerInfo> servers, Set<ServerInfo> learners) {
+    Preconditions.checkNotNull(servers);
+    Preconditions.checkNotNull(learners);
+    Preconditions.checkArgument(!servers.isEmpty());
+    if(!Collections.disjoint(servers, learners)) {
+      LOG.error(getName() + ": changeMembership rejected, server is both member and learner");
+      return false;
+    }
+    if(!isLeader()) {
+      LOG.info(getName() + ": changeMembership rejected, not leader");
+      return false;
+    }
+    synchronized(this) {
+      if(changingMembership || memberManager.isJointConsensus() || isTransferringLeadership()) {
+        LOG.info(getName() + ": changeMembership rejected, another change in progress");
+        return false;
+      }
+      changingMembership = true;
+    }
+    
+    try {
+      Set<ServerInfo> members = new HashSet<>(memberManager.getMembers());
+      if(members.equals(servers)) {
+        if(learners.equals(memberManager.getLearners())) {
+          return true;
+        }
+        LOG.info(getName() + ": changing learners to " + learners);
+        return raftLog.appendConfiguration(servers, null, learners);
+      }
+      
+      //new members join quorums right away, so do not let them slow down commits
+      long deadline = System.currentTimeMillis() + conf.getInt("raft.election.timeout");
+      for(ServerInfo server: servers) {
+        if(!members.contains(server) && !server.equals(getServerInfo()) && !catchUp(server, deadline)) {
+          LOG.warn(getName() + ": changeMembership failed, not caught up:" + server 
+            + ", add it as a learner first");
+          return false;
+        }
+      }
+      
+      LOG.info(getName() + ": changing membership from " + members + " to " + servers);
+      if(!raftLog.appendConfiguration(members, servers, learners)) {
+        LOG.warn(getName() + ": changeMembership failed, joint configuration not committed");
+        return false;
+      }
+      if(!raftLog.appendConfiguration(servers, null, learners)) {
+        LOG.warn(getName() + ": changeMembership failed, new configuration not committed");
+        return false;
+      }
+      if(!servers.contains(getServerInfo())) {
+        eventLoop.call(new Callable<Void>() {
+          @Override
+          public Void call() {
+            if(isLeader()) {
+              LOG.info(getName() + ": removed from cluster, stepping down");
+              stepDown();
+            }
+            return null;
+          }
+        });
+      }
+      return true;
+    } catch(InterruptedException e) {
+      LOG.info(getName() + ": changeMembership interrupted");
+      return false;
+    } finally {
+      changingMembership = false;
+    }
+  }
+  
+  /**
+   * Replicate log to the server until its match index reaches the leader's last index.
+   * @return true if caught up before the deadline
+   */
+  private boolean catchUp(ServerInfo server, long deadline) throws InterruptedException {
+    try {
+      return startCatchUp(server, deadline).get();
+    } catch(ExecutionException e) {
+      return false;
+    }
+  }
+  
+  /**
+   * Start replicating log to the server until it catches up. Entries are sent again when 
+   * the server responds to an AppendEntries RPC, or CATCH_UP_RETRY_INTERVAL after one failed, 
+   * so no thread polls the server's match index.
+   * @return future completed with true once caught up, or with false at the deadline 
+   * or when this server is no longer leader
+   */
+  private ListenableFuture<Boolean> startCatchUp(ServerInfo server, long deadline) {
+    final CatchUp catchUp = new CatchUp(server);
+    CatchUp existing = catchUps.putIfAbsent(server, catchUp);
+    if(existing != null) {
+      return existing.future;
+    }
+    catchUp.timeout = RaftTimerService.getInstance().schedule(new Runnable() {
+      @Override
+      public void run() {
+        catchUp.complete(false);
+      }
+    }, Math.max(0, deadline - System.currentTimeMillis()));
+    checkCatchUp(server);
+    return catchUp.future;
+  }
+  
+  /**
+   * Called when an AppendEntries RPC to the server completes, from any thread. The log 
+   * handles the response on the event loop first, so the match index is up to date when 
+   * the catch-up of the server is checked.
+   * @param failed no response was received
+   */
+  void appendEntriesResponded(final ServerInfo server, boolean failed) {
+    if(!catchUps.containsKey(server)) {
+      return;
+    }
+    if(!failed) {
+      checkCatchUp(server);
+      return;
+    }
+    RaftTimerService.getInstance().schedule(new Runnable() {
+      @Override
+      public void run() {
+        checkCatchUp(server);
+      }
+    }, CATCH_UP_RETRY_INTERVAL);
+  }
+  
+  // complete the catch-up of the server if done, or send it the entries it misses
+  private void checkCatchUp(final ServerInfo server) {
+    if(!eventLoop.inEventLoop()) {
+      try {
+        eventLoop.execute(new Runnable() {
+          @Override
+          public void run() {
+            checkCatchUp(server);
+          }
+        });
+      } catch(RejectedExecutionException e) {
+        CatchUp catchUp = catchUps.get(server);
+        if(catchUp != null) {
+          catchUp.complete(false);
+        }
+      }
+      return;
+    }
+    CatchUp catchUp = catchUps.get(server);
+    if(catchUp == null) {
+      return;
+    }
+    if(!isLeader()) {
+      catchUp.complete(false);
+    } else if(raftLog.getFollowerMatchIndex(server) >= raftLog.getLastApplied()) {
+      catchUp.complete(true);
+    } else {
+      nodeConnectionManager.appendEntries(raftLog, raftLog.getLastApplied(), server);
+    }
+  }
+  
+  private class CatchUp {
+    private final ServerInfo server;
+    private final SettableFuture<Boolean> future = SettableFuture.create();
+    private volatile Timeout timeout;
+    
+    CatchUp(ServerInfo server) {
+      this.server = server;
+    }
+    
+    void complete(boolean caughtUp) {
+      if(catchUps.remove(server, this)) {
+        Timeout t = timeout;
+        if(t != null) {
+          t.cancel();
+        }
+        future.set(caughtUp);
+      }
+    }
+  }
+  
+  public boolean isTransferringLeadership() {
+    return transferTarget != null;
+  }
+  
+  /**
+   * Transfer leadership to the target server. Leader stops accepting commands, 
+   * brings the target up to date, and sends TimeoutNow RPC to it, so the target 
+   * starts an election right away instead of waiting for election timeout.
+   * @param target the server to transfer leadership to
+   * @return true if this server stepped down within an election timeout
+   */
+  public boolean transferLeadership(ServerInfo target) {
+    Preconditions.checkNotNull(target);
+    if(!isLeader()) {
+      LOG.info(getName() + ": transferLeadership rejected, not leader");
+      return false;
+    }
+    if(target.equals(getServerInfo())) {
+      return true;
+    }
+    if(!memberManager.isMember(target)) {
+      LOG.error(getName() + ": transferLeadership rejected, not a voting member:" + target);
+      return false;
+    }
+    synchronized(this) {
+      if(isTransferringLeadership()) {
+        LOG.info(getName() + ": transferLeadership rejected, transferring to:" + transferTarget);
+        return false;
+      }
+      transferTarget = target;
+    }
+    
+    LOG.info(getName() + ": transferring leadership to:" + target);
+    long term = getCurrentTerm();
+    long deadline = System.currentTimeMillis() + conf.getInt("raft.election.timeout");
+    SettableFuture<Void> lost = SettableFuture.create();
+    leadershipLost = lost;
+    try {
+      //bring the target up to date, new commands are rejected during transfer
+      if(!catchUp(target, deadline)) {
+        LOG.warn(getName() + ": transferLeadership failed, target not caught up:" + target);
+        return false;
+      }
+      
+      if(!nodeConnectionManager.timeoutNow(target, term)) {
+        LOG.warn(getName() + ": transferLeadership failed, TimeoutNow rejected by:" + target);
+        return false;
+      }
+      //step down when the target's vote request with higher term arrives
+      if(isLeader()) {
+        lost.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      }
+    } catch(InterruptedException e) {
+      LOG.info(getName() + ": transferLeadership interrupted");
+    } catch(TimeoutException | ExecutionException e) {
+      LOG.warn(getName() + ": transferLeadership timed out, still leader");
+    } finally {
+      transferTarget = null;
+      leadershipLost = null;
+    }
+    
+    boolean transferred = !isLeader();
+    LOG.info(getName() + ": transferred leadership to " + target + ": " + transferred);
+    return transferred;
+  }
+  
+  // runs on event loop
+  private void stepDown() {
+    setCurrentLeader(null);
+    fsm.lostQuorum();
+  }
+  
+  /**
+   * For follower, handle TimeoutNow RPC from leader, start an election right away 
+   * without pre-vote, runs on event loop.
+   * @return true if election started
+   */
+  public boolean timeoutNow(ServerInfo leader, long term) {
+    if(term != getCurrentTerm() || isLeader()) {
+      return false;
+    }
+    LOG.info(getName() + ": TimeoutNow received from leader:" + leader + ", starting election");
+    fsm.timeoutNow();
+    if(fsm.getState() != State.CANDIDATE) {
+      return false;
+    }
+    startElection(true);
+    return true;
+  }
+  
   private void voteMySelf() {
     LOG.debug(getName() + ": VOTE MYSELF");
     if( voteRequest(getServerInfo(), getCurrentTerm(), 
@@ -259,17 +1067,30 @@ public class RaftNode {
   }
   
   /**
-   * For follower, handle voteRequest RPC from candidate
+   * For follower, handle voteRequest RPC from candidate, runs on event loop
    * @param candidate candidate server info
    * @param term term of candidate
    * @param lastLogIndex candidate's last log index
    * @param lastLogTerm  candidate's last log term
    * @return true if vote granted, otherwise false
    */
-  public synchronized boolean voteRequest(ServerInfo candidate, long term, long lastLogIndex, long lastLogTerm) {
+  public boolean voteRequest(ServerInfo candidate, long term, long lastLogIndex, long lastLogTerm) {
+    return voteRequest(candidate, term, lastLogIndex, lastLogTerm, false);
+  }
+  
+  /**
+   * @param leadershipTransfer the election is started on leader's request, 
+   * grant vote even though leader is alive.
+   */
+  public boolean voteRequest(ServerInfo candidate, long term, long lastLogIndex, long lastLogTerm,
+      boolean leadershipTransfer) {
     boolean ret = false;
     if(term < getCurrentTerm())
       return ret;
+    if(!candidate.equals(getServerInfo()) && !leadershipTransfer && isLeaderAlive()) {
+      LOG.info(getName() + "vote request rejected, leader is alive: " + candidate);
+      return ret;
+    }
     checkRpcTerm(candidate, term);
     
     if(isLeader() && term == getCurrentTerm()) {
@@ -297,6 +1118,32 @@ public class RaftNode {
     return ret;
   }
   
+  /**
+   * For follower, handle PreVote RPC from pre-candidate. Granting a pre-vote does not
+   * change currentTerm or votedFor. Runs on event loop.
+   * @param candidate pre-candidate server info
+   * @param term the term pre-candidate would start election with
+   * @param lastLogIndex pre-candidate's last log index
+   * @param lastLogTerm  pre-candidate's last log term
+   * @return true if pre-vote granted, otherwise false
+   */
+  public boolean preVoteRequest(ServerInfo candidate, long term, long lastLogIndex, long lastLogTerm) {
+    if(term <= getCurrentTerm()) {
+      return false;
+    }
+    // a live leader exists, refuse to help starting a disruptive election
+    if(isLeader() || isLeaderAlive()) {
+      LOG.info(getName() + "pre-vote request rejected, leader is alive: " + candidate);
+      return false;
+    }
+    if(lastLogTerm < raftLog.getLastLogTerm() || 
+        (lastLogTerm == raftLog.getLastLogTerm() && lastLogIndex < raftLog.getLastApplied())) {
+      LOG.info(getName() + "pre-vote request rejected, log is not up to date: " + candidate);
+      return false;
+    }
+    return true;
+  }
+  
   private void restartTimer() {
     if(timer == null) {
       LOG.error("restartTimer ERROR, timer == null");
@@ -306,6 +1153,7 @@ public class RaftNode {
     int timeout = -1;
     switch(getState()) {
       case FOLLOWER:
+      case PRE_CANDIDATE:
       case CANDIDATE:
         timeout = getElectionTimeout();
         break;
@@ -329,16 +1177,23 @@ public class RaftNode {
       //restart timer when state change.
       restartTimer();
       raftLog.stateChange(oldState, newState);
+      SettableFuture<Void> lost = leadershipLost;
+      if(oldState == State.LEADER && lost != null) {
+        lost.set(null);
+      }
       
       switch(newState) {
         case FOLLOWER:
           break;
+        case PRE_CANDIDATE:
+          break;
         case CANDIDATE:
           //start up a new election term when becoming candidate
           //increaseTerm(); //Term will be increased every timeout, so we do not need to increase term here
           break;
         case LEADER:
           setCurrentLeader(getServerInfo());
+          nodeConnectionManager.resetContacts();
           //send heartbeat right away after becoming leader, then send out heartbeat every timeout 
           nodeConnectionManager.beatHeart(getCurrentTerm(), getServerInfo(), raftLog.getCommitIndex(),
             raftLog.getLastApplied(), raftLog.getLastLogTerm());
@@ -347,33 +1202,45 @@ public class RaftNode {
     }
   }
   
+  /**
+   * Called on timer callback threads shared by all nodes, queues a timer tick to 
+   * the event loop. RPCs are sent asynchronously so the tick does not block.
+   */
   private class TimeoutHandler implements TimeoutListener, Runnable {
     @Override
     public void timeout() {
-      Thread t = new Thread(new TimeoutHandler());
-      t.setName(getName() + "-TimeoutHandler"); 
-      t.setDaemon(true);
-      t.start();
+      eventLoop.execute(this);
     }
     
     @Override
     public void run() {
       LOG.debug(getName() + " state:" + fsm.getState() + " timeout!!");
+      //servers not in current configuration do not start elections
+      if(fsm.getState() != State.LEADER && !memberManager.isMember(getServerInfo())) {
+        LOG.debug(getName() + " is not a member of current configuration");
+        return;
+      }
       //perform state change
       fsm.electionTimeout();
       
       //do initialization after state change
-      if(fsm.getState() == State.LEADER) {
-        //leader send heartbeat to all servers every timeout
-        nodeConnectionManager.beatHeart(getCurrentTerm(), getServerInfo(), raftLog.getCommitIndex(),
-          raftLog.getLastApplied(), raftLog.getLastLogTerm());
+      if(fsm.getState() == State.LEADER && !nodeConnectionManager.hasQuorumContact(
+          conf.getInt("raft.election.timeout"))) {
+        LOG.warn(String.format("%s: majority of servers silent for an election timeout, stepping down, term(%d)", 
+          getName(), getCurrentTerm()));
+        stepDown();
+      } else if(fsm.getState() == State.LEADER) {
+        //leader send heartbeat to idle followers, and wake up again when the next one is due
+        long nextHeartbeat = nodeConnectionManager.beatHeart(getCurrentTerm(), getServerInfo(), 
+          raftLog.getCommitIndex(), raftLog.getLastApplied(), raftLog.getLastLogTerm());
+        timer.reset((int)Math.max(1, nextHeartbeat));
         
+      } else if(fsm.getState() == State.PRE_CANDIDATE) {
+        //every timeout period, pre-candidates check whether they could win an election
+        startPreVote();
       } else if(fsm.getState() == State.CANDIDATE) {
         //every timeout period, candidates start up new election
-        setCurrentLeader(null);
-        increaseTerm();
-        voteMySelf();
-        nodeConnectionManager.collectVote(currentTerm.get(), raftLog.getLastApplied(), raftLog.getLastLogTerm());
+        startElection();
       } else if( fsm.getState() == State.FOLLOWER ) {
         
       }
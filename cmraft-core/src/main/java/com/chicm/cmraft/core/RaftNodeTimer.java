@@ -20,92 +20,58 @@
 
 package com.chicm.cmraft.core;
 
+import io.netty.util.Timeout;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * A thread provides time out service, it calls listener's timeout() method on every timeout.
+ * Provides time out service, it calls listener's timeout() method on every timeout.
  * If the reset method is called before timeout, the timer will be restart.
+ * Timers are scheduled on the shared {@link RaftTimerService}, listener is called on 
+ * its callback thread pool, so the listener should not block.
  * @author chicm
  *
  */
-public class RaftNodeTimer implements Runnable {
+public class RaftNodeTimer {
   static final Log LOG = LogFactory.getLog(RaftNodeTimer.class);
-  private TimeoutListener listener = null;
-  private int timeout = 0;
-  private final Object sleepLock = new Object();
-  private volatile boolean reset = false;
+  private final String name;
+  private final TimeoutListener listener;
+  private volatile int timeout = 0;
   private volatile boolean isStopped = false;
-  private Thread thread = null;
+  private Timeout pending = null;
+  // incremented on every reset, so that a timeout already handed to callback threads 
+  // before the reset is ignored
+  private long generation = 0;
   
   // It is not allowed to create new instance with new operator, can only be created
   // from create method.
-  private RaftNodeTimer() {
+  private RaftNodeTimer(String name, int timeout, TimeoutListener listener) {
+    this.name = name;
+    this.timeout = timeout;
+    this.listener = listener;
   }
   
   public static RaftNodeTimer create(String name, int timeout, TimeoutListener listener) {
-    RaftNodeTimer worker = new RaftNodeTimer();
-    worker.setTimeout(timeout);
-    worker.setListener(listener);
-    
-    worker.setThread(new Thread(worker));
-    worker.getThread().setName(name);
-    worker.getThread().start();
+    RaftNodeTimer worker = new RaftNodeTimer(name, timeout, listener);
+    LOG.debug(name + " started, timeout=" + timeout);
+    worker.reset();
     return worker;
   }
   
-  /**
-   * @return the listener
-   */
-  private TimeoutListener getListener() {
-    return listener;
-  }
-
-  /**
-   * @param listener the listener to set
-   */
-  private void setListener(TimeoutListener listener) {
-    this.listener = listener;
-  }
-
-  /**
-   * @return the timeout
-   */
-  private int getTimeout() {
-    return timeout;
-  }
-
-  /**
-   * @param timeout the timeout to set
-   */
-  private void setTimeout(int timeout) {
-    this.timeout = timeout;
-  }
-
-  /**
-   * @return the thread
-   */
-  private Thread getThread() {
-    return thread;
-  }
-
-  /**
-   * @param thread the thread to set
-   */
-  private void setThread(Thread thread) {
-    this.thread = thread;
-  }
-  
-  public void reset() {
-    LOG.debug(thread.getName() + " RESET");
-    synchronized (sleepLock) {
-      reset = true;
-      sleepLock.notifyAll();
-    }   
+  public synchronized void reset() {
+    LOG.debug(name + " RESET");
+    if(isStopped()) {
+      return;
+    }
+    if(pending != null) {
+      pending.cancel();
+    }
+    schedule(++generation);
   }
   
   public void reset(int timeout) {
-    setTimeout(timeout);
+    this.timeout = timeout;
     reset();
   }
   
@@ -113,64 +79,43 @@ public class RaftNodeTimer implements Runnable {
     return isStopped;
   }
 
-  public void stop() {
-    LOG.info(thread.getName() + " STOP");
+  public synchronized void stop() {
+    LOG.info(name + " STOP");
     this.isStopped = true;
-    reset();
-    try {
-      this.thread.join();
-    } catch(Exception e) {
-      LOG.error("exception", e);
+    generation++;
+    if(pending != null) {
+      pending.cancel();
+      pending = null;
     }
   }
-
-  private void sleep() {
-    LOG.debug("entering sleep");
-    try {
-      while(!isStopped()) {
-        reset = false;
-        synchronized (sleepLock) {
-          sleepLock.wait(getTimeout());
-        }
-        if(reset)
-          continue;
-        break;
+  
+  private void schedule(final long gen) {
+    pending = RaftTimerService.getInstance().schedule(new Runnable() {
+      @Override
+      public void run() {
+        doTimeOut(gen);
       }
-    } catch(InterruptedException iex) {
-      LOG.debug("interrupted");
-    }
+    }, timeout);
   }
 
-  @Override
-  public void run() {
-    LOG.debug(thread.getName() + " started, timeout=" + this.timeout);
-    try {
-      while (!isStopped()) {
-        sleep();
-        if(isStopped())
-          break;
-        try {
-           doTimeOut();
-        } catch (Exception e) {
-          if (isStopped()) {
-            break;
-          }
-        }        
+  private void doTimeOut(long gen) {
+    synchronized(this) {
+      if(isStopped() || gen != generation) {
+        return;
       }
-    } catch (Throwable t) {
-      LOG.error("RaftNodeTimer exception", t);
-    } finally {
-      LOG.info(thread.getName() + " STOPPED");
+      // keep timing out every period until reset
+      schedule(gen);
     }
-  }
-
-  private void doTimeOut() {
-    LOG.debug(thread.getName() + " TIMEOUT");
+    LOG.debug(name + " TIMEOUT");
     if(listener != null) {
-      getListener().timeout();
-      LOG.debug(thread.getName() + " listener timeout is called");
+      try {
+        listener.timeout();
+      } catch(Exception e) {
+        LOG.error(name + " listener exception", e);
+      }
+      LOG.debug(name + " listener timeout is called");
     } else {
-      LOG.warn(thread.getName() + " listener is null");
+      LOG.warn(name + " listener is null");
     }
   }
 }
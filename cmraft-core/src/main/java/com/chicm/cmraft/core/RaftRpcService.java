@@ -21,6 +21,9 @@
 package com.chicm.cmraft.core;
 
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,24 +32,40 @@ import com.chicm.cmraft.common.Configuration;
 import com.chicm.cmraft.common.ServerInfo;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ChangeMembershipRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ChangeMembershipResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.CollectVoteRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.CollectVoteResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.DeleteRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.DeleteResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.GetRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GetRangesRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GetRangesResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.GetResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyValuePair;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.ListRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.ListResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.LookupLeaderRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.LookupLeaderResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.MultiHeartbeatRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.MultiHeartbeatResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.PreVoteRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.PreVoteResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftLogEntry;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadIndexRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadIndexResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.ServerId;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.SetRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.SetResponse;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcRequest;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TimeoutNowRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TimeoutNowResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TransferLeadershipRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TransferLeadershipResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.UpdateRangeRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.UpdateRangeResponse;
 import com.google.common.base.Preconditions;
 import com.google.protobuf.BlockingService;
 import com.google.protobuf.ByteString;
@@ -101,8 +120,18 @@ public class RaftRpcService implements RaftService.BlockingInterface{
   
   // For followers, handle appendEntries RPC from Leader
   @Override
-  public AppendEntriesResponse appendEntries(RpcController controller, AppendEntriesRequest request)
+  public AppendEntriesResponse appendEntries(RpcController controller, final AppendEntriesRequest request)
       throws ServiceException {
+    return getRaftNode().getEventLoop().call(new Callable<AppendEntriesResponse>() {
+      @Override
+      public AppendEntriesResponse call() {
+        return doAppendEntries(request);
+      }
+    });
+  }
+  
+  // runs on event loop
+  AppendEntriesResponse doAppendEntries(AppendEntriesRequest request) {
     LOG.debug(getRaftNode().getName() + "appendEntries CALLED, FROM:" + ServerInfo.copyFrom(request.getLeaderId()));
     
     Preconditions.checkNotNull(node);
@@ -149,16 +178,30 @@ public class RaftRpcService implements RaftService.BlockingInterface{
   }
   
   @Override
-  public CollectVoteResponse collectVote(RpcController controller, CollectVoteRequest request)
+  public CollectVoteResponse collectVote(RpcController controller, final CollectVoteRequest request)
       throws ServiceException {
+    return getRaftNode().getEventLoop().call(new Callable<CollectVoteResponse>() {
+      @Override
+      public CollectVoteResponse call() {
+        return doCollectVote(request);
+      }
+    });
+  }
+  
+  // runs on event loop
+  private CollectVoteResponse doCollectVote(CollectVoteRequest request) {
     LOG.debug(getRaftNode().getName() + ": received vote request from: " + "{" + request + "}" );
     
-    if(request.getTerm() > node.getCurrentTerm()) {
+    // while leader is alive, ignore the request without updating term, 
+    // unless the election is started on leader's request
+    if(request.getTerm() > node.getCurrentTerm() && 
+        (request.getLeadershipTransfer() || !getRaftNode().isLeaderAlive())) {
       getRaftNode().discoverHigherTerm(ServerInfo.copyFrom(request.getCandidateId()), request.getTerm());
     }
     
     boolean granted = getRaftNode().voteRequest(new ServerInfo(request.getCandidateId().getHostName(), 
-      request.getCandidateId().getPort()), request.getTerm(), request.getLastLogIndex(), request.getLastLogTerm());
+      request.getCandidateId().getPort()), request.getTerm(), request.getLastLogIndex(), request.getLastLogTerm(),
+      request.getLeadershipTransfer());
     
     LOG.debug(getRaftNode().getName() + ": voted: " + granted + " candidate: " 
       + request.getCandidateId().getHostName() + ":" + request.getCandidateId().getPort());
@@ -171,6 +214,33 @@ public class RaftRpcService implements RaftService.BlockingInterface{
     return builder.build();
   }
 
+  @Override
+  public PreVoteResponse preVote(RpcController controller, final PreVoteRequest request)
+      throws ServiceException {
+    return getRaftNode().getEventLoop().call(new Callable<PreVoteResponse>() {
+      @Override
+      public PreVoteResponse call() {
+        return doPreVote(request);
+      }
+    });
+  }
+  
+  // runs on event loop
+  private PreVoteResponse doPreVote(PreVoteRequest request) {
+    LOG.debug(getRaftNode().getName() + ": received pre-vote request from: " + "{" + request + "}" );
+    
+    // PreVote must not change local term or vote, so do not call discoverHigherTerm here
+    boolean granted = getRaftNode().preVoteRequest(ServerInfo.copyFrom(request.getCandidateId()), 
+      request.getTerm(), request.getLastLogIndex(), request.getLastLogTerm());
+    
+    PreVoteResponse.Builder builder = PreVoteResponse.newBuilder();
+    builder.setGranted(granted);
+    builder.setTerm(getRaftNode().getCurrentTerm());
+    builder.setFromHost(getRaftNode().getServerInfo().toServerId());
+    
+    return builder.build();
+  }
+
   @Override
   public LookupLeaderResponse lookupLeader(RpcController controller, LookupLeaderRequest request)
       throws ServiceException {
@@ -202,13 +272,22 @@ public class RaftRpcService implements RaftService.BlockingInterface{
 
   @Override
   public GetResponse get(RpcController controller, GetRequest request) throws ServiceException {
-    byte[] key = request.getKey().toByteArray();
-    byte[] value = node.getRaftLog().get(key);
-    
+    ByteString key = request.getKey();
     GetResponse.Builder builder = GetResponse.newBuilder();
+    if(!node.servesReads(key)) {
+      builder.setSuccess(false);
+      builder.setWrongGroup(true);
+      return builder.build();
+    }
+    // negative bounds mean not specified
+    long maxStalenessMs = request.hasMaxStalenessMs() ? request.getMaxStalenessMs() : -1;
+    long maxLagIndex = request.hasMaxLagIndex() ? request.getMaxLagIndex() : -1;
+    ByteString value = node.getRaftLog().get(key, request.getConsistency(), maxStalenessMs, 
+      maxLagIndex);
+    
     if(value != null) {
       builder.setSuccess(true);
-      builder.setValue(ByteString.copyFrom(value));
+      builder.setValue(value);
     } else {
       builder.setSuccess(false);
     }
@@ -216,13 +295,104 @@ public class RaftRpcService implements RaftService.BlockingInterface{
     return builder.build();
   }
 
+  @Override
+  public ReadIndexResponse readIndex(RpcController controller, ReadIndexRequest request)
+      throws ServiceException {
+    LOG.debug(getRaftNode().getName() + ": received readIndex request from: " + "{" + request + "}" );
+    long readIndex = node.getRaftLog().getReadIndex();
+    
+    ReadIndexResponse.Builder builder = ReadIndexResponse.newBuilder();
+    builder.setSuccess(readIndex >= 0);
+    if(readIndex >= 0) {
+      builder.setReadIndex(readIndex);
+    }
+    
+    return builder.build();
+  }
+
+  @Override
+  public TimeoutNowResponse timeoutNow(RpcController controller, final TimeoutNowRequest request)
+      throws ServiceException {
+    return getRaftNode().getEventLoop().call(new Callable<TimeoutNowResponse>() {
+      @Override
+      public TimeoutNowResponse call() {
+        return doTimeoutNow(request);
+      }
+    });
+  }
+  
+  // runs on event loop
+  private TimeoutNowResponse doTimeoutNow(TimeoutNowRequest request) {
+    LOG.info(getRaftNode().getName() + ": received TimeoutNow request from: " + "{" + request + "}" );
+    boolean success = getRaftNode().timeoutNow(ServerInfo.copyFrom(request.getLeaderId()), request.getTerm());
+    
+    TimeoutNowResponse.Builder builder = TimeoutNowResponse.newBuilder();
+    builder.setSuccess(success);
+    builder.setTerm(getRaftNode().getCurrentTerm());
+    
+    return builder.build();
+  }
+
+  @Override
+  public TransferLeadershipResponse transferLeadership(RpcController controller, 
+      TransferLeadershipRequest request) throws ServiceException {
+    LOG.info(getRaftNode().getName() + ": received transferLeadership request: " + "{" + request + "}" );
+    boolean success = getRaftNode().transferLeadership(ServerInfo.copyFrom(request.getTarget()));
+    
+    TransferLeadershipResponse.Builder builder = TransferLeadershipResponse.newBuilder();
+    builder.setSuccess(success);
+    
+    return builder.build();
+  }
+
+  @Override
+  public ChangeMembershipResponse changeMembership(RpcController controller,
+      ChangeMembershipRequest request) throws ServiceException {
+    LOG.info(getRaftNode().getName() + ": received changeMembership request: " + "{" + request + "}" );
+    Set<ServerInfo> servers = new HashSet<>();
+    for(ServerId server: request.getServersList()) {
+      servers.add(ServerInfo.copyFrom(server));
+    }
+    Set<ServerInfo> learners = new HashSet<>();
+    for(ServerId server: request.getLearnersList()) {
+      learners.add(ServerInfo.copyFrom(server));
+    }
+    
+    ChangeMembershipResponse.Builder builder = ChangeMembershipResponse.newBuilder();
+    if(servers.isEmpty()) {
+      builder.setSuccess(false);
+    } else if(request.getUpdateLearners()) {
+      builder.setSuccess(getRaftNode().changeMembership(servers, learners));
+    } else {
+      builder.setSuccess(getRaftNode().changeMembership(servers));
+    }
+    
+    return builder.build();
+  }
+
   @Override
   public SetResponse set(RpcController controller, SetRequest request) throws ServiceException {
     LOG.debug(node.getName() + ": set request responded");
     SetResponse.Builder builder = SetResponse.newBuilder();
-    
-    boolean success = node.getRaftLog().set(request.getKv());
-    builder.setSuccess(success);
+    ByteString key = request.getKv().getKey();
+    long write = node.beginWrite();
+    try {
+      if(!request.getIgnoreRange() && node.isKeyMoving(key)) {
+        builder.setSuccess(false);
+        builder.setMoving(true);
+        return builder.build();
+      }
+      if(!request.getIgnoreRange() && !node.ownsKey(key)) {
+        builder.setSuccess(false);
+        builder.setWrongGroup(true);
+        return builder.build();
+      }
+      
+      boolean success = node.getRaftLog().set(request.getKv());
+      builder.setSuccess(success);
+    } finally {
+      node.endWrite(write);
+    }
     
     return builder.build();
   }
@@ -231,8 +401,23 @@ public class RaftRpcService implements RaftService.BlockingInterface{
   public DeleteResponse delete(RpcController controller, DeleteRequest request)
       throws ServiceException {
     DeleteResponse.Builder builder = DeleteResponse.newBuilder();
-    
-    builder.setSuccess(node.getRaftLog().delete(request.getKey().toByteArray()));
+    long write = node.beginWrite();
+    try {
+      if(!request.getIgnoreRange() && node.isKeyMoving(request.getKey())) {
+        builder.setSuccess(false);
+        builder.setMoving(true);
+        return builder.build();
+      }
+      if(!request.getIgnoreRange() && !node.ownsKey(request.getKey())) {
+        builder.setSuccess(false);
+        builder.setWrongGroup(true);
+        return builder.build();
+      }
+      
+      builder.setSuccess(node.getRaftLog().delete(request.getKey().toByteArray()));
+    } finally {
+      node.endWrite(write);
+    }
         
     return builder.build();
   }
@@ -241,6 +426,14 @@ public class RaftRpcService implements RaftService.BlockingInterface{
   public ListResponse list(RpcController controller, ListRequest request) throws ServiceException {
     LOG.info(node.getName() + ": list request responded");
     ListResponse.Builder builder = ListResponse.newBuilder();
+    if(request.getBarrier()) {
+      int timeout = config.getInt(RPC_TIMEOUT_KEY, DEFAULT_RPC_TIMEOUT) / 2;
+      if(!node.awaitWrites(timeout) || !node.getRaftLog().awaitApplied(timeout)) {
+        LOG.warn(node.getName() + ": list rejected, writes in progress not completed");
+        builder.setSuccess(false);
+        return builder.build();
+      }
+    }
     Collection<KeyValuePair> col = node.getRaftLog().list(request.getPattern().toByteArray());
     for(KeyValuePair entry: col) {
       builder.addResults(entry);
@@ -248,4 +441,36 @@ public class RaftRpcService implements RaftService.BlockingInterface{
     builder.setSuccess(true);
     return builder.build();
   }
+
+  @Override
+  public GetRangesResponse getRanges(RpcController controller, GetRangesRequest request)
+      throws ServiceException {
+    GetRangesResponse.Builder builder = GetRangesResponse.newBuilder();
+    builder.addAllRanges(node.getRaftLog().getRangeTable().toKeyRanges());
+    builder.setSuccess(node.getGroupId() == RangeTable.META_GROUP_ID);
+    return builder.build();
+  }
+
+  @Override
+  public UpdateRangeResponse updateRange(RpcController controller, UpdateRangeRequest request)
+      throws ServiceException {
+    LOG.info(node.getName() + ": received updateRange request: " + "{" + request + "}" );
+    UpdateRangeResponse.Builder builder = UpdateRangeResponse.newBuilder();
+    builder.setSuccess(node.getRaftLog().updateRange(request.getRange(), request.getRemove()));
+    return builder.build();
+  }
+
+  @Override
+  public MultiHeartbeatResponse multiHeartbeat(RpcController controller, MultiHeartbeatRequest request)
+      throws ServiceException {
+    MultiRaftHost host = getRaftNode().getHost();
+    if(host == null) {
+      LOG.error(getRaftNode().getName() + ": multiHeartbeat received by a standalone node");
+      return MultiHeartbeatResponse.getDefaultInstance();
+    }
+    // the host registers an asynchronous handler of multiHeartbeat on its RpcServer, 
+    // requests do not reach the blocking services of its groups
+    throw new ServiceException("multiHeartbeat is handled asynchronously by RaftHost" 
+      + host.getLocalServer());
+  }
 }
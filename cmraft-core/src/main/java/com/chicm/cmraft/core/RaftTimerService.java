@@ -0,0 +1,102 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Timer service shared by all raft nodes in the process. Timeouts are kept in a single 
+ * hashed wheel, expired tasks are run on a small fixed thread pool, so the number of 
+ * threads does not grow with the number of raft nodes or timeouts.
+ * @author chicm
+ *
+ */
+public class RaftTimerService {
+  static final Log LOG = LogFactory.getLog(RaftTimerService.class);
+  private static final int TICK_DURATION = 10; //ms
+  private static final int TICKS_PER_WHEEL = 512;
+  private static final int CALLBACK_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+  
+  private static final RaftTimerService INSTANCE = new RaftTimerService();
+  
+  private final HashedWheelTimer wheel;
+  private final ExecutorService executor;
+  
+  private RaftTimerService() {
+    wheel = new HashedWheelTimer(new DaemonThreadFactory("RaftTimer-wheel"), 
+      TICK_DURATION, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+    executor = Executors.newFixedThreadPool(CALLBACK_THREADS, new DaemonThreadFactory("RaftTimer-callback"));
+  }
+  
+  public static RaftTimerService getInstance() {
+    return INSTANCE;
+  }
+  
+  /**
+   * Run the task on callback thread pool after the delay.
+   * @param task task to run, it should not block, otherwise other timeouts are delayed
+   * @param delay delay in milliseconds
+   * @return handle to cancel the task
+   */
+  public Timeout schedule(final Runnable task, long delay) {
+    return wheel.newTimeout(new TimerTask() {
+      @Override
+      public void run(Timeout timeout) {
+        if(timeout.isCancelled()) {
+          return;
+        }
+        try {
+          executor.execute(task);
+        } catch(Exception e) {
+          LOG.error("failed to run timer task", e);
+        }
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+  
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger(0);
+    
+    DaemonThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+    
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r);
+      t.setName(prefix + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -0,0 +1,231 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyRange;
+import com.chicm.cmraft.rpc.RpcServer;
+import com.google.protobuf.ByteString;
+
+/**
+ * Routing table of the keyspace. The keyspace is partitioned into ranges ordered by
+ * unsigned byte order of their start keys, each range is owned by one raft group.
+ * Keys before the first range, and all keys when the table is empty, are owned by
+ * the meta group, which also replicates the table itself.
+ * 
+ * A range being moved to its owner from another group is fenced: writes of the range 
+ * are rejected, and reads are served by the group it is moving from, until the keys 
+ * are copied and the range is put again without the source group.
+ *
+ * @author chicm
+ *
+ */
+public class RangeTable {
+  /** Raft group which stores the range table */
+  public static final int META_GROUP_ID = RpcServer.DEFAULT_GROUP_ID;
+  /** returned by getMovingFrom for ranges not moving */
+  public static final int NOT_MOVING = -1;
+
+  private static final Comparator<ByteString> KEY_COMPARATOR = new Comparator<ByteString>() {
+    @Override
+    public int compare(ByteString k1, ByteString k2) {
+      int n = Math.min(k1.size(), k2.size());
+      for(int i = 0; i < n; i++) {
+        int b1 = k1.byteAt(i) & 0xff;
+        int b2 = k2.byteAt(i) & 0xff;
+        if(b1 != b2) {
+          return b1 - b2;
+        }
+      }
+      return k1.size() - k2.size();
+    }
+  };
+
+  private final ConcurrentNavigableMap<ByteString, Owner> ranges =
+      new ConcurrentSkipListMap<>(KEY_COMPARATOR);
+
+  public static RangeTable copyFrom(List<KeyRange> list) {
+    RangeTable table = new RangeTable();
+    for(KeyRange range: list) {
+      table.put(range);
+    }
+    return table;
+  }
+
+  public List<KeyRange> toKeyRanges() {
+    List<KeyRange> list = new ArrayList<>();
+    for(Map.Entry<ByteString, Owner> entry: ranges.entrySet()) {
+      KeyRange.Builder builder = KeyRange.newBuilder();
+      builder.setStartKey(entry.getKey());
+      builder.setGroupId(entry.getValue().groupId);
+      if(entry.getValue().movingFrom != NOT_MOVING) {
+        builder.setMovingFrom(entry.getValue().movingFrom);
+      }
+      list.add(builder.build());
+    }
+    return list;
+  }
+
+  public void put(KeyRange range) {
+    if(range.hasMovingFrom()) {
+      put(range.getStartKey(), range.getGroupId(), range.getMovingFrom());
+    } else {
+      put(range.getStartKey(), range.getGroupId());
+    }
+  }
+
+  public void put(ByteString startKey, int groupId) {
+    put(startKey, groupId, NOT_MOVING);
+  }
+
+  /**
+   * Put a range moving to the group from another group.
+   */
+  public void put(ByteString startKey, int groupId, int movingFrom) {
+    ranges.put(startKey, new Owner(groupId, movingFrom));
+  }
+
+  public boolean remove(ByteString startKey) {
+    return ranges.remove(startKey) != null;
+  }
+
+  public int getGroupId(byte[] key) {
+    return getGroupId(ByteString.copyFrom(key));
+  }
+
+  public int getGroupId(ByteString key) {
+    Map.Entry<ByteString, Owner> entry = ranges.floorEntry(key);
+    return entry == null ? META_GROUP_ID : entry.getValue().groupId;
+  }
+
+  /**
+   * @return group serving reads of the key, the group it is moving from if moving
+   */
+  public int getReadGroupId(byte[] key) {
+    return getReadGroupId(ByteString.copyFrom(key));
+  }
+
+  public int getReadGroupId(ByteString key) {
+    Map.Entry<ByteString, Owner> entry = ranges.floorEntry(key);
+    return entry == null ? META_GROUP_ID : entry.getValue().getReadGroupId();
+  }
+
+  /**
+   * @return group the range of the key is moving from, or NOT_MOVING
+   */
+  public int getMovingFrom(ByteString key) {
+    Map.Entry<ByteString, Owner> entry = ranges.floorEntry(key);
+    return entry == null ? NOT_MOVING : entry.getValue().movingFrom;
+  }
+
+  public boolean isMoving(ByteString key) {
+    return getMovingFrom(key) != NOT_MOVING;
+  }
+
+  /**
+   * @return group owning the keys just before the start key
+   */
+  public int getPrecedingGroupId(ByteString startKey) {
+    Map.Entry<ByteString, Owner> entry = ranges.lowerEntry(startKey);
+    return entry == null ? META_GROUP_ID : entry.getValue().groupId;
+  }
+
+  /**
+   * @return start key of the next range, or null if the key is in the last range
+   */
+  public ByteString getRangeEnd(ByteString key) {
+    return ranges.higherKey(key);
+  }
+
+  public boolean containsStartKey(ByteString startKey) {
+    return ranges.containsKey(startKey);
+  }
+
+  /**
+   * @return whether the key is in [start, end), null end means no upper bound
+   */
+  public static boolean inRange(ByteString key, ByteString start, ByteString end) {
+    return KEY_COMPARATOR.compare(key, start) >= 0
+        && (end == null || KEY_COMPARATOR.compare(key, end) < 0);
+  }
+
+  /**
+   * @return all groups owning a range or serving its reads, including the meta group 
+   * if it owns keys before the first range
+   */
+  public Set<Integer> getGroupIds() {
+    Set<Integer> groups = new TreeSet<>();
+    for(Owner owner: ranges.values()) {
+      groups.add(owner.groupId);
+      groups.add(owner.getReadGroupId());
+    }
+    if(ranges.isEmpty() || !ranges.firstKey().isEmpty()) {
+      groups.add(META_GROUP_ID);
+    }
+    return groups;
+  }
+
+  public int size() {
+    return ranges.size();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[");
+    for(Map.Entry<ByteString, Owner> entry: ranges.entrySet()) {
+      if(sb.length() > 1) {
+        sb.append(", ");
+      }
+      sb.append(entry.getKey().toStringUtf8() + "=>" + entry.getValue());
+    }
+    return sb.append("]").toString();
+  }
+
+  /**
+   * Immutable, so that readers see the group and the fence of a range updated together.
+   */
+  private static class Owner {
+    private final int groupId;
+    private final int movingFrom;
+
+    Owner(int groupId, int movingFrom) {
+      this.groupId = groupId;
+      this.movingFrom = movingFrom;
+    }
+
+    int getReadGroupId() {
+      return movingFrom == NOT_MOVING ? groupId : movingFrom;
+    }
+
+    @Override
+    public String toString() {
+      return movingFrom == NOT_MOVING ? String.valueOf(groupId) : groupId + "(moving from " + movingFrom + ")";
+    }
+  }
+}
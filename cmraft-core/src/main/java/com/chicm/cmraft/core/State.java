@@ -27,6 +27,8 @@ package com.chicm.cmraft.core;
  */
 public enum State {
   FOLLOWER,
+  /** Probing with PreVote RPCs whether an election could be won, term is not increased yet. */
+  PRE_CANDIDATE,
   CANDIDATE,
   LEADER;
 }
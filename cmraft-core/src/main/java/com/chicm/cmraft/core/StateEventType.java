@@ -23,7 +23,10 @@ package com.chicm.cmraft.core;
 public enum StateEventType {
   TIMEOUT,
   VOTE_RECEIVED_ONE,
+  PRE_VOTE_RECEIVED_MAJORITY,
   VOTE_RECEIVED_MAJORITY,
   DISCOVERD_LEADER,
-  DISCOVERD_HIGHER_TERM;
+  DISCOVERD_HIGHER_TERM,
+  LOST_QUORUM,
+  TIMEOUT_NOW;
 }
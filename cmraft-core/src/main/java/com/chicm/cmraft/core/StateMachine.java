@@ -39,7 +39,15 @@ import org.apache.commons.logging.LogFactory;
  * Respond to RPCs from candidates and leaders
  * If election timeout elapses without receiving AppendEntries
  * RPC from current leader or granting vote to candidate:
- * convert to candidate
+ * convert to pre-candidate
+
+ * If TimeoutNow RPC received from leader: convert to candidate
+
+ * Pre-candidates :
+ * Send PreVote RPCs to all other servers, without increasing currentTerm
+ * If pre-votes received from majority of servers: convert to candidate
+ * If AppendEntries RPC received from leader: convert to follower
+ * If election timeout elapses: start new pre-vote
 
  * Candidates :
  * On conversion to candidate, start election:
@@ -67,6 +75,10 @@ import org.apache.commons.logging.LogFactory;
  * If there exists an N such that N > commitIndex, a majority
  * of matchIndex[i] >= N, and log[N].term == currentTerm:
  * set commitIndex = N 
+ * If majority of servers have not responded within election timeout
+ * (CheckQuorum): convert to follower
+ * To transfer leadership: stop accepting commands, bring target
+ * server up to date, then send TimeoutNow RPC to it
  * 
  * 
  * @author chicm
@@ -114,6 +126,15 @@ public class StateMachine {
     return oldState;
   }
   
+  public State preVoteReceived() {
+    State oldState = getState();
+    if(accepting(StateEventType.PRE_VOTE_RECEIVED_MAJORITY)) {
+        state = transitionMap.get(state).get(StateEventType.PRE_VOTE_RECEIVED_MAJORITY);
+    }
+    notifyIfStateChange(oldState, state);
+    return oldState;
+  }
+  
   public State voteReceived() {
     State oldState = getState();
     if(accepting(StateEventType.VOTE_RECEIVED_MAJORITY)) {
@@ -141,20 +162,47 @@ public class StateMachine {
     return oldState;
   }
     
+  public State timeoutNow() {
+    State oldState = getState();
+    if(accepting(StateEventType.TIMEOUT_NOW)) {
+      state = transitionMap.get(state).get(StateEventType.TIMEOUT_NOW);
+    }
+    notifyIfStateChange(oldState, state);
+    return oldState;
+  }
+    
+  public State lostQuorum() {
+    State oldState = getState();
+    if(accepting(StateEventType.LOST_QUORUM)) {
+      state = transitionMap.get(state).get(StateEventType.LOST_QUORUM);
+    }
+    notifyIfStateChange(oldState, state);
+    return oldState;
+  }
+    
   private void buildTransitionMap() {
     HashMap<StateEventType, State> followerMap = new HashMap<>(); 
+    HashMap<StateEventType, State> preCandidateMap = new HashMap<>(); 
     HashMap<StateEventType, State> candidateMap = new HashMap<>(); 
     HashMap<StateEventType, State> leaderMap = new HashMap<>(); 
     
-    followerMap.put(StateEventType.TIMEOUT, State.CANDIDATE);
+    followerMap.put(StateEventType.TIMEOUT, State.PRE_CANDIDATE);
+    followerMap.put(StateEventType.TIMEOUT_NOW, State.CANDIDATE);
+    
+    preCandidateMap.put(StateEventType.PRE_VOTE_RECEIVED_MAJORITY, State.CANDIDATE);
+    preCandidateMap.put(StateEventType.DISCOVERD_LEADER, State.FOLLOWER);
+    preCandidateMap.put(StateEventType.DISCOVERD_HIGHER_TERM, State.FOLLOWER);
+    preCandidateMap.put(StateEventType.TIMEOUT_NOW, State.CANDIDATE);
     
     candidateMap.put(StateEventType.VOTE_RECEIVED_MAJORITY, State.LEADER);
     candidateMap.put(StateEventType.DISCOVERD_LEADER, State.FOLLOWER);
     candidateMap.put(StateEventType.DISCOVERD_HIGHER_TERM, State.FOLLOWER);
     
     leaderMap.put(StateEventType.DISCOVERD_HIGHER_TERM, State.FOLLOWER);
+    leaderMap.put(StateEventType.LOST_QUORUM, State.FOLLOWER);
     
     transitionMap.put(State.FOLLOWER, followerMap);
+    transitionMap.put(State.PRE_CANDIDATE, preCandidateMap);
     transitionMap.put(State.CANDIDATE, candidateMap);
     transitionMap.put(State.LEADER, leaderMap);
     
@@ -30,11 +30,21 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -45,9 +55,14 @@ import org.apache.commons.logging.LogFactory;
 import com.chicm.cmraft.common.Configuration;
 import com.chicm.cmraft.common.ServerInfo;
 import com.chicm.cmraft.core.RaftNode;
+import com.chicm.cmraft.core.RangeTable;
 import com.chicm.cmraft.core.State;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyRange;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyValuePair;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftLogEntry;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadConsistency;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ServerId;
+import com.chicm.cmraft.rpc.RpcServer;
 import com.chicm.cmraft.rpc.RpcTimeoutException;
 import com.chicm.cmraft.util.BlockingHashMap;
 import com.google.common.base.Preconditions;
@@ -56,10 +71,20 @@ import com.google.protobuf.ByteString;
 public class DefaultRaftLog implements RaftLog {
   static final Log LOG = LogFactory.getLog(DefaultRaftLog.class);
   private static final String RAFT_ROOT_DIR_KEY = "raft.root.dir";
+  private static final String READ_MODE_KEY = "raft.read.mode";
+  /** Reads are served from local state machine of any server, may be stale */
+  public static final String READ_MODE_LOCAL = "local";
+  /** Reads are served by leader only while it holds a lease, opt-in as it relies on 
+   *  clock drift being bounded by raft.lease.max.clock.drift */
+  public static final String READ_MODE_LEASE = "lease";
+  /** Reads are served by leader after confirming leadership with a heartbeat round, default */
+  public static final String READ_MODE_READINDEX = "readindex";
   private static final int DEFAULT_COMMIT_TIMEOUT = 5000;
   private Configuration conf;
-  private SortedMap<Long, RaftLogEntry> entries = new TreeMap<>();
+  private ConcurrentNavigableMap<Long, RaftLogEntry> entries = new ConcurrentSkipListMap<>();
   private ConcurrentHashMap<ByteString, ByteString> keyValues = new ConcurrentHashMap<>();
+  /** Key ranges of raft groups, only updated in the meta group */
+  private final RangeTable rangeTable = new RangeTable();
   private final static long INITIAL_TERM = 0;
   private RaftNode node;
   private final AtomicLong commitIndex = new AtomicLong(0);
@@ -68,21 +93,42 @@ public class DefaultRaftLog implements RaftLog {
      so the first index is 1. */
   private final AtomicLong lastApplied = new AtomicLong(0);
   
+  /** Index of the no-op entry appended by current leader at the beginning of its term,
+   *  leader's state machine is not up to date until this entry is committed. */
+  private final AtomicLong termStartIndex = new AtomicLong(Long.MAX_VALUE);
+  
+  /** Highest index applied to the key value state machine, entries are applied 
+   *  in index order, and only after committed */
+  private final AtomicLong appliedIndex = new AtomicLong(0);
+  
+  /** Latest commit index received from leader, used by followers to measure lag. Recorded 
+   *  even when the AppendEntries RPC fails the consistency check, so that a follower 
+   *  whose appends are rejected knows how far behind it is. */
+  private final AtomicLong leaderCommitIndex = new AtomicLong(0);
+  /** Last time an AppendEntries RPC from leader passed the consistency check, used by 
+   *  followers to measure staleness */
+  private volatile long lastAppendTime = 0;
+  private final ReentrantLock appliedLock = new ReentrantLock();
+  private final Condition entryApplied = appliedLock.newCondition();
+  
+  private String readMode;
+  
   /** followerIndexes contains:
    * nextIndex[] for each server, index of the next log entry
    *  to send to that server (initialized to leaderlast log index + 1)
    * matchIndex[] for each server, index of highest log entry
    *  known to be replicated on server (initialized to 0, increases monotonically)
    */
-  private Map<ServerInfo, FollowerIndexes> followerIndexes = new ConcurrentHashMap<>();
-  
-  /** AppendEntries RPC response counter, to convert entry from applied to commit 
-   *  once get more than half success response */
-  private ResponseBag<Long> responseBag = new ResponseBag<Long>();
+  private ConcurrentHashMap<ServerInfo, FollowerIndexes> followerIndexes = new ConcurrentHashMap<>();
   
   private BlockingHashMap<Long, Boolean> rpcResults = new BlockingHashMap<>();
   
-  private int nTotalServers = 0;
+  /** Indexes of the entries appended by this leader which are still waiting to be committed */
+  private Set<Long> pendingIndexes = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+  
+  /** Whether sending appended entries to followers is already queued to the event loop, 
+   *  only accessed on event loop */
+  private boolean replicationScheduled = false;
   
   private ServerInfo thisServer;
   
@@ -90,9 +136,9 @@ public class DefaultRaftLog implements RaftLog {
     this.node = node;
     this.conf = conf;
     thisServer = node.getServerInfo();
+    readMode = conf.getString(READ_MODE_KEY, READ_MODE_READINDEX).trim();
     
     loadPersistentData();
-    startFlushWorker();
   }
   
   public String getServerName() {
@@ -106,17 +152,159 @@ public class DefaultRaftLog implements RaftLog {
   private void leaderInit() {
     LOG.info(getServerName() + ": LEADER INIT");
     
+    followerIndexes.clear();
     for(ServerInfo remoteServer: node.getRemoteServers()) {
-      FollowerIndexes fIndexes = new FollowerIndexes(getLastApplied() +1, 0);
-      followerIndexes.put(remoteServer, fIndexes);
+      getFollowerIndexes(remoteServer);
     }
     
-    // including local server + remote servers
-    nTotalServers = node.getRemoteServers().size() + 1;
+    termStartIndex.set(Long.MAX_VALUE);
+    appendNoop();
+  }
+  
+  /**
+   * A new leader does not know which entries are committed until it commits an
+   * entry from its own term, so it appends a no-op entry right after election.
+   * Runs on event loop, nobody waits for the no-op entry to be committed.
+   */
+  private void appendNoop() {
+    RaftLogEntry.Builder builder = RaftLogEntry.newBuilder();
+    builder.setMode(RaftLogEntry.MutationMode.NOOP);
+    termStartIndex.set(append(builder, false));
+  }
+  
+  /**
+   * Check whether reads can be served from local state machine, 
+   * according to the configured read mode.
+   */
+  private boolean isReadable() {
+    if(READ_MODE_LOCAL.equals(readMode)) {
+      return true;
+    }
+    if(!node.isLeader()) {
+      return readIndexFromLeader();
+    }
+    if(READ_MODE_READINDEX.equals(readMode)) {
+      return readIndex();
+    }
+    if(getCommitIndex() < termStartIndex.get()) {
+      return false;
+    }
+    return node.hasValidLease() || node.renewLease();
+  }
+  
+  /**
+   * ReadIndex: record current commit index, confirm leadership with a heartbeat round
+   * shared by concurrent reads, then wait until the state machine catches up with
+   * the recorded index.
+   */
+  private boolean readIndex() {
+    long readIndex = getReadIndex();
+    if(readIndex < 0) {
+      return false;
+    }
+    return waitForApplied(readIndex, DEFAULT_COMMIT_TIMEOUT);
+  }
+  
+  /**
+   * Followers get a read index from leader, and wait until the local state machine 
+   * catches up with it.
+   */
+  private boolean readIndexFromLeader() {
+    ServerInfo leader = node.getCurrentLeader();
+    if(leader == null) {
+      return false;
+    }
+    long readIndex = node.getNodeConnectionManager().readIndex(leader);
+    if(readIndex < 0) {
+      return false;
+    }
+    return waitForApplied(readIndex, DEFAULT_COMMIT_TIMEOUT);
+  }
+  
+  /**
+   * Record current commit index and confirm leadership, leadership confirmation is 
+   * skipped while holding a valid lease in lease read mode.
+   * @return the read index, or -1 if this server is not leader or failed to confirm leadership
+   */
+  @Override
+  public long getReadIndex() {
+    if(!node.isLeader() || getCommitIndex() < termStartIndex.get()) {
+      return -1;
+    }
+    long readIndex = getCommitIndex();
+    if(!(READ_MODE_LEASE.equals(readMode) && node.hasValidLease()) && !node.confirmLeadership()) {
+      return -1;
+    }
+    return readIndex;
+  }
+  
+  /**
+   * Wait until entries appended so far, including the ones of writes whose clients 
+   * timed out, are applied to the state machine. 
+   * @return false if this server is not leader, or timeout
+   */
+  @Override
+  public boolean awaitApplied(long timeout) {
+    if(!node.isLeader()) {
+      return false;
+    }
+    return waitForApplied(getLastApplied(), timeout);
+  }
+  
+  /**
+   * Check whether local state machine is fresh enough for a bounded staleness read.
+   * @param maxStalenessMs max time since the last successful AppendEntries RPC from leader, 
+   * negative if not bounded
+   * @param maxLagIndex max number of entries behind leader's commit index, negative if not bounded
+   */
+  private boolean isFreshEnough(long maxStalenessMs, long maxLagIndex) {
+    if(node.isLeader()) {
+      return node.hasValidLease();
+    }
+    if(node.getCurrentLeader() == null) {
+      return false;
+    }
+    if(maxStalenessMs >= 0 && System.currentTimeMillis() - lastAppendTime > maxStalenessMs) {
+      return false;
+    }
+    if(maxLagIndex >= 0 && leaderCommitIndex.get() - appliedIndex.get() > maxLagIndex) {
+      return false;
+    }
+    return true;
+  }
+  
+  /**
+   * Block until entries up to the specified index are applied to the state machine.
+   * @return false if timeout
+   */
+  private boolean waitForApplied(long index, long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    appliedLock.lock();
+    try {
+      while(appliedIndex.get() < index) {
+        long remaining = deadline - System.currentTimeMillis();
+        if(remaining <= 0) {
+          LOG.warn(getServerName() + ": timeout waiting for index applied:" + index);
+          return false;
+        }
+        entryApplied.await(remaining, TimeUnit.MILLISECONDS);
+      }
+    } catch(InterruptedException e) {
+      LOG.info(getServerName() + ": waitForApplied interrupted");
+      return false;
+    } finally {
+      appliedLock.unlock();
+    }
+    return true;
   }
   
   private void cleanupLeaderWorker() {
-    
+    // no longer leader, fail the pending requests right away instead of letting them time out,
+    // so that clients can retry with the new leader.
+    for(Long index: pendingIndexes) {
+      LOG.info(getServerName() + ": not leader any more, failing pending entry:" + index);
+      putResult(index, false);
+    }
   }
   
   @Override
@@ -129,14 +317,30 @@ public class DefaultRaftLog implements RaftLog {
     }
   }
   
+  /**
+   * Followers may join the cluster while this server is leader, 
+   * their indexes are initialized on first access.
+   */
+  private FollowerIndexes getFollowerIndexes(ServerInfo follower) {
+    FollowerIndexes fIndexes = followerIndexes.get(follower);
+    if(fIndexes == null) {
+      fIndexes = new FollowerIndexes(getLastApplied() +1, 0);
+      FollowerIndexes existing = followerIndexes.putIfAbsent(follower, fIndexes);
+      if(existing != null) {
+        fIndexes = existing;
+      }
+    }
+    return fIndexes;
+  }
+  
   @Override
   public long getFollowerMatchIndex(ServerInfo follower) {
-    return followerIndexes.get(follower).getMatchIndex();
+    return getFollowerIndexes(follower).getMatchIndex();
   }
   
   // todo - implemnet nextIndex logic on appendEntries failure
   public long getFollowerNextIndex(ServerInfo follower) {
-    return followerIndexes.get(follower).getNextIndex();
+    return getFollowerIndexes(follower).getNextIndex();
   }
   
   @Override
@@ -202,7 +406,7 @@ public class DefaultRaftLog implements RaftLog {
     flushedIndex.set(index);
   }
   
-  // for followers
+  // for followers, runs on event loop
   @Override
   public boolean appendEntries(long term, ServerInfo leaderId, long leaderCommit,
       long prevLogIndex, long prevLogTerm, List<RaftLogEntry> leaderEntries) {
@@ -213,6 +417,9 @@ public class DefaultRaftLog implements RaftLog {
     if(term < node.getCurrentTerm()) {
       return false;
     }
+    if(leaderCommit > leaderCommitIndex.get()) {
+      leaderCommitIndex.set(leaderCommit);
+    }
     
     if(prevLogIndex > 0) {
       if(!this.entries.containsKey(prevLogIndex)) {
@@ -225,16 +432,31 @@ public class DefaultRaftLog implements RaftLog {
     
     //append entries
     //need to assure that the entries are sorted before hand.
+    long lastNewIndex = prevLogIndex;
     for(RaftLogEntry entry: leaderEntries) {
+      RaftLogEntry existing = entries.get(entry.getIndex());
+      if(existing != null && existing.getTerm() != entry.getTerm()) {
+        // conflicting entries from a previous leader were never committed, remove them
+        LOG.info(getServerName() + ": removing conflicting entries from index:" + entry.getIndex());
+        entries.tailMap(entry.getIndex()).clear();
+        setLastApplied(entry.getIndex() - 1);
+        restoreConfiguration();
+      }
       entries.put(entry.getIndex(), entry);
-      applyKeyValueLog(entry.getIndex());
+      if(isConfiguration(entry)) {
+        applyConfiguration(entry);
+      }
       if(entry.getIndex() > getLastApplied()) {
         setLastApplied(entry.getIndex());
       }
+      lastNewIndex = Math.max(lastNewIndex, entry.getIndex());
     } 
 
-    if(leaderCommit > getCommitIndex()) {
-      setCommitIndex(Math.min(getLastApplied(), leaderCommit));
+    lastAppendTime = System.currentTimeMillis();
+    // only entries known to match leader's log can be committed
+    if(Math.min(lastNewIndex, leaderCommit) > getCommitIndex()) {
+      setCommitIndex(Math.min(lastNewIndex, leaderCommit));
+      applyCommitted(getCommitIndex());
       //to-do: need to be done asynchronously
       flushCommitted();
     }
@@ -246,43 +468,140 @@ public class DefaultRaftLog implements RaftLog {
     LOG.debug(getServerName() + "follower appending entry... done");
     return true;
   }
-  // for leaders
+  // for leaders, may be called from any thread
   @Override
-  public void onAppendEntriesResponse(ServerInfo follower, long followerTerm, boolean success, 
-      long followerLastApplied) {
+  public void onAppendEntriesResponse(final ServerInfo follower, final long followerTerm, 
+      final boolean success, final long followerLastApplied) {
+    if(!node.getEventLoop().inEventLoop()) {
+      node.getEventLoop().execute(new Runnable() {
+        @Override
+        public void run() {
+          onAppendEntriesResponse(follower, followerTerm, success, followerLastApplied);
+        }
+      });
+      return;
+    }
     LOG.debug(getServerName() + ": onAppendEntriesResponse");
-    updateFollowerMatchIndexes(follower, followerLastApplied);
-    if(!success) {
+    if(!node.isLeader() || !success) {
       return;
     }
-    responseBag.add(followerLastApplied, 1);
-    //checkAndCommit(followerLastApplied);
+    updateFollowerMatchIndexes(follower, followerLastApplied);
     if(followerLastApplied <= getCommitIndex()) {
       return;
     }
-    // consider local server is already committed
-    if(responseBag.get(followerLastApplied)+1 > nTotalServers/2) {
+    // consider local server is already committed, an entry is committed once 
+    // it is replicated on a quorum of current configuration
+    Set<ServerInfo> replicated = new HashSet<>();
+    replicated.add(thisServer);
+    for(Map.Entry<ServerInfo, FollowerIndexes> entry: followerIndexes.entrySet()) {
+      if(entry.getValue().getMatchIndex() >= followerLastApplied) {
+        replicated.add(entry.getKey());
+      }
+    }
+    if(node.getMemberManager().isQuorum(replicated)) {
       LOG.info(getServerName() + ": committed, index:" + followerLastApplied);
-      rpcResults.put(followerLastApplied, true);
+      commitLog(followerLastApplied);
+      // committing an entry commits all entries before it
+      for(Long index: pendingIndexes) {
+        if(index <= followerLastApplied) {
+          putResult(index, true);
+        }
+      }
     }
   }
   
-  // commit the specified log
+  // commit the specified log, runs on event loop
   private void commitLog(long index) {
-    setCommitIndex(index);
-    replayKeyValueLogEntries(index, index);
+    if(index > getCommitIndex()) {
+      setCommitIndex(index);
+    }
+    applyCommitted(index);
     flushCommitted();
   //to-do: need to notify followers after commit
   }
   
   private void updateFollowerMatchIndexes(ServerInfo follower, long lastApplied) {
-    if(followerIndexes.get(follower) == null) {
-      LOG.error("FOLLOWER INDEXES MAP SHOULD BE INITIALIZED BEFORE HERE.");
+    FollowerIndexes fIndexes = getFollowerIndexes(follower);
+    synchronized(fIndexes) {
+      if(fIndexes.getMatchIndex() < lastApplied) {
+        fIndexes.setMatchIndex(lastApplied);
+      }
     }
-    
-    if(followerIndexes.get(follower).getMatchIndex() < lastApplied) {
-      followerIndexes.get(follower).setMatchIndex(lastApplied);
+  }
+  
+  /**
+   * Append a configuration entry and replicate it, C_OLDNEW entry if newMembers is not null, 
+   * otherwise C_NEW entry. Configuration takes effect once appended to the log, 
+   * without waiting for it to be committed.
+   * @return true if the entry is committed
+   */
+  @Override
+  public boolean appendConfiguration(Set<ServerInfo> members, Set<ServerInfo> newMembers, 
+      Set<ServerInfo> learners) {
+    Preconditions.checkNotNull(members);
+    Preconditions.checkNotNull(learners);
+    if(!node.isLeader()) {
+      LOG.info(getServerName() + ": configuration change rejected, not leader");
+      return false;
+    }
+    RaftLogEntry.Builder builder = RaftLogEntry.newBuilder();
+    if(newMembers != null) {
+      builder.setMode(RaftLogEntry.MutationMode.C_OLDNEW);
+      for(ServerInfo server: members) {
+        builder.addOldServers(server.toServerId());
+      }
+      for(ServerInfo server: newMembers) {
+        builder.addNewServers(server.toServerId());
+      }
+    } else {
+      builder.setMode(RaftLogEntry.MutationMode.C_NEW);
+      for(ServerInfo server: members) {
+        builder.addNewServers(server.toServerId());
+      }
+    }
+    for(ServerInfo server: learners) {
+      builder.addLearners(server.toServerId());
+    }
+    return replicate(builder);
+  }
+  
+  private static boolean isConfiguration(RaftLogEntry entry) {
+    return entry.hasMode() && (entry.getMode() == RaftLogEntry.MutationMode.C_OLDNEW 
+        || entry.getMode() == RaftLogEntry.MutationMode.C_NEW);
+  }
+  
+  private void applyConfiguration(RaftLogEntry entry) {
+    Set<ServerInfo> newServers = new HashSet<>();
+    for(ServerId server: entry.getNewServersList()) {
+      newServers.add(ServerInfo.copyFrom(server));
+    }
+    Set<ServerInfo> learners = new HashSet<>();
+    for(ServerId server: entry.getLearnersList()) {
+      learners.add(ServerInfo.copyFrom(server));
+    }
+    if(entry.getMode() == RaftLogEntry.MutationMode.C_OLDNEW) {
+      Set<ServerInfo> oldServers = new HashSet<>();
+      for(ServerId server: entry.getOldServersList()) {
+        oldServers.add(ServerInfo.copyFrom(server));
+      }
+      node.applyConfiguration(oldServers, newServers, learners);
+    } else {
+      node.applyConfiguration(newServers, null, learners);
+    }
+  }
+  
+  /**
+   * Servers use the latest configuration in their log, whether or not it is committed.
+   * Go back to the configuration from configuration file if there is none.
+   */
+  private void restoreConfiguration() {
+    for(RaftLogEntry entry: entries.descendingMap().values()) {
+      if(isConfiguration(entry)) {
+        applyConfiguration(entry);
+        return;
+      }
     }
+    node.resetConfiguration();
   }
   
   @Override
@@ -290,57 +609,177 @@ public class DefaultRaftLog implements RaftLog {
     LOG.debug(getServerName() + ": set request received");
     Preconditions.checkArgument(!kv.getKey().isEmpty());
     Preconditions.checkArgument(!kv.getValue().isEmpty());
-    //lastApplied initialized as 0, and the first time increase it to 1,
-    //so the first index is 1
+    if(!node.isLeader()) {
+      LOG.info(getServerName() + ": set request rejected, not leader");
+      return false;
+    }
+    if(node.isTransferringLeadership()) {
+      LOG.info(getServerName() + ": set request rejected, transferring leadership");
+      return false;
+    }
     //LogEntry entry = new LogEntry(lastApplied.incrementAndGet(), node.getCurrentTerm(), key, value, LogMutationType.SET);
     RaftLogEntry.Builder builder = RaftLogEntry.newBuilder();
     builder.setKv(kv);
-    builder.setIndex(lastApplied.incrementAndGet());
-    builder.setTerm(node.getCurrentTerm());
     builder.setMode(RaftLogEntry.MutationMode.SET);
-    RaftLogEntry entry = builder.build();
     
-    entries.put(entry.getIndex(), entry);
+    return replicate(builder);
+  }
+  
+  /**
+   * Append the entry to local log on event loop, and wait until it is committed.
+   * Must not be called from event loop.
+   * @param builder entry without index and term, which are assigned when appended
+   * @return true if the entry is committed 
+   */
+  private boolean replicate(final RaftLogEntry.Builder builder) {
+    long index = node.getEventLoop().call(new Callable<Long>() {
+      @Override
+      public Long call() {
+        return append(builder, true);
+      }
+    });
+    if(index < 0) {
+      return false;
+    }
     
-    boolean committed = true;
-    //making rpc call to followers
-    if(!node.getNodeConnectionManager().getRemoteServers().isEmpty()) {
-      committed = false;
-      node.getNodeConnectionManager().appendEntries(this, entry.getIndex());
-      //waiting for results
-      try {
-        committed = rpcResults.take(entry.getIndex(), DEFAULT_COMMIT_TIMEOUT);
-      } catch(RpcTimeoutException e) {
-        LOG.error(e.getMessage());
-        return false;
+    //waiting for results
+    Boolean committed = null;
+    try {
+      committed = rpcResults.take(index, DEFAULT_COMMIT_TIMEOUT);
+      LOG.debug(getServerName() + ": set committed, sending response");
+    } catch(RpcTimeoutException e) {
+      LOG.error(e.getMessage());
+    } finally {
+      if(committed == null) {
+        discardResult(index);
+      }
+    }
+    return committed != null && committed;
+  }
+  
+  // runs on event loop, the result of each pending entry is put once
+  private void putResult(long index, boolean committed) {
+    if(pendingIndexes.remove(index)) {
+      rpcResults.put(index, committed);
+    }
+  }
+  
+  // results are only put on event loop, no result of the entry can be put after this runs
+  private void discardResult(final long index) {
+    node.getEventLoop().execute(new Runnable() {
+      @Override
+      public void run() {
+        pendingIndexes.remove(index);
+        rpcResults.remove(index);
       }
+    });
+  }
+  
+  /**
+   * Append an entry to local log, runs on event loop. Entries appended in the same 
+   * batch of events are sent to followers together.
+   * @param wait whether the caller waits for the result in rpcResults
+   * @return index of the entry, or -1 if not leader
+   */
+  private long append(RaftLogEntry.Builder builder, boolean wait) {
+    if(!node.isLeader()) {
+      LOG.info(getServerName() + ": append rejected, not leader");
+      return -1;
     }
-    if(committed) {
+    //lastApplied initialized as 0, and the first time increase it to 1,
+    //so the first index is 1
+    builder.setIndex(getLastApplied() + 1);
+    builder.setTerm(node.getCurrentTerm());
+    RaftLogEntry entry = builder.build();
+    entries.put(entry.getIndex(), entry);
+    setLastApplied(entry.getIndex());
+    if(isConfiguration(entry)) {
+      applyConfiguration(entry);
+    }
+    
+    if(wait) {
+      pendingIndexes.add(entry.getIndex());
+    }
+    if(node.getNodeConnectionManager().getRemoteServers().isEmpty()) {
       commitLog(entry.getIndex());
+      if(wait) {
+        rpcResults.put(entry.getIndex(), true);
+      }
+    } else if(!replicationScheduled) {
+      //queued after the proposals already waiting in the event loop
+      replicationScheduled = true;
+      node.getEventLoop().execute(new Runnable() {
+        @Override
+        public void run() {
+          replicationScheduled = false;
+          if(node.isLeader()) {
+            node.getNodeConnectionManager().appendEntries(DefaultRaftLog.this, getLastApplied());
+          }
+        }
+      });
     }
-    LOG.debug(getServerName() + ": set committed, sending response");
-    return committed;
+    return entry.getIndex();
   }
   
   @Override
   public byte[] get(byte[] key) {
     Preconditions.checkNotNull(key);
     Preconditions.checkArgument(key.length > 0);
+    if(!isReadable()) {
+      LOG.info(getServerName() + ": get request rejected, read mode:" + readMode);
+      return null;
+    }
+    
+    return toByteArray(localGet(ByteString.copyFrom(key)));
+  }
+  
+  @Override
+  public byte[] get(byte[] key, ReadConsistency consistency, long maxStalenessMs, long maxLagIndex) {
+    Preconditions.checkNotNull(key);
+    return toByteArray(get(ByteString.copyFrom(key), consistency, maxStalenessMs, maxLagIndex));
+  }
+  
+  @Override
+  public ByteString get(ByteString key, ReadConsistency consistency, long maxStalenessMs, 
+      long maxLagIndex) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkArgument(!key.isEmpty());
     
-    ByteString result = keyValues.get(ByteString.copyFrom(key));
-    if(result != null)
-      return result.toByteArray();
-    else
+    if(consistency == ReadConsistency.ANY) {
+      return localGet(key);
+    } else if(consistency == ReadConsistency.BOUNDED_STALENESS 
+        && isFreshEnough(maxStalenessMs, maxLagIndex)) {
+      return localGet(key);
+    }
+    // linearizable, or not fresh enough for bounded staleness
+    if(!isReadable()) {
+      LOG.info(getServerName() + ": get request rejected, read mode:" + readMode);
       return null;
+    }
+    return localGet(key);
+  }
+  
+  private ByteString localGet(ByteString key) {
+    return keyValues.get(key);
+  }
+  
+  private static byte[] toByteArray(ByteString value) {
+    return value == null ? null : value.toByteArray();
   }
   
   @Override
   public boolean delete(byte[] key) {
-    //lastApplied initialized as 0, and the first time increase it to 1,
-    //so the first index is 1
     //LogEntry entry = new LogEntry(lastApplied.incrementAndGet(), node.getCurrentTerm(), key, null, LogMutationType.DELETE);
     Preconditions.checkNotNull(key);
     Preconditions.checkArgument(key.length > 0);
+    if(!node.isLeader()) {
+      LOG.info(getServerName() + ": delete request rejected, not leader");
+      return false;
+    }
+    if(node.isTransferringLeadership()) {
+      LOG.info(getServerName() + ": delete request rejected, transferring leadership");
+      return false;
+    }
     
     ByteString bsKey = ByteString.copyFrom(key);
     if(!keyValues.containsKey(bsKey)) {
@@ -352,31 +791,9 @@ public class DefaultRaftLog implements RaftLog {
     
     RaftLogEntry.Builder builder = RaftLogEntry.newBuilder();
     builder.setKv(kvBuilder.build());
-    builder.setIndex(lastApplied.incrementAndGet());
-    builder.setTerm(node.getCurrentTerm());
     builder.setMode(RaftLogEntry.MutationMode.DELETE);
-    RaftLogEntry entry = builder.build();
-    
-    entries.put(entry.getIndex(), entry);
     
-    boolean committed = true;
-    //making rpc call to followers
-    if(!node.getNodeConnectionManager().getRemoteServers().isEmpty()) {
-      committed = false;
-      node.getNodeConnectionManager().appendEntries(this, entry.getIndex());
-      //waiting for results
-      try {
-        committed = rpcResults.take(entry.getIndex(), DEFAULT_COMMIT_TIMEOUT);
-      } catch(RpcTimeoutException e) {
-        LOG.error(e.getMessage());
-        return false;
-      }
-    }
-    if(committed) {
-      commitLog(entry.getIndex());
-    }
-    LOG.debug(getServerName() + ": set committed, sending response");
-    return committed;
+    return replicate(builder);
   }
   
   @Override
@@ -392,11 +809,56 @@ public class DefaultRaftLog implements RaftLog {
     return result;
   }
   
-  private void replayKeyValueLogEntries(long startIndex, long endIndex) {
-    Preconditions.checkArgument(startIndex <= getLastApplied() && startIndex >= 0);
-    Preconditions.checkArgument(endIndex <= getLastApplied() && endIndex >= 0);
-    for(long index = startIndex; index <= endIndex; index++) {
-      applyKeyValueLog(index);
+  @Override
+  public RangeTable getRangeTable() {
+    return rangeTable;
+  }
+  
+  @Override
+  public boolean updateRange(KeyRange range, boolean remove) {
+    Preconditions.checkNotNull(range);
+    if(node.getGroupId() != RangeTable.META_GROUP_ID) {
+      LOG.error(getServerName() + ": range update rejected, not meta group");
+      return false;
+    }
+    if(!node.isLeader()) {
+      LOG.info(getServerName() + ": range update rejected, not leader");
+      return false;
+    }
+    if(node.isTransferringLeadership()) {
+      LOG.info(getServerName() + ": range update rejected, transferring leadership");
+      return false;
+    }
+    if(remove && !rangeTable.containsStartKey(range.getStartKey())) {
+      return false;
+    }
+    
+    RaftLogEntry.Builder builder = RaftLogEntry.newBuilder();
+    builder.setRange(range);
+    builder.setMode(remove ? RaftLogEntry.MutationMode.RANGE_DELETE : RaftLogEntry.MutationMode.RANGE_SET);
+    
+    return replicate(builder);
+  }
+  
+  /**
+   * Apply committed entries up to the specified index to the state machine, in index order.
+   * Committing an entry implies all entries before it are committed.
+   */
+  private void applyCommitted(long index) {
+    Preconditions.checkArgument(index <= getLastApplied() && index >= 0);
+    appliedLock.lock();
+    try {
+      for(long i = appliedIndex.get() + 1; i <= index; i++) {
+        if(!entries.containsKey(i)) {
+          LOG.warn(getServerName() + ": committed entry missing, index:" + i);
+          break;
+        }
+        applyKeyValueLog(i);
+        appliedIndex.set(i);
+      }
+      entryApplied.signalAll();
+    } finally {
+      appliedLock.unlock();
     }
   }
   
@@ -406,6 +868,10 @@ public class DefaultRaftLog implements RaftLog {
       keyValues.put(log.getKv().getKey(), log.getKv().getValue());
     } else if(log.hasMode() && log.getMode() == RaftLogEntry.MutationMode.DELETE) {
       keyValues.remove(log.getKv().getKey());
+    } else if(log.hasMode() && log.getMode() == RaftLogEntry.MutationMode.RANGE_SET) {
+      rangeTable.put(log.getRange());
+    } else if(log.hasMode() && log.getMode() == RaftLogEntry.MutationMode.RANGE_DELETE) {
+      rangeTable.remove(log.getRange().getStartKey());
     } else;
   }
   
@@ -417,7 +883,11 @@ public class DefaultRaftLog implements RaftLog {
     
     String rootDir = conf.getString(RAFT_ROOT_DIR_KEY).trim();
     String node = getServerInfo().getHost() + "-" + getServerInfo().getPort();
-    dataFile = Paths.get(rootDir).resolve(node).resolve("data");
+    Path dir = Paths.get(rootDir).resolve(node);
+    if(this.node.getGroupId() != RpcServer.DEFAULT_GROUP_ID) {
+      dir = dir.resolve("group-" + this.node.getGroupId());
+    }
+    dataFile = dir.resolve("data");
 
     return dataFile;
   }
@@ -446,7 +916,7 @@ public class DefaultRaftLog implements RaftLog {
           setLastApplied(maxIndex);
           setFlushedIndex(maxIndex);
           
-          replayKeyValueLogEntries(maxIndex, maxIndex);
+          applyCommitted(maxIndex);
           
         } catch(EOFException e) {
           break;
@@ -459,45 +929,54 @@ public class DefaultRaftLog implements RaftLog {
       //Will not try to load again if exception occurs.
       //so still set loaded mark persistentDataLoaded
     }
+    restoreConfiguration();
     persistentDataLoaded = true;
   }
   
-  /** Lock for flushing committed log */
-  private final ReentrantLock flushLock = new ReentrantLock();
+  /** One thread writes committed entries of all raft logs in the process, 
+   *  so that hosting many raft groups does not need a flush thread for each.
+   *  It does not keep the JVM alive, logs are flushed when their nodes are closed. */
+  private static final ExecutorService flushExecutor = Executors.newSingleThreadExecutor(
+    new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.setName("LogFlushWorker");
+        t.setDaemon(true);
+        return t;
+      }
+  });
   
-  /** Wait condition for flushing committed log */
-  private final Condition needFlush = flushLock.newCondition();
+  /** Whether a flush of this log is already queued to the flush thread */
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
   
   private void flushCommitted() {
-    try {
-      flushLock.lock();
-      needFlush.signal();
-    } finally {
-      flushLock.unlock();
+    if(flushScheduled.compareAndSet(false, true)) {
+      flushExecutor.execute(new LogFlushWorker());
     }
   }
   
-  private void startFlushWorker() {
-    Thread t = new Thread(new LogFlushWorker());
-    t.setName("LogFlushWorker");
-    t.start();
+  /**
+   * Flush committed entries not flushed yet, and wait for the flush to complete.
+   */
+  @Override
+  public void close() {
+    try {
+      flushExecutor.submit(new LogFlushWorker()).get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn(getServerName() + ": close interrupted, committed entries may not be flushed");
+    } catch(ExecutionException e) {
+      LOG.error(getServerName() + ": flush failed on close", e.getCause());
+    }
   }
   
   class LogFlushWorker implements Runnable {
     @Override
     public void run() {
-      while(true) {
-        try {
-          flushLock.lock();
-          while (getFlushedIndex() >= getCommitIndex()) {
-            needFlush.await();
-          }
-        } catch(InterruptedException e) { 
-          LOG.info("Interrupted, LogFlushWorker exiting");
-          return;
-        } finally {
-          flushLock.unlock();
-        }
+      // entries committed from now on need another flush
+      flushScheduled.set(false);
+      if(getFlushedIndex() < getCommitIndex()) {
         doFlush();
       }
     }
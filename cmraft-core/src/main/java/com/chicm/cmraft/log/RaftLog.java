@@ -2,11 +2,16 @@ package com.chicm.cmraft.log;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.core.RangeTable;
 import com.chicm.cmraft.core.State;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyRange;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyValuePair;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftLogEntry;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadConsistency;
+import com.google.protobuf.ByteString;
 
 public interface RaftLog {
   void stateChange(State oldState, State newState);
@@ -23,8 +28,22 @@ public interface RaftLog {
   void onAppendEntriesResponse(ServerInfo follower, long followerTerm, boolean success, 
       long followerLastApplied);
   
+  boolean appendConfiguration(Set<ServerInfo> members, Set<ServerInfo> newMembers, Set<ServerInfo> learners);
+  
   boolean set(KeyValuePair kv);
   byte[] get(byte[] key);
+  byte[] get(byte[] key, ReadConsistency consistency, long maxStalenessMs, long maxLagIndex);
+  // value shared with the state machine, not copied
+  ByteString get(ByteString key, ReadConsistency consistency, long maxStalenessMs, long maxLagIndex);
+  long getReadIndex();
+  // on leader, wait until all entries appended so far are applied to the state machine
+  boolean awaitApplied(long timeout);
   boolean delete(byte[] key);
   Collection<KeyValuePair> list(byte[] pattern);
+  
+  RangeTable getRangeTable();
+  boolean updateRange(KeyRange range, boolean remove);
+  
+  // flush committed entries not written to storage yet
+  void close();
 }
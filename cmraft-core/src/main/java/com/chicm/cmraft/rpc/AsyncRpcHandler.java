@@ -0,0 +1,40 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.Message;
+
+/**
+ * Handles requests of one RaftService method without holding a thread of its lane while 
+ * the response is pending, see RpcServer.registerAsyncHandler. 
+ * @author chicm
+ *
+ */
+public interface AsyncRpcHandler {
+  /**
+   * Called on the executor of the request's lane, it must not block.
+   * @param groupId raft group in request header
+   * @return future of the response, it is sent by the thread completing the future. 
+   * A failed future is responded with an error.
+   */
+  ListenableFuture<? extends Message> handle(int groupId, Message request);
+}
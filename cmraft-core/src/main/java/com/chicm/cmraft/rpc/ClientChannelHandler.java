@@ -5,23 +5,17 @@ import java.util.List;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.chicm.cmraft.core.RaftRpcService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RequestHeader;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.ResponseHeader;
-import com.chicm.cmraft.util.BlockingHashMap;
-import com.google.protobuf.BlockingService;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.Message;
 import com.google.protobuf.Descriptors.MethodDescriptor;
-import com.google.protobuf.Message.Builder;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufInputStream;
-import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.handler.codec.MessageToMessageEncoder;
 
@@ -30,6 +24,9 @@ public class ClientChannelHandler extends ChannelInitializer<Channel>  {
   private static final int MAX_PACKET_SIZE = 1024*1024*100;
   private ChannelHandlerContext activeCtx;
   private RpcClientEventListener listener;
+  /** server supports compact headers, set when the first compact response arrives.
+   *  accessed on the channel's event loop only */
+  private boolean compactHeader = false;
   //private long startTime = System.currentTimeMillis();
   
   public ClientChannelHandler(RpcClientEventListener listener) {
@@ -38,8 +35,7 @@ public class ClientChannelHandler extends ChannelInitializer<Channel>  {
   
   @Override
   protected void initChannel(Channel ch) throws Exception {
-    ch.pipeline().addLast("FrameDecoder", new LengthFieldBasedFrameDecoder(MAX_PACKET_SIZE,0,4,0,4)); 
-    ch.pipeline().addLast("FrameEncoder", new LengthFieldPrepender(4));
+    ch.pipeline().addLast("FrameDecoder", new RpcFrameDecoder(MAX_PACKET_SIZE)); 
     ch.pipeline().addLast("MessageDecoder", new RpcResponseDecoder() );
     ch.pipeline().addLast("MessageEncoder", new RpcRequestEncoder());
     ch.pipeline().addLast("ClientHandler", new RpcResponseHandler());
@@ -75,6 +71,7 @@ public class ClientChannelHandler extends ChannelInitializer<Channel>  {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
       super.channelInactive(ctx);
+      listener.channelClosed();
     }
     
     /* (non-Javadoc)
@@ -83,7 +80,8 @@ public class ClientChannelHandler extends ChannelInitializer<Channel>  {
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         LOG.error("Socket Exception: " + cause.getMessage(), cause);
-        listener.channelClosed();
+        // calls in flight are failed by channelInactive
+        ctx.close();
     }
   }
   
@@ -91,24 +89,38 @@ public class ClientChannelHandler extends ChannelInitializer<Channel>  {
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out)       
         throws Exception {
+      if(RpcHeaderCodec.isCompact(msg)) {
+        compactHeader = true;
+        RpcCall call = RpcHeaderCodec.decode(msg, false);
+        if(call != null) {
+          out.add(call);
+        }
+        return;
+      }
       
-      ByteBufInputStream in = new ByteBufInputStream(msg);
+      CodedInputStream in = RpcHeaderCodec.newInput(msg);
 
-      ResponseHeader.Builder hbuilder = ResponseHeader.newBuilder();
-      hbuilder.mergeDelimitedFrom(in);
-      ResponseHeader header = hbuilder.build();
-
-      BlockingService service = RaftRpcService.create().getService();
-      
-      MethodDescriptor md = service.getDescriptorForType().findMethodByName(header.getResponseName());
-      Builder builder = service.getResponsePrototype(md).newBuilderForType();
-      Message body = null;
-      if (builder != null) {
-        if(builder.mergeDelimitedFrom(in)) {
-          body = builder.build();
-        } else {
-          LOG.error("Parse packet failed!!");
-        }
+      ResponseHeader header = RpcHeaderCodec.parseDelimited(in, ResponseHeader.PARSER);
+      if(header == null) {
+        LOG.error("Parse packet header failed!!");
+        return;
+      }
+      MethodDescriptor md = MethodTable.getMethod(header);
+      // error responses of requests the server could not decode may have no method
+      if(md == null && !header.getError()) {
+        LOG.error("Unknown method in response header, call ID:" + header.getId());
+        return;
+      }
+      if(header.getError()) {
+        RpcCall call = new RpcCall(header.getId(), header, null, md);
+        call.setError(true);
+        call.setBusy(header.getBusy());
+        out.add(call);
+        return;
+      }
+      Message body = RpcHeaderCodec.parseDelimited(in, MethodTable.getResponseParser(md));
+      if(body == null) {
+        LOG.error("Parse packet failed!!");
       }
       RpcCall call = new RpcCall(header.getId(), header, body, md);
 
@@ -119,20 +131,30 @@ public class ClientChannelHandler extends ChannelInitializer<Channel>  {
   class RpcRequestEncoder extends MessageToMessageEncoder<RpcCall> {
     @Override
     protected  void encode(ChannelHandlerContext ctx,  RpcCall call, List<Object> out) throws Exception {
-      //System.out.println("RpcMessageEncoder");
-      int totalSize = PacketUtils.getTotalSizeofMessages(call.getHeader(), call.getMessage());
-      ByteBuf encoded = ctx.alloc().buffer(totalSize);
-      ByteBufOutputStream os = new ByteBufOutputStream(encoded);
+      if(compactHeader) {
+        out.add(RpcHeaderCodec.encodeFrame(ctx.alloc(), call));
+        LOG.debug("Rpc encode: " + call.getCallId());
+        return;
+      }
+      
+      // request name is required by older servers, which ignore compact_header
+      RequestHeader.Builder builder = RequestHeader.newBuilder();
+      builder.setId(call.getCallId()); 
+      builder.setRequestName(call.getMd().getName());
+      builder.setMethodId(MethodTable.getMethodId(call.getMd()));
+      if(call.getGroupId() != RpcServer.DEFAULT_GROUP_ID) {
+        builder.setGroupId(call.getGroupId());
+      }
+      builder.setCompactHeader(true);
+      RequestHeader header = builder.build();
+      
       try {
-        call.getHeader().writeDelimitedTo(os);
-        if (call.getMessage() != null)  {
-          call.getMessage().writeDelimitedTo(os);
-        }
-        out.add(encoded);
+        out.add(RpcHeaderCodec.encodeFrame(ctx.alloc(), header, call.getMessage()));
         LOG.debug("Rpc encode: " + call.getCallId());
       } catch(Exception e) {
         LOG.error("Rpc Encoder exception:" + e.getMessage(), e);
       }
     }
   }
+
 }
@@ -0,0 +1,75 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.chicm.cmraft.common.Configuration;
+
+/**
+ * Client transport shared by all RpcClients in the process. Outbound connections are 
+ * registered to one netty event loop group, so the number of client IO threads is fixed
+ * by configuration and does not grow with the number of connections or reconnects.
+ * The group is created with the configuration of the first RpcClient connecting, on the
+ * transport selected by NettyTransport.
+ * @author chicm
+ *
+ */
+public class ClientTransport {
+  static final Log LOG = LogFactory.getLog(ClientTransport.class);
+  private final static String CLIENT_THREADS_KEY = "raft.rpc.client.threads";
+  private final static int DEFAULT_CLIENT_THREADS = Runtime.getRuntime().availableProcessors();
+  
+  private static ClientTransport instance = null;
+  
+  private final NettyTransport transport;
+  private final EventLoopGroup eventLoopGroup;
+  
+  private ClientTransport(NettyTransport transport, int nThreads) {
+    this.transport = transport;
+    eventLoopGroup = transport.newEventLoopGroup(nThreads, "RpcClient-io");
+  }
+  
+  public static synchronized ClientTransport getInstance(Configuration conf) {
+    if(instance == null) {
+      int nThreads = conf.getInt(CLIENT_THREADS_KEY, DEFAULT_CLIENT_THREADS);
+      if(nThreads <= 0) {
+        throw new RuntimeException(CLIENT_THREADS_KEY + " must be positive:" + nThreads);
+      }
+      NettyTransport transport = NettyTransport.select(conf);
+      LOG.info("Creating " + transport + " client transport with " + nThreads + " event loop threads");
+      instance = new ClientTransport(transport, nThreads);
+    }
+    return instance;
+  }
+  
+  public EventLoopGroup getEventLoopGroup() {
+    return eventLoopGroup;
+  }
+  
+  public Class<? extends SocketChannel> getChannelClass() {
+    return transport.getSocketChannelClass();
+  }
+}
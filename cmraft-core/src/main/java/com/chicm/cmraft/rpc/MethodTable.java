@@ -0,0 +1,116 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.chicm.cmraft.core.RaftRpcService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RequestHeader;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ResponseHeader;
+import com.google.protobuf.BlockingService;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * Methods of RaftService indexed by method ID, the index of the method in the service 
+ * descriptor. RPC headers carry the method ID, decoders look up the method and the parsers
+ * of its request and response in arrays built once, instead of creating a service and 
+ * searching methods by name for every packet. New methods must be appended to the end of 
+ * RaftService, so that IDs stay the same between versions.
+ * Protobuf headers keep carrying method names next to method IDs, older peers require them.
+ * @author chicm
+ *
+ */
+public class MethodTable {
+  private static final MethodDescriptor[] methods;
+  private static final Parser<? extends Message>[] requestParsers;
+  private static final Parser<? extends Message>[] responseParsers;
+  /** only used to decode headers of older peers, which carry method names */
+  private static final Map<String, MethodDescriptor> methodsByName = new HashMap<>();
+  
+  static {
+    BlockingService service = RaftRpcService.create().getService();
+    List<MethodDescriptor> list = RaftService.getDescriptor().getMethods();
+    methods = list.toArray(new MethodDescriptor[list.size()]);
+    requestParsers = newParserArray(methods.length);
+    responseParsers = newParserArray(methods.length);
+    for(MethodDescriptor md: methods) {
+      requestParsers[md.getIndex()] = service.getRequestPrototype(md).getParserForType();
+      responseParsers[md.getIndex()] = service.getResponsePrototype(md).getParserForType();
+      methodsByName.put(md.getName(), md);
+    }
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static Parser<? extends Message>[] newParserArray(int size) {
+    return new Parser[size];
+  }
+  
+  /** method ID of error responses to requests of unknown methods, no method has it */
+  static final int UNKNOWN_METHOD_ID = Integer.MAX_VALUE;
+  
+  private MethodTable() {
+  }
+  
+  /**
+   * @return index of the method, or UNKNOWN_METHOD_ID for the error response of a request 
+   * whose method is unknown
+   */
+  public static int getMethodId(MethodDescriptor md) {
+    return md == null ? UNKNOWN_METHOD_ID : md.getIndex();
+  }
+  
+  /**
+   * @return the method, or null if the ID is unknown
+   */
+  public static MethodDescriptor getMethod(int methodId) {
+    if(methodId < 0 || methodId >= methods.length) {
+      return null;
+    }
+    return methods[methodId];
+  }
+  
+  public static MethodDescriptor getMethod(RequestHeader header) {
+    if(header.hasMethodId()) {
+      return getMethod(header.getMethodId());
+    }
+    return methodsByName.get(header.getRequestName());
+  }
+  
+  public static MethodDescriptor getMethod(ResponseHeader header) {
+    if(header.hasMethodId()) {
+      return getMethod(header.getMethodId());
+    }
+    return methodsByName.get(header.getResponseName());
+  }
+  
+  public static Parser<? extends Message> getRequestParser(MethodDescriptor md) {
+    return requestParsers[md.getIndex()];
+  }
+  
+  public static Parser<? extends Message> getResponseParser(MethodDescriptor md) {
+    return responseParsers[md.getIndex()];
+  }
+}
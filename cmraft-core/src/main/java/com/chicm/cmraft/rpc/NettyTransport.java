@@ -0,0 +1,118 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.chicm.cmraft.common.Configuration;
+
+/**
+ * Selects the netty transport of RpcServer and RpcClient. On Linux the native epoll 
+ * transport is used when its native library can be loaded, it is edge-triggered and
+ * supports SO_REUSEPORT. Otherwise, or if configured, the NIO transport is used.
+ * The epoll transport writes from memory addresses of direct buffers, it is not usable 
+ * when netty has no access to sun.misc.Unsafe.
+ * 
+ * raft.rpc.transport = auto | epoll | nio, auto by default
+ * @author chicm
+ *
+ */
+class NettyTransport {
+  static final Log LOG = LogFactory.getLog(NettyTransport.class);
+  private final static String TRANSPORT_KEY = "raft.rpc.transport";
+  private final static String TRANSPORT_AUTO = "auto";
+  private final static String TRANSPORT_EPOLL = "epoll";
+  private final static String TRANSPORT_NIO = "nio";
+  
+  private final boolean epoll;
+  
+  private NettyTransport(boolean epoll) {
+    this.epoll = epoll;
+  }
+  
+  static NettyTransport select(Configuration conf) {
+    String transport = conf.getString(TRANSPORT_KEY, TRANSPORT_AUTO).trim().toLowerCase();
+    if(transport.equals(TRANSPORT_NIO)) {
+      return new NettyTransport(false);
+    }
+    if(!transport.equals(TRANSPORT_AUTO) && !transport.equals(TRANSPORT_EPOLL)) {
+      throw new RuntimeException("Unknown " + TRANSPORT_KEY + ":" + transport);
+    }
+    String cause = null;
+    if(!Epoll.isAvailable()) {
+      cause = String.valueOf(Epoll.unavailabilityCause());
+    } else if(!PlatformDependent.hasUnsafe()) {
+      cause = "no memory address of direct buffers, sun.misc.Unsafe not accessible";
+    }
+    if(cause == null) {
+      return new NettyTransport(true);
+    }
+    if(transport.equals(TRANSPORT_EPOLL)) {
+      LOG.warn("Native epoll transport not available, falling back to NIO: " + cause);
+    } else {
+      LOG.debug("Native epoll transport not available: " + cause);
+    }
+    return new NettyTransport(false);
+  }
+  
+  boolean isEpoll() {
+    return epoll;
+  }
+  
+  /**
+   * @param nThreads number of threads, 0 for netty's default
+   * @param name prefix of thread names, threads are daemon threads
+   */
+  EventLoopGroup newEventLoopGroup(int nThreads, String name) {
+    DefaultThreadFactory threadFactory = new DefaultThreadFactory(name, true);
+    if(epoll) {
+      return new EpollEventLoopGroup(nThreads, threadFactory);
+    }
+    return new NioEventLoopGroup(nThreads, threadFactory);
+  }
+  
+  Class<? extends SocketChannel> getSocketChannelClass() {
+    return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+  }
+  
+  Class<? extends ServerChannel> getServerChannelClass() {
+    return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+  }
+  
+  @Override
+  public String toString() {
+    return epoll ? TRANSPORT_EPOLL : TRANSPORT_NIO;
+  }
+}
@@ -172,7 +172,7 @@ public class PacketUtils {
       offset += cis.getTotalBytesRead();
       //LOG.debug("header parsed:" + header.toString());
       
-      MethodDescriptor md = service.getDescriptorForType().findMethodByName(header.getRequestName());
+      MethodDescriptor md = MethodTable.getMethod(header);
       Builder builder = service.getRequestPrototype(md).newBuilderForType();
       Message body = null;
       if (builder != null) {
@@ -223,7 +223,7 @@ public class PacketUtils {
         int bodySize = cis.readRawVarint32();
         offset += cis.getTotalBytesRead();
         
-        MethodDescriptor md = service.getDescriptorForType().findMethodByName(header.getResponseName());
+        MethodDescriptor md = MethodTable.getMethod(header);
         Builder builder = service.getResponsePrototype(md).newBuilderForType();
         Message body = null;
         if (builder != null) {
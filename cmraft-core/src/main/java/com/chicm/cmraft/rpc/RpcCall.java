@@ -39,6 +39,12 @@ public class RpcCall implements Comparable<RpcCall>{
   private MethodDescriptor md;
   private AsynchronousSocketChannel channel;
   private long timestamp;
+  /** raft group the call is sent to */
+  private int groupId = RpcServer.DEFAULT_GROUP_ID;
+  /** the call failed on server, the response has no message */
+  private boolean error = false;
+  /** the call was rejected by a busy server without being handled */
+  private boolean busy = false;
   
   public RpcCall(int callId, Message header, Message msg, MethodDescriptor md) {
     this.message = msg;
@@ -88,6 +94,30 @@ public class RpcCall implements Comparable<RpcCall>{
     this.md = md;
   }
   
+  public int getGroupId() {
+    return groupId;
+  }
+
+  public void setGroupId(int groupId) {
+    this.groupId = groupId;
+  }
+
+  public boolean isError() {
+    return error;
+  }
+
+  public void setError(boolean error) {
+    this.error = error;
+  }
+
+  public boolean isBusy() {
+    return busy;
+  }
+
+  public void setBusy(boolean busy) {
+    this.busy = busy;
+  }
+  
   public int getCallId() {
     return callId;
   }
@@ -121,7 +151,7 @@ public class RpcCall implements Comparable<RpcCall>{
   
   @Override
   public String toString() {
-    return "RpcCall{callId=" + callId + "\n" + message.toString() + "}";
+    return "RpcCall{callId=" + callId + "\n" + message + "}";
   }
   
   @Override
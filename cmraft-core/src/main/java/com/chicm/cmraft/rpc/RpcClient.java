@@ -21,17 +21,21 @@
 package com.chicm.cmraft.rpc;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+
+import io.netty.util.Timeout;
 
 import java.io.IOException;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,23 +43,41 @@ import org.apache.commons.logging.LogFactory;
 import com.chicm.cmraft.common.CmRaftConfiguration;
 import com.chicm.cmraft.common.Configuration;
 import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.core.RaftTimerService;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
-import com.chicm.cmraft.protobuf.generated.RaftProtos.RequestHeader;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService.BlockingInterface;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcRequest;
-import com.chicm.cmraft.util.BlockingHashMap;
+import com.chicm.cmraft.util.StripedIntObjectMap;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.BlockingRpcChannel;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
 import com.google.protobuf.RpcController;
 import com.google.protobuf.ServiceException;
 import com.google.protobuf.Descriptors.MethodDescriptor;
 
 /**
- * RpcClient implements the BlockingRpcChannel interface with inner class. It translate RPC method calls to 
- * RPC request packets and send them to RPC server. Then translate RPC response packets from
+ * RpcClient implements the BlockingRpcChannel and RpcChannel interfaces with inner classes. It translate RPC 
+ * method calls to RPC request packets and send them to RPC server. Then translate RPC response packets from
  * RPC server to returned objects for RPC method calls.
+ * Calls are asynchronous underneath, a call is completed on the netty event loop when its response is 
+ * decoded, or failed by the process wide timer wheel when it times out. Blocking stubs wait on the 
+ * call's future for at most the RPC timeout, asynchronous callers do not need a thread for each 
+ * call in flight.
+ * At most one connect is in flight per client, it does not block any thread. Calls made while 
+ * connecting wait for it on its future, they are sent once connected, or all failed together 
+ * if the connect fails or does not complete within the RPC timeout.
+ * Calls in flight are kept in a table keyed by primitive call IDs. Each call leaves it exactly
+ * once, by its response, timeout, write failure or connection close. A late response of a 
+ * timed out call finds nothing and is dropped, so the table only holds calls in flight.
+ * One RpcClient can be shared by multiple raft groups talking to the same server, 
+ * each group gets its own stub which tags requests with the group ID.
  * 
  * @author chicm
  *
@@ -64,66 +86,76 @@ public class RpcClient {
   static final Log LOG = LogFactory.getLog(RpcClient.class);
   private final static String RPC_TIMEOUT_KEY = "raft.rpc.timeout";
   private final static int DEFAULT_RPC_TIMEOUT = 3000;
-  private static volatile AtomicInteger client_call_id = new AtomicInteger(0);
+  /** Call IDs are unique per client, which is per connection, responses are matched by them */
+  private final AtomicInteger callIds = new AtomicInteger(0);
   private BlockingInterface stub = null;
-  private ChannelHandlerContext ctx = null;
-  private BlockingHashMap<Integer, RpcCall> responsesMap = new BlockingHashMap<>();
+  private ConcurrentHashMap<Integer, BlockingInterface> groupStubs = new ConcurrentHashMap<>();
+  private ConcurrentHashMap<Integer, RaftService.Stub> asyncStubs = new ConcurrentHashMap<>();
+  private volatile ChannelHandlerContext ctx = null;
+  private volatile WriteCoalescer writer = null;
+  private WriteCoalescer.Policy flushPolicy;
+  /** Calls sent and waiting for responses, keyed by call ID */
+  private StripedIntObjectMap<PendingCall> pendingCalls = new StripedIntObjectMap<>();
   private RpcClientEventListener listener = new RpcClientEventListenerImpl();
-  private volatile boolean connected = false;
+  /** the last connect started, a new one is only started once it failed or its connection closed */
+  private final AtomicReference<SettableFuture<ChannelHandlerContext>> connecting = new AtomicReference<>();
   private int rpcTimeout;
   private ServerInfo remoteServer = null;
+  private ClientTransport transport;
   
   public RpcClient(Configuration conf, ServerInfo remoteServer) {
     rpcTimeout = conf.getInt(RPC_TIMEOUT_KEY, DEFAULT_RPC_TIMEOUT);
     this.remoteServer = remoteServer;
-    //todo: to change call id init value
-    Random r = new Random();
-    client_call_id.set(r.nextInt(1000) * 100);
+    this.transport = ClientTransport.getInstance(conf);
+    this.flushPolicy = WriteCoalescer.Policy.create(conf);
+    stub = RaftService.newBlockingStub(createBlockingRpcChannel(RpcServer.DEFAULT_GROUP_ID));
   }
   
   public boolean isConnected() {
-    if(ctx == null)
-      return false;
-    if(!ctx.channel().isActive())
-      return false;
-    return connected;
+    ChannelHandlerContext context = ctx;
+    return context != null && context.channel().isActive();
   }
   
-  public synchronized boolean connect() 
+  /**
+   * Connect to the remote server if not connected, joining the connect in flight if any.
+   * @throws ExecutionException if connecting failed
+   */
+  public boolean connect() 
       throws IOException, InterruptedException, ExecutionException {
-    
-    if(isConnected())
-      return true;
-    try {
-      ctx = connectRemoteServer();
-    } catch(Exception e) {
-      LOG.error("Failed connecting to:" + getRemoteServer() + " : " + e.getMessage());
-      try {
-        if(ctx != null && ctx.channel().isOpen()) {
-          ctx.close().sync();
-        }
-      } catch(Exception e2) {
-        LOG.error("Failed closing ctx, " + e2.getMessage());
+    connectAsync().get();
+    return true;
+  }
+  
+  /**
+   * @return the connect in flight, or a new one if there is none. Only the caller winning 
+   * the CAS starts connecting, so concurrent callers share one connect.
+   */
+  private ListenableFuture<ChannelHandlerContext> connectAsync() {
+    while(true) {
+      SettableFuture<ChannelHandlerContext> current = connecting.get();
+      if(current != null && (!current.isDone() || isConnected())) {
+        return current;
+      }
+      SettableFuture<ChannelHandlerContext> next = SettableFuture.create();
+      if(connecting.compareAndSet(current, next)) {
+        connectRemoteServer(next);
+        return next;
       }
-      throw e;
     }
-    
-    BlockingRpcChannel c = createBlockingRpcChannel();
-    stub =  RaftService.newBlockingStub(c);
-    
-    connected = true;
-    return connected;
   }
   
   public ServerInfo getRemoteServer() {
     return remoteServer;
   }
   
-  public synchronized void close() {
+  public void close() {
+    ChannelHandlerContext context = ctx;
+    if(context == null) {
+      return;
+    }
     try {
       LOG.info("Closing connection");
-      ctx.close().sync();
-      connected = false;
+      context.close().sync();
     } catch(Exception e) {
       LOG.error("Closing failed", e);
     }
@@ -138,91 +170,297 @@ public class RpcClient {
     return stub;
   }
   
-  private ChannelHandlerContext connectRemoteServer() throws InterruptedException  {
-    EventLoopGroup workerGroup = new NioEventLoopGroup();
+  /**
+   * @return stub for the specified raft group on remote server
+   */
+  public BlockingInterface getStub(int groupId) throws Exception {
+    if(groupId == RpcServer.DEFAULT_GROUP_ID) {
+      return getStub();
+    }
+    if(!isConnected()) {
+      if(!connect()) {
+        return null;
+      }
+    }
+    BlockingInterface groupStub = groupStubs.get(groupId);
+    if(groupStub == null) {
+      groupStub = RaftService.newBlockingStub(createBlockingRpcChannel(groupId));
+      BlockingInterface existing = groupStubs.putIfAbsent(groupId, groupStub);
+      if(existing != null) {
+        groupStub = existing;
+      }
+    }
+    return groupStub;
+  }
+  
+  /**
+   * @return asynchronous stub for the specified raft group on remote server, callbacks are run 
+   * on netty event loop or timer threads and must not block. On failure callbacks get null,
+   * and the controller, if not null, is set failed.
+   */
+  public RaftService.Stub getAsyncStub(int groupId) {
+    RaftService.Stub asyncStub = asyncStubs.get(groupId);
+    if(asyncStub == null) {
+      asyncStub = RaftService.newStub(createRpcChannel(groupId));
+      RaftService.Stub existing = asyncStubs.putIfAbsent(groupId, asyncStub);
+      if(existing != null) {
+        asyncStub = existing;
+      }
+    }
+    return asyncStub;
+  }
+  
+  /**
+   * Send a request without waiting for the response. The future is completed on netty event loop 
+   * when the response is received, or failed with RpcTimeoutException after the RPC timeout, 
+   * or with ServiceException if the connection fails. Listeners added with a direct executor 
+   * must not block.
+   * @param groupId raft group on remote server
+   * @param md method of RaftService
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Message> ListenableFuture<T> callAsync(final int groupId, final MethodDescriptor md, 
+      final Message request) {
+    final SettableFuture<Message> future = SettableFuture.create();
+    if(isConnected()) {
+      send(groupId, md, request, future);
+    } else {
+      // queued behind the connect in flight, sent on netty event loop once connected
+      Futures.addCallback(connectAsync(), new FutureCallback<ChannelHandlerContext>() {
+        @Override
+        public void onSuccess(ChannelHandlerContext context) {
+          send(groupId, md, request, future);
+        }
+        @Override
+        public void onFailure(Throwable t) {
+          future.setException(t);
+        }
+      });
+    }
+    return (ListenableFuture<T>)future;
+  }
+  
+  private void send(int groupId, MethodDescriptor md, Message request, SettableFuture<Message> future) {
+    // after wrapping around, skip IDs of calls still in flight
+    int id;
+    PendingCall newCall;
+    do {
+      id = generateCallId();
+      newCall = new PendingCall(id, request, future);
+    } while(pendingCalls.putIfAbsent(id, newCall) != null);
+    final int callId = id;
+    final PendingCall pending = newCall;
+    RpcCall call = new RpcCall(callId, null, request, md);
+    call.setGroupId(groupId);
     
-    try {
-      ClientChannelHandler channelHandler = new ClientChannelHandler(listener);
-      Bootstrap b = new Bootstrap(); 
-      b.group(workerGroup); 
-      b.channel(NioSocketChannel.class); 
-      b.option(ChannelOption.SO_KEEPALIVE, true); 
-      b.handler(channelHandler);
+    LOG.debug("SENDING RPC, CALLID:" + callId);
+    pending.timeout = RaftTimerService.getInstance().schedule(new Runnable() {
+      @Override
+      public void run() {
+        if(pendingCalls.remove(callId, pending)) {
+          LOG.error("Rpc Timeout, call ID:" + callId + ", remote server:" + getRemoteServer());
+          pending.future.setException(new RpcTimeoutException("RPC call timeout, call ID:" + callId
+            + ", remote server:" + getRemoteServer()));
+        }
+      }
+    }, rpcTimeout);
+    
+    writer.write(call).addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture f) {
+        if(!f.isSuccess() && pendingCalls.remove(callId, pending)) {
+          cancelTimeout(pending);
+          pending.future.setException(new ServiceException("Failed sending call ID:" + callId 
+            + " to:" + getRemoteServer(), f.cause()));
+        }
+      }
+    });
+  }
+  
+  // connections are registered to the shared client event loop group, which is never shut down
+  private void connectRemoteServer(final SettableFuture<ChannelHandlerContext> result) {
+    ClientChannelHandler channelHandler = new ClientChannelHandler(listener);
+    Bootstrap b = new Bootstrap(); 
+    b.group(transport.getEventLoopGroup()); 
+    b.channel(transport.getChannelClass()); 
+    b.option(ChannelOption.SO_KEEPALIVE, true); 
+    b.option(ChannelOption.TCP_NODELAY, true); 
+    b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+    // calls queued behind the connect fail no later than their own timeout would
+    b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, rpcTimeout);
+    b.handler(channelHandler);
 
-      ChannelFuture f = b.connect(getRemoteServer().getHost(), getRemoteServer().getPort()).sync(); 
-      LOG.debug("connected to: " + this.getRemoteServer() );
-      return channelHandler.getCtx();
-        // Wait until the connection is closed.
-        //f.channel().closeFuture().sync();
-    } finally {
-        //workerGroup.shutdownGracefully();
-    }
+    b.connect(getRemoteServer().getHost(), getRemoteServer().getPort()).addListener(
+      new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture f) {
+          if(!f.isSuccess()) {
+            LOG.error("Failed connecting to:" + getRemoteServer() + " : " + f.cause().getMessage());
+            result.setException(new ServiceException("Failed connecting to:" + getRemoteServer(), f.cause()));
+            return;
+          }
+          LOG.debug("connected to: " + getRemoteServer());
+          // channelActive may not have been called yet when connect completes, 
+          // the pipeline has been initialized on registration, so take the context from it.
+          ChannelHandlerContext context = f.channel().pipeline().lastContext();
+          writer = new WriteCoalescer(context, flushPolicy);
+          ctx = context;
+          result.set(context);
+        }
+      });
   }
   
-  public static int generateCallId() {
-    return client_call_id.incrementAndGet();
+  public int generateCallId() {
+    return callIds.incrementAndGet();
   }
   
-  public static int getCallId() {
-    return client_call_id.get();
+  public int getCallId() {
+    return callIds.get();
   }
  
-  private  BlockingRpcChannel createBlockingRpcChannel() {
-    return new BlockingRpcChannelImplementation();
+  private  BlockingRpcChannel createBlockingRpcChannel(int groupId) {
+    return new BlockingRpcChannelImplementation(groupId);
+  }
+  
+  private RpcChannel createRpcChannel(int groupId) {
+    return new RpcChannelImplementation(groupId);
   }
 
   class BlockingRpcChannelImplementation implements BlockingRpcChannel {
+    private final int groupId;
+    
+    BlockingRpcChannelImplementation(int groupId) {
+      this.groupId = groupId;
+    }
+    
     @Override
     public Message callBlockingMethod(MethodDescriptor md, RpcController controller,
                                       Message request, Message returnType) throws ServiceException {
-
-      Message response = null;
-      int callId = generateCallId();
+      long tm = System.currentTimeMillis();
+      ListenableFuture<Message> future = callAsync(groupId, md, request);
       try {
-        RequestHeader.Builder builder = RequestHeader.newBuilder();
-        builder.setId(callId); 
-        builder.setRequestName(md.getName());
-        RequestHeader header = builder.build();
-        
-        LOG.debug("SENDING RPC, CALLID:" + header.getId());
-        RpcCall call = new RpcCall(callId, header, request, md);
-        long tm = System.currentTimeMillis();
-        
-        ctx.writeAndFlush(call);
-        
-        RpcCall result = responsesMap.take(callId, rpcTimeout);
-        
-        response = result != null? result.getMessage() : null;
-        if(response != null) {
-          LOG.debug("response taken: " + callId);
-          LOG.debug(String.format("RPC[%d] round trip takes %d ms", header.getId(), (System.currentTimeMillis() - tm)));
+        // the future is completed by the response, the timeout or a connection failure, 
+        // a call queued behind a connect may take longer, the caller waits no more than the timeout
+        Message response = future.get(rpcTimeout, TimeUnit.MILLISECONDS);
+        LOG.debug(String.format("RPC %s round trip takes %d ms", md.getName(), (System.currentTimeMillis() - tm)));
+        return response;
+      } catch(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if(cause instanceof RpcTimeoutException) {
+          LOG.error("Rpc Timeout, call:" + request);
+        }
+        if(cause instanceof ServiceException) {
+          throw (ServiceException)cause;
         }
-      } catch(RpcTimeoutException e) {
-        LOG.error("Rpc Timeout, call ID:" + callId + ", remote server:" + getRemoteServer());
+        throw new ServiceException(cause.getMessage(), cause);
+      } catch(TimeoutException e) {
+        future.cancel(false);
         LOG.error("Rpc Timeout, call:" + request);
-        LOG.error("Rpc Timeout", e);
-        ServiceException se = new ServiceException(e.getMessage(), e);
-        throw se;
-      } catch(Exception e) {
-        LOG.error("ctx:" + ctx);
-        LOG.error("callBlockingMethod exception", e);
-        throw e;
+        throw new ServiceException("RPC call timeout, remote server:" + getRemoteServer(), 
+          new RpcTimeoutException("RPC call timeout, remote server:" + getRemoteServer()));
+      } catch(InterruptedException e) {
+        throw new ServiceException("RPC call interrupted", e);
+      }
+    }
+  }
+  
+  class RpcChannelImplementation implements RpcChannel {
+    private final int groupId;
+    
+    RpcChannelImplementation(int groupId) {
+      this.groupId = groupId;
+    }
+    
+    @Override
+    public void callMethod(MethodDescriptor md, final RpcController controller, Message request,
+        Message responsePrototype, final RpcCallback<Message> done) {
+      ListenableFuture<Message> future = callAsync(groupId, md, request);
+      Futures.addCallback(future, new FutureCallback<Message>() {
+        @Override
+        public void onSuccess(Message response) {
+          done.run(response);
+        }
+        @Override
+        public void onFailure(Throwable t) {
+          if(controller != null) {
+            controller.setFailed(t.getMessage());
+          }
+          done.run(null);
+        }
+      });
+    }
+  }
+  
+  /**
+   * @return number of calls waiting for responses
+   */
+  int getPendingCallCount() {
+    return pendingCalls.size();
+  }
+  
+  private static class PendingCall {
+    private final int callId;
+    private final Message request;
+    private final SettableFuture<Message> future;
+    private volatile Timeout timeout;
+    
+    PendingCall(int callId, Message request, SettableFuture<Message> future) {
+      this.callId = callId;
+      this.request = request;
+      this.future = future;
+    }
+  }
+  
+  /**
+   * Fail all calls in flight, called when the connection is closed.
+   */
+  private void failPendingCalls(String reason) {
+    for(PendingCall pending: pendingCalls.values()) {
+      if(pendingCalls.remove(pending.callId, pending)) {
+        cancelTimeout(pending);
+        pending.future.setException(new ServiceException(reason + ", call ID:" + pending.callId));
       }
-      return response;
     }
   }
   
+  private static void cancelTimeout(PendingCall pending) {
+    Timeout timeout = pending.timeout;
+    if(timeout != null) {
+      timeout.cancel();
+    }
+  }
  
   class RpcClientEventListenerImpl implements RpcClientEventListener {
     @Override
     public void channelClosed() {
-      ctx.close();
-      connected = false;
+      // a closed connection replaced already, calls sent on it are left to time out
+      if(isConnected()) {
+        return;
+      }
+      failPendingCalls("Connection to " + getRemoteServer() + " closed");
     }
+    
+    // runs on netty event loop
     @Override
     public void onRpcResponse(RpcCall call) {
       Preconditions.checkNotNull(call);
-      responsesMap.put(call.getCallId(), call);      
+      PendingCall pending = pendingCalls.remove(call.getCallId());
+      if(pending == null) {
+        LOG.warn("Response of unknown or timed out call, call ID:" + call.getCallId());
+        return;
+      }
+      cancelTimeout(pending);
+      if(call.isBusy()) {
+        pending.future.setException(new ServerBusyException("RPC call rejected by busy server:" 
+          + getRemoteServer() + ", call ID:" + call.getCallId()));
+        return;
+      }
+      if(call.isError()) {
+        pending.future.setException(new ServiceException("RPC call failed on server:" + getRemoteServer()
+          + ", call ID:" + call.getCallId()));
+        return;
+      }
+      pending.future.set(call.getMessage());
     }
   }
   
@@ -0,0 +1,46 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * Splits RPC frames by their 4 bytes length. Frames are retained slices of the socket 
+ * buffer instead of copies, messages are parsed straight from them. Decoded messages never 
+ * refer to a frame: protobuf 2.6 aliases only its own immutable byte strings, so bytes 
+ * fields are still copied once on each hop, and frames are released once decoded.
+ * @author chicm
+ *
+ */
+class RpcFrameDecoder extends LengthFieldBasedFrameDecoder {
+  
+  RpcFrameDecoder(int maxFrameLength) {
+    super(maxFrameLength, 0, RpcHeaderCodec.LENGTH_FIELD_SIZE, 0, RpcHeaderCodec.LENGTH_FIELD_SIZE);
+  }
+  
+  @Override
+  protected ByteBuf extractFrame(ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
+    // the decoder does not compact or grow a cumulation buffer while a slice retains it
+    return buffer.slice(index, length).retain();
+  }
+}
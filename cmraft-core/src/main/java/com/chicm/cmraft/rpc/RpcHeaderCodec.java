@@ -0,0 +1,290 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * Compact binary RPC header, used instead of protobuf RequestHeader and ResponseHeader 
+ * once negotiated on a connection:
+ * 
+ *   magic (1 byte) | flags (1 byte) | call ID (4 bytes) | method ID (varint) | [group ID (varint)]
+ * 
+ * followed by the message, which takes the rest of the frame. The magic byte can not start 
+ * a protobuf header frame, whose first byte is the varint size of a header shorter than 
+ * 128 bytes, so both formats can be told apart on every frame.
+ * 
+ * A client sends protobuf headers with compact_header set until the first compact response 
+ * arrives, servers not knowing the field ignore it and keep the connection on protobuf headers.
+ * 
+ * Frames are parsed in place, except bytes fields, which are copied, see RpcFrameDecoder.
+ * Frames of both formats are encoded in a single pass: sizes are computed first, then the 
+ * 4 bytes frame length, header and message are written by one CodedOutputStream into one 
+ * pooled direct buffer, which the socket writes without copying it to direct memory first.
+ * Protobuf 2.6 can not write to a ByteBuffer, the stream stages small fields in an array of 
+ * at most OUTPUT_BUFFER_SIZE bytes, larger bytes fields are written to the buffer directly.
+ * @author chicm
+ *
+ */
+class RpcHeaderCodec {
+  static final Log LOG = LogFactory.getLog(RpcHeaderCodec.class);
+  static final byte MAGIC = (byte)0xCA;
+  
+  /** group ID follows method ID, not set for the default group */
+  static final int FLAG_GROUP = 0x01;
+  /** message is compressed, reserved */
+  static final int FLAG_COMPRESSED = 0x02;
+  /** call failed on server, response has no message */
+  static final int FLAG_ERROR = 0x04;
+  /** one of several responses of a call, reserved */
+  static final int FLAG_STREAM = 0x08;
+  /** set with FLAG_ERROR, the call was rejected by a busy server without being handled */
+  static final int FLAG_BUSY = 0x10;
+  private static final int SUPPORTED_FLAGS = FLAG_GROUP | FLAG_ERROR | FLAG_BUSY;
+  
+  private static final int FIXED_SIZE = 6;
+  /** size of the frame length field, read by LengthFieldBasedFrameDecoder */
+  static final int LENGTH_FIELD_SIZE = 4;
+  private static final int OUTPUT_BUFFER_SIZE = 4096;
+  
+  private RpcHeaderCodec() {
+  }
+  
+  static boolean isCompact(ByteBuf frame) {
+    return frame.isReadable() && frame.getByte(frame.readerIndex()) == MAGIC;
+  }
+  
+  static int getEncodedSize(RpcCall call) {
+    int size = FIXED_SIZE + CodedOutputStream.computeRawVarint32Size(MethodTable.getMethodId(call.getMd()));
+    if(call.getGroupId() != RpcServer.DEFAULT_GROUP_ID) {
+      size += CodedOutputStream.computeRawVarint32Size(call.getGroupId());
+    }
+    if(!call.isError() && call.getMessage() != null) {
+      size += call.getMessage().getSerializedSize();
+    }
+    return size;
+  }
+  
+  /**
+   * @return frame of the call in compact header format, including frame length
+   */
+  static ByteBuf encodeFrame(ByteBufAllocator alloc, RpcCall call) throws IOException {
+    int size = getEncodedSize(call);
+    ByteBuf buf = alloc.directBuffer(LENGTH_FIELD_SIZE + size);
+    try {
+      CodedOutputStream cos = newCodedOutput(buf, LENGTH_FIELD_SIZE + size);
+      writeRawInt(cos, size);
+      writeCompact(cos, call);
+      return complete(buf, cos, LENGTH_FIELD_SIZE + size);
+    } catch(IOException | RuntimeException e) {
+      buf.release();
+      throw e;
+    }
+  }
+  
+  private static void writeCompact(CodedOutputStream cos, RpcCall call) throws IOException {
+    int flags = 0;
+    if(call.getGroupId() != RpcServer.DEFAULT_GROUP_ID) {
+      flags |= FLAG_GROUP;
+    }
+    if(call.isError()) {
+      flags |= FLAG_ERROR;
+      if(call.isBusy()) {
+        flags |= FLAG_BUSY;
+      }
+    }
+    cos.writeRawByte(MAGIC);
+    cos.writeRawByte(flags);
+    writeRawInt(cos, call.getCallId());
+    cos.writeRawVarint32(MethodTable.getMethodId(call.getMd()));
+    if((flags & FLAG_GROUP) != 0) {
+      cos.writeRawVarint32(call.getGroupId());
+    }
+    if(!call.isError() && call.getMessage() != null) {
+      call.getMessage().writeTo(cos);
+    }
+  }
+  
+  /**
+   * @return frame of protobuf header and length delimited message, including frame length
+   */
+  static ByteBuf encodeFrame(ByteBufAllocator alloc, Message header, Message body) throws IOException {
+    int headerSize = header.getSerializedSize();
+    int size = CodedOutputStream.computeRawVarint32Size(headerSize) + headerSize;
+    int bodySize = 0;
+    if(body != null) {
+      bodySize = body.getSerializedSize();
+      size += CodedOutputStream.computeRawVarint32Size(bodySize) + bodySize;
+    }
+    ByteBuf buf = alloc.directBuffer(LENGTH_FIELD_SIZE + size);
+    try {
+      CodedOutputStream cos = newCodedOutput(buf, LENGTH_FIELD_SIZE + size);
+      writeRawInt(cos, size);
+      cos.writeRawVarint32(headerSize);
+      header.writeTo(cos);
+      if(body != null) {
+        cos.writeRawVarint32(bodySize);
+        body.writeTo(cos);
+      }
+      return complete(buf, cos, LENGTH_FIELD_SIZE + size);
+    } catch(IOException | RuntimeException e) {
+      buf.release();
+      throw e;
+    }
+  }
+  
+  private static CodedOutputStream newCodedOutput(ByteBuf buf, int length) {
+    return CodedOutputStream.newInstance(new ByteBufOutputStream(buf), 
+      Math.min(length, OUTPUT_BUFFER_SIZE));
+  }
+  
+  private static ByteBuf complete(ByteBuf buf, CodedOutputStream cos, int length) throws IOException {
+    cos.flush();
+    if(buf.readableBytes() != length) {
+      throw new IllegalStateException("Encoded " + buf.readableBytes() + " bytes, expected " + length);
+    }
+    return buf;
+  }
+  
+  // big endian, as frame length is read by LengthFieldBasedFrameDecoder
+  private static void writeRawInt(CodedOutputStream cos, int value) throws IOException {
+    cos.writeRawByte(value >>> 24);
+    cos.writeRawByte(value >>> 16);
+    cos.writeRawByte(value >>> 8);
+    cos.writeRawByte(value);
+  }
+  
+  /**
+   * @param request whether the frame is a request or a response
+   * @return the call, null if the call ID can not be read. A frame failing to decode after
+   * the call ID is returned as an error call, the method may be unknown, so that the server 
+   * responds with an error and the client fails the call without waiting for the timeout.
+   */
+  static RpcCall decode(ByteBuf frame, boolean request) {
+    if(frame.readableBytes() < FIXED_SIZE) {
+      LOG.error("RPC frame too short for a compact header:" + frame.readableBytes());
+      return null;
+    }
+    frame.skipBytes(1);
+    int flags = frame.readUnsignedByte();
+    int callId = frame.readInt();
+    if((flags & ~SUPPORTED_FLAGS) != 0) {
+      LOG.error("Unsupported header flags:" + flags + ", call ID:" + callId);
+      return undecodable(callId, null);
+    }
+    MethodDescriptor md = null;
+    try {
+      int methodId = readRawVarint32(frame);
+      md = MethodTable.getMethod(methodId);
+      int groupId = RpcServer.DEFAULT_GROUP_ID;
+      if((flags & FLAG_GROUP) != 0) {
+        groupId = readRawVarint32(frame);
+      }
+      if(md == null && (request || (flags & FLAG_ERROR) == 0)) {
+        LOG.error("Unknown method ID:" + methodId + ", call ID:" + callId);
+        return undecodable(callId, null);
+      }
+      Message body = null;
+      if((flags & FLAG_ERROR) == 0) {
+        CodedInputStream in = newInput(frame);
+        body = request ? MethodTable.getRequestParser(md).parseFrom(in)
+            : MethodTable.getResponseParser(md).parseFrom(in);
+      }
+      RpcCall call = new RpcCall(callId, null, body, md);
+      call.setGroupId(groupId);
+      call.setError((flags & FLAG_ERROR) != 0);
+      call.setBusy((flags & FLAG_BUSY) != 0);
+      return call;
+    } catch(IOException | IndexOutOfBoundsException e) {
+      LOG.error("Failed decoding RPC frame, call ID:" + callId + ": " + e.getMessage());
+      return undecodable(callId, md);
+    }
+  }
+  
+  /**
+   * @return error call of a frame which failed to decode
+   * @param md method of the call, null if unknown
+   */
+  static RpcCall undecodable(int callId, MethodDescriptor md) {
+    RpcCall call = new RpcCall(callId, null, null, md);
+    call.setError(true);
+    return call;
+  }
+  
+  /**
+   * @return input over the readable bytes of the frame, reading the backing array of heap 
+   * frames in place, and direct frames through a stream so they are not copied as a whole. 
+   * Bytes fields parsed from it are copies: protobuf 2.6 can not alias an array or buffer 
+   * it is given, only its own immutable byte strings. Copying them is also what lets pooled 
+   * frames be released right after decoding, values kept in the log or state machine do 
+   * not hold on to frame memory.
+   */
+  static CodedInputStream newInput(ByteBuf frame) {
+    if(frame.hasArray()) {
+      return CodedInputStream.newInstance(frame.array(), 
+        frame.arrayOffset() + frame.readerIndex(), frame.readableBytes());
+    }
+    CodedInputStream in = CodedInputStream.newInstance(new ByteBufInputStream(frame));
+    // frame length is bounded by RpcFrameDecoder already
+    in.setSizeLimit(Integer.MAX_VALUE);
+    return in;
+  }
+  
+  /**
+   * @return the length delimited message, or null at the end of input
+   */
+  static <T extends Message> T parseDelimited(CodedInputStream in, Parser<T> parser) throws IOException {
+    if(in.isAtEnd()) {
+      return null;
+    }
+    int size = in.readRawVarint32();
+    int oldLimit = in.pushLimit(size);
+    T message = parser.parseFrom(in);
+    in.popLimit(oldLimit);
+    return message;
+  }
+  
+  private static int readRawVarint32(ByteBuf in) throws IOException {
+    int result = 0;
+    for(int shift = 0; shift < 32; shift += 7) {
+      byte b = in.readByte();
+      result |= (b & 0x7F) << shift;
+      if(b >= 0) {
+        return result;
+      }
+    }
+    throw new IOException("Malformed varint in RPC header");
+  }
+}
@@ -0,0 +1,249 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.chicm.cmraft.common.Configuration;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.util.CappedPriorityBlockingQueue;
+
+/**
+ * Execution lanes of RPC requests handled by the RpcServers of the process, so that raft
+ * control traffic is never queued behind client requests:
+ * CONTROL: votes, pre-votes, timeoutNow and heartbeats, on a small executor group.
+ * REPLICATION: appendEntries carrying entries, on its own executor group.
+ * CLIENT: all other requests, on a fixed pool.
+ * A heartbeat of a single group is an appendEntries without entries, it takes the control lane.
+ * Each connection is pinned to one executor of the control and replication groups, requests
+ * of these lanes are handled in the order they arrive on the connection. Client requests are
+ * independent calls, they are handled concurrently by the pool.
+ * Each lane admits a bounded number of requests, queued or being handled. Requests beyond
+ * it are rejected at once with a server busy response, so that an overloaded server sheds
+ * load instead of queueing calls until they time out everywhere. The client pool takes
+ * its requests from a CappedPriorityBlockingQueue of the same capacity.
+ * The lanes are created with the configuration of the first RpcServer started.
+ *
+ * raft.rpc.server.control.threads = 2
+ * raft.rpc.server.replication.threads = number of processors
+ * raft.rpc.server.client.threads = 100
+ * raft.rpc.server.control.queue = 10000
+ * raft.rpc.server.replication.queue = 1000
+ * raft.rpc.server.client.queue = 1000
+ * @author chicm
+ *
+ */
+class RpcLanes {
+  static final Log LOG = LogFactory.getLog(RpcLanes.class);
+  private final static String CONTROL_THREADS_KEY = "raft.rpc.server.control.threads";
+  private final static String REPLICATION_THREADS_KEY = "raft.rpc.server.replication.threads";
+  private final static String CLIENT_THREADS_KEY = "raft.rpc.server.client.threads";
+  private final static int DEFAULT_CONTROL_THREADS = 2;
+  private final static int DEFAULT_REPLICATION_THREADS = Runtime.getRuntime().availableProcessors();
+  private final static int DEFAULT_CLIENT_THREADS = 100;
+  private final static String CONTROL_QUEUE_KEY = "raft.rpc.server.control.queue";
+  private final static String REPLICATION_QUEUE_KEY = "raft.rpc.server.replication.queue";
+  private final static String CLIENT_QUEUE_KEY = "raft.rpc.server.client.queue";
+  // shedding votes and heartbeats causes elections, the control lane is only capped
+  // against runaway queues
+  private final static int DEFAULT_CONTROL_QUEUE = 10000;
+  private final static int DEFAULT_REPLICATION_QUEUE = 1000;
+  private final static int DEFAULT_CLIENT_QUEUE = 1000;
+  private final static AtomicLong taskSequence = new AtomicLong(0);
+
+  enum Lane {
+    CONTROL, REPLICATION, CLIENT
+  }
+
+  /** lanes indexed by method ID */
+  private static final Lane[] lanes = new Lane[RaftService.getDescriptor().getMethods().size()];
+  private static final int APPEND_ENTRIES = getMethodId("appendEntries");
+
+  static {
+    Arrays.fill(lanes, Lane.CLIENT);
+    for(String name: new String[] {"collectVote", "preVote", "timeoutNow", "multiHeartbeat"}) {
+      lanes[getMethodId(name)] = Lane.CONTROL;
+    }
+    lanes[APPEND_ENTRIES] = Lane.REPLICATION;
+  }
+
+  private static int getMethodId(String name) {
+    return MethodTable.getMethodId(RaftService.getDescriptor().findMethodByName(name));
+  }
+
+  private static RpcLanes instance = null;
+
+  private final EventExecutorGroup controlGroup;
+  private final EventExecutorGroup replicationGroup;
+  private final ExecutorService clientPool;
+  private final int[] capacities;
+  /** requests queued or being handled, by lane */
+  private final AtomicInteger[] depths;
+  /** requests rejected, by lane */
+  private final AtomicLong[] rejected;
+
+  RpcLanes(int[] threads, int[] capacities) {
+    controlGroup = new DefaultEventExecutorGroup(threads[Lane.CONTROL.ordinal()],
+      new DefaultThreadFactory("RpcServer-control", true));
+    replicationGroup = new DefaultEventExecutorGroup(threads[Lane.REPLICATION.ordinal()],
+      new DefaultThreadFactory("RpcServer-replication", true));
+    int clientThreads = threads[Lane.CLIENT.ordinal()];
+    clientPool = new ThreadPoolExecutor(clientThreads, clientThreads, 0L, TimeUnit.MILLISECONDS, 
+      new CappedPriorityBlockingQueue<Runnable>(capacities[Lane.CLIENT.ordinal()]),
+      new DefaultThreadFactory("RpcServer-client", true));
+    this.capacities = capacities;
+    depths = new AtomicInteger[capacities.length];
+    rejected = new AtomicLong[capacities.length];
+    for(int i = 0; i < capacities.length; i++) {
+      depths[i] = new AtomicInteger(0);
+      rejected[i] = new AtomicLong(0);
+    }
+  }
+
+  static synchronized RpcLanes getInstance(Configuration conf) {
+    if(instance == null) {
+      int[] threads = new int[] {
+        getPositive(conf, CONTROL_THREADS_KEY, DEFAULT_CONTROL_THREADS),
+        getPositive(conf, REPLICATION_THREADS_KEY, DEFAULT_REPLICATION_THREADS),
+        getPositive(conf, CLIENT_THREADS_KEY, DEFAULT_CLIENT_THREADS) };
+      int[] capacities = new int[] {
+        getPositive(conf, CONTROL_QUEUE_KEY, DEFAULT_CONTROL_QUEUE),
+        getPositive(conf, REPLICATION_QUEUE_KEY, DEFAULT_REPLICATION_QUEUE),
+        getPositive(conf, CLIENT_QUEUE_KEY, DEFAULT_CLIENT_QUEUE) };
+      LOG.info("Creating RPC lanes, threads: " + Arrays.toString(threads) + ", queue capacities: "
+        + Arrays.toString(capacities));
+      instance = new RpcLanes(threads, capacities);
+    }
+    return instance;
+  }
+
+  private static int getPositive(Configuration conf, String key, int defaultValue) {
+    int n = conf.getInt(key, defaultValue);
+    if(n <= 0) {
+      throw new RuntimeException(key + " must be positive:" + n);
+    }
+    return n;
+  }
+
+  static Lane getLane(RpcCall call) {
+    int methodId = MethodTable.getMethodId(call.getMd());
+    if(methodId == APPEND_ENTRIES
+        && ((AppendEntriesRequest)call.getMessage()).getEntriesCount() == 0) {
+      return Lane.CONTROL;
+    }
+    return lanes[methodId];
+  }
+
+  /**
+   * @return executors of the lanes for a new connection, indexed by lane ordinal
+   */
+  Executor[] newChannelExecutors() {
+    Executor[] executors = new Executor[Lane.values().length];
+    executors[Lane.CONTROL.ordinal()] = controlGroup.next();
+    executors[Lane.REPLICATION.ordinal()] = replicationGroup.next();
+    executors[Lane.CLIENT.ordinal()] = clientPool;
+    return executors;
+  }
+
+  /**
+   * Runs the task of the call on the executor of its lane, unless the lane is full.
+   * @return false if the call is rejected
+   */
+  boolean execute(Executor[] executors, RpcCall call, final Runnable task) {
+    Lane lane = getLane(call);
+    final AtomicInteger depth = depths[lane.ordinal()];
+    if(depth.incrementAndGet() > capacities[lane.ordinal()]) {
+      depth.decrementAndGet();
+      rejected[lane.ordinal()].incrementAndGet();
+      return false;
+    }
+    try {
+      executors[lane.ordinal()].execute(new LaneTask(call.getPriority()) {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            depth.decrementAndGet();
+          }
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      depth.decrementAndGet();
+      rejected[lane.ordinal()].incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  int getQueueDepth(Lane lane) {
+    return depths[lane.ordinal()].get();
+  }
+
+  long getRejectedCount(Lane lane) {
+    return rejected[lane.ordinal()].get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("RPC lanes");
+    for(Lane lane: Lane.values()) {
+      sb.append(", ").append(lane.name().toLowerCase()).append(" depth: ")
+        .append(getQueueDepth(lane)).append(" rejected: ").append(getRejectedCount(lane));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Ordered by call priority, then in arrival order, in the queue of the client pool.
+   */
+  private static abstract class LaneTask implements Runnable, Comparable<LaneTask> {
+    private final int priority;
+    private final long sequence = taskSequence.incrementAndGet();
+
+    LaneTask(int priority) {
+      this.priority = priority;
+    }
+
+    @Override
+    public int compareTo(LaneTask other) {
+      if(priority != other.priority) {
+        return priority < other.priority ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+}
@@ -22,13 +22,13 @@ package com.chicm.cmraft.rpc;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.epoll.EpollChannelOption;
 
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
@@ -39,11 +39,18 @@ import com.chicm.cmraft.common.Configuration;
 import com.chicm.cmraft.common.ServerInfo;
 import com.chicm.cmraft.core.RaftRpcService;
 import com.google.protobuf.BlockingService;
+import com.google.protobuf.Descriptors.MethodDescriptor;
 
 /**
  * A RpcServer is a socket server listening on specified port, accepting client's connection
- * and handle RPC requests. In order to prevent slow RPC calls blocking fast ones, It uses 2 
- * queues to process RPC requests.
+ * and handle RPC requests. In order to prevent slow RPC calls blocking fast ones, requests
+ * are handled in separate lanes for raft control, replication and client traffic, see RpcLanes.
+ * Multiple raft groups can share one RpcServer, requests are routed to the service 
+ * registered for the group ID in request header. Methods handled by the host of the groups, 
+ * rather than by one group, can be registered with an AsyncRpcHandler, which responds when 
+ * its future completes instead of holding a lane thread.
+ * With the native epoll transport, the port can be bound by several accept threads with
+ * SO_REUSEPORT, the kernel balances incoming connections among them.
  * @author chicm
  *
  */
@@ -51,27 +58,58 @@ public class RpcServer {
   static final Log LOG = LogFactory.getLog(RpcServer.class);
   
   private static final int DEFAULT_CONNECTION_BACKLOG = 200;
-  private RaftRpcService service = null;
-  private PriorityBlockingQueue<RpcCall> requestQueue = new PriorityBlockingQueue<RpcCall>();
-  private PriorityBlockingQueue<RpcCall> responseQueue = new PriorityBlockingQueue<RpcCall>();
+  private static final int SHUTDOWN_TIMEOUT = 1000;
+  private final static String ACCEPT_THREADS_KEY = "raft.rpc.server.accept.threads";
+  private final static int DEFAULT_ACCEPT_THREADS = 1;
+  /** default group of a server which hosts a single raft group */
+  public static final int DEFAULT_GROUP_ID = 0;
+  private final ConcurrentMap<Integer, BlockingService> services = new ConcurrentHashMap<>();
+  private final ConcurrentMap<MethodDescriptor, AsyncRpcHandler> asyncHandlers = new ConcurrentHashMap<>();
   private final static AtomicLong callCounter = new AtomicLong(0);
   private boolean tpsReportStarted = false;
   private ServerInfo serverInfo;
+  private Configuration conf;
+  private EventLoopGroup bossGroup = null;
+  private EventLoopGroup workerGroup = null;
   
   public RpcServer (Configuration conf, RaftRpcService service, ServerInfo localServer) {
-    this.service = service;
+    this(conf, localServer);
+    registerService(DEFAULT_GROUP_ID, service.getService());
+  }
+  
+  public RpcServer (Configuration conf, ServerInfo localServer) {
+    this.conf = conf;
     this.serverInfo = localServer;
   }
   
   public BlockingService getService() {
-    return service.getService();
+    return services.get(DEFAULT_GROUP_ID);
+  }
+  
+  public void registerService(int groupId, BlockingService service) {
+    if(services.putIfAbsent(groupId, service) != null) {
+      String msg = "Raft group already registered:" + groupId;
+      LOG.error(msg);
+      throw new IllegalStateException(msg);
+    }
+  }
+  
+  public void unregisterService(int groupId) {
+    services.remove(groupId);
+  }
+  
+  /**
+   * Handle the method for all groups with the handler, whatever group the request is sent to.
+   */
+  public void registerAsyncHandler(MethodDescriptor md, AsyncRpcHandler handler) {
+    asyncHandlers.put(md, handler);
   }
   
   public ServerInfo getServerInfo() {
     return this.serverInfo;
   }
   
-  public boolean startRpcServer() {
+  public synchronized boolean startRpcServer() {
     try {
       new NettyListener().start();
     } catch(InterruptedException e) {
@@ -81,24 +119,56 @@ public class RpcServer {
     return true;
   }
 
+  /**
+   * Close the listening sockets and connections of the server, and wait for its 
+   * threads to terminate, so that its port can be bound again.
+   */
+  public synchronized void stopRpcServer() {
+    if(bossGroup == null) {
+      return;
+    }
+    bossGroup.shutdownGracefully(0, SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS).syncUninterruptibly();
+    workerGroup.shutdownGracefully(0, SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS).syncUninterruptibly();
+    bossGroup = null;
+    workerGroup = null;
+    LOG.info("server stopped:" + getServerInfo());
+  }
+
   class NettyListener {
     public void start() throws InterruptedException {
-      EventLoopGroup bossGroup = new NioEventLoopGroup(); 
-      EventLoopGroup workerGroup = new NioEventLoopGroup();
-      ServerChannelHandler handler = new ServerChannelHandler(getService(), callCounter);
+      NettyTransport transport = NettyTransport.select(conf);
+      int acceptThreads = conf.getInt(ACCEPT_THREADS_KEY, DEFAULT_ACCEPT_THREADS);
+      if(acceptThreads <= 0) {
+        throw new RuntimeException(ACCEPT_THREADS_KEY + " must be positive:" + acceptThreads);
+      }
+      if(!transport.isEpoll() && acceptThreads > 1) {
+        LOG.warn("SO_REUSEPORT needs native epoll transport, using one accept thread");
+        acceptThreads = 1;
+      }
+      String name = "RpcServer" + getServerInfo();
+      bossGroup = transport.newEventLoopGroup(acceptThreads, name + "-accept"); 
+      workerGroup = transport.newEventLoopGroup(0, name + "-io");
+      ServerChannelHandler handler = new ServerChannelHandler(services, asyncHandlers, callCounter, conf);
       ServerBootstrap boot = new ServerBootstrap(); 
       boot.group(bossGroup, workerGroup)
-          .channel(NioServerSocketChannel.class)
+          .channel(transport.getServerChannelClass())
           .childHandler(handler)
           .option(ChannelOption.SO_BACKLOG, DEFAULT_CONNECTION_BACKLOG)    
           .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
-          .childOption(ChannelOption.SO_KEEPALIVE, true); 
+          .childOption(ChannelOption.SO_KEEPALIVE, true)
+          .childOption(ChannelOption.TCP_NODELAY, true); 
+      if(transport.isEpoll()) {
+        boot.option(EpollChannelOption.SO_REUSEPORT, true);
+      }
 
-      // Bind and start to accept incoming connections.
-      ChannelFuture f = boot.bind(getServerInfo().getPort()).sync(); 
+      // Bind and start to accept incoming connections, each bind registers a server 
+      // channel to the next accept thread.
+      for(int i = 0; i < acceptThreads; i++) {
+        boot.bind(getServerInfo().getPort()).sync(); 
+      }
 
       // Wait until the server socket is closed.
-      LOG.info("server started");        
+      LOG.info("server started, transport:" + transport + ", accept threads:" + acceptThreads);        
       //f.channel().closeFuture().sync();
     }
   }
@@ -123,7 +193,7 @@ public class RpcServer {
             sec =1;
           long n = callCounter.get() - calls;
           LOG.info("TPS: " + (n/sec));
-          LOG.info("request queue: " + requestQueue.size() + " response queue: " + responseQueue.size());
+          LOG.info(RpcLanes.getInstance(conf));
         }
       }
     });
@@ -0,0 +1,16 @@
+package com.chicm.cmraft.rpc;
+
+import com.google.protobuf.ServiceException;
+
+/**
+ * The call was rejected by the server without being handled, the queue of its lane was full.
+ * It is safe to retry the call later.
+ */
+public class ServerBusyException extends ServiceException {
+
+  private static final long serialVersionUID = -4187520354212270587L;
+
+  public ServerBusyException (String msg) {
+    super(msg);
+  }
+}
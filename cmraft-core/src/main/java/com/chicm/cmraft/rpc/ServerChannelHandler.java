@@ -1,90 +1,186 @@
 package com.chicm.cmraft.rpc;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.chicm.cmraft.core.RaftRpcService;
+import com.chicm.cmraft.common.Configuration;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.RequestHeader;
 import com.chicm.cmraft.protobuf.generated.RaftProtos.ResponseHeader;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.BlockingService;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.Message;
 import com.google.protobuf.ServiceException;
 import com.google.protobuf.Descriptors.MethodDescriptor;
-import com.google.protobuf.Message.Builder;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufInputStream;
-import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.handler.codec.MessageToMessageEncoder;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
-import io.netty.util.concurrent.EventExecutorGroup;
 
 public class ServerChannelHandler extends ChannelInitializer<Channel> {
   static final Log LOG = LogFactory.getLog(ServerChannelHandler.class);
   private static final int MAX_PACKET_SIZE = 1024*1024*100;
-  private static final int RPC_WORKER_THREADS = 100;
-  static final EventExecutorGroup rpcGroup = new DefaultEventExecutorGroup(RPC_WORKER_THREADS);
-  private BlockingService service;
+  private Map<Integer, BlockingService> services;
+  private Map<MethodDescriptor, AsyncRpcHandler> asyncHandlers;
   private AtomicLong callCounter;
+  private WriteCoalescer.Policy flushPolicy;
+  private RpcLanes lanes;
   
-  public ServerChannelHandler(BlockingService service, AtomicLong counter) {
-    this.service = service;
+  /**
+   * @param services services of the raft groups sharing the server, by group ID
+   */
+  public ServerChannelHandler(Map<Integer, BlockingService> services, AtomicLong counter, 
+      Configuration conf) {
+    this(services, Collections.<MethodDescriptor, AsyncRpcHandler>emptyMap(), counter, conf);
+  }
+  
+  /**
+   * @param services services of the raft groups sharing the server, by group ID
+   * @param asyncHandlers handlers of methods served for all groups asynchronously
+   */
+  public ServerChannelHandler(Map<Integer, BlockingService> services, 
+      Map<MethodDescriptor, AsyncRpcHandler> asyncHandlers, AtomicLong counter, Configuration conf) {
+    this.services = services;
+    this.asyncHandlers = asyncHandlers;
     this.callCounter = counter;
+    this.flushPolicy = WriteCoalescer.Policy.create(conf);
+    this.lanes = RpcLanes.getInstance(conf);
   }
   
   @Override
   protected void initChannel(Channel ch) throws Exception {
-    ch.pipeline().addLast("FrameDecoder", new LengthFieldBasedFrameDecoder(MAX_PACKET_SIZE,0,4,0,4)); 
-    ch.pipeline().addLast("FrameEncoder", new LengthFieldPrepender(4));
-    ch.pipeline().addLast("MessageDecoder", new RpcRequestDecoder() );
-    ch.pipeline().addLast("MessageEncoder", new RpcResponseEncoder());
-    ch.pipeline().addLast(rpcGroup, "RpcHandler", new RpcRequestHandler(service, callCounter));
+    ch.pipeline().addLast("FrameDecoder", new RpcFrameDecoder(MAX_PACKET_SIZE)); 
+    RpcRequestDecoder decoder = new RpcRequestDecoder();
+    ch.pipeline().addLast("MessageDecoder", decoder);
+    ch.pipeline().addLast("MessageEncoder", new RpcResponseEncoder(decoder));
+    ch.pipeline().addLast("RpcHandler", new RpcRequestHandler(services, callCounter));
     LOG.debug("initChannel");
   }
   
+  /**
+   * Dispatches requests from the event loop to the executors of their lanes, see RpcLanes.
+   */
   class RpcRequestHandler extends ChannelInboundHandlerAdapter {
-    private BlockingService service;
+    private Map<Integer, BlockingService> services;
     private AtomicLong callCounter;
+    private WriteCoalescer writer;
+    private Executor[] executors;
     
-    RpcRequestHandler(BlockingService service, AtomicLong counter) {
-      this.service = service;
+    RpcRequestHandler(Map<Integer, BlockingService> services, AtomicLong counter) {
+      this.services = services;
       this.callCounter = counter;
     }
+    
+    // responses of calls handled concurrently on the channel are flushed together
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+      writer = new WriteCoalescer(ctx, flushPolicy);
+      executors = lanes.newChannelExecutors();
+    }
+    
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) { 
-      //System.out.println("channelRead");
-      RpcCall call = (RpcCall)msg;
+      final RpcCall call = (RpcCall)msg;
       if(call == null) {
         return;
       }
+      if(call.isError()) {
+        // the request could not be decoded, the caller does not wait for its timeout
+        respondError(call);
+        return;
+      }
       LOG.debug("RpcServer read, call ID: " + call.getCallId() + ", local server:" + ctx.channel().localAddress().toString());
-      try {
-      Message response = service.callBlockingMethod(call.getMd(), null, call.getMessage());
-        if(response != null) {
-          ResponseHeader.Builder builder = ResponseHeader.newBuilder();
-          builder.setId(call.getCallId()); 
-          builder.setResponseName(call.getMd().getName());
-          ResponseHeader header = builder.build();
-          call.setHeader(header);
-          call.setMessage(response);
-          ctx.writeAndFlush(call);
-          callCounter.getAndIncrement();
+      int groupId = call.getGroupId();
+      final AsyncRpcHandler asyncHandler = asyncHandlers.get(call.getMd());
+      final BlockingService service = services.get(groupId);
+      if(asyncHandler == null && service == null) {
+        LOG.warn("RpcServer read, unknown raft group: " + groupId + ", call ID: " + call.getCallId());
+        respondError(call);
+        return;
+      }
+      boolean admitted = lanes.execute(executors, call, new Runnable() {
+        @Override
+        public void run() {
+          if(asyncHandler != null) {
+            handleAsync(asyncHandler, call);
+          } else {
+            handle(service, call);
+          }
         }
+      });
+      if(!admitted) {
+        LOG.debug("RpcServer busy, rejected call ID: " + call.getCallId() + ", " + lanes);
+        call.setBusy(true);
+        respondError(call);
+      }
+    }
+    
+    // runs on the executor of the call's lane
+    private void handle(BlockingService service, RpcCall call) {
+      try {
+        respond(call, service.callBlockingMethod(call.getMd(), null, call.getMessage()));
       } catch(ServiceException e) {
         LOG.error("Rpc Server channelRead exception:" + e.getMessage(), e);
+        respondError(call);
+      } catch(RuntimeException e) {
+        LOG.error("Rpc Server exception, call ID: " + call.getCallId() + ": " + e.getMessage(), e);
+        respondError(call);
+      }
+    }
+    
+    // runs on the executor of the call's lane, which is released before the response is ready
+    private void handleAsync(AsyncRpcHandler handler, final RpcCall call) {
+      ListenableFuture<? extends Message> future;
+      try {
+        future = handler.handle(call.getGroupId(), call.getMessage());
+      } catch(RuntimeException e) {
+        LOG.error("Rpc Server exception, call ID: " + call.getCallId() + ": " + e.getMessage(), e);
+        respondError(call);
+        return;
+      }
+      Futures.addCallback(future, new FutureCallback<Message>() {
+        @Override
+        public void onSuccess(Message response) {
+          respond(call, response);
+        }
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.error("Rpc Server exception, call ID: " + call.getCallId() + ": " + t.getMessage(), t);
+          respondError(call);
+        }
+      });
+    }
+    
+    private void respond(RpcCall call, Message response) {
+      if(response != null) {
+        call.setHeader(null);
+        call.setMessage(response);
+        writer.write(call);
+        callCounter.getAndIncrement();
       }
     }
     
+    private void respondError(RpcCall call) {
+      call.setHeader(null);
+      call.setMessage(null);
+      call.setError(true);
+      writer.write(call);
+    }
+    
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
       LOG.info("Channel closed");
@@ -101,43 +197,92 @@ public class ServerChannelHandler extends ChannelInitializer<Channel> {
   }
   
   class RpcRequestDecoder extends MessageToMessageDecoder<ByteBuf> {
+    /** client supports compact headers, responses are sent in compact headers,
+     *  accessed on the channel's event loop only */
+    private boolean compactHeader = false;
+    
+    boolean isCompactHeader() {
+      return compactHeader;
+    }
+    
+    // requests failing to decode once the call ID is read are passed on as error calls
     protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out)       
         throws Exception {
-      ByteBufInputStream in = new ByteBufInputStream(msg);
-
-      RequestHeader.Builder hbuilder = RequestHeader.newBuilder();
-      hbuilder.mergeDelimitedFrom(in);
-      RequestHeader header = hbuilder.build();
-
-      BlockingService service = RaftRpcService.create().getService();
+      if(RpcHeaderCodec.isCompact(msg)) {
+        compactHeader = true;
+        RpcCall call = RpcHeaderCodec.decode(msg, true);
+        if(call != null) {
+          out.add(call);
+        }
+        return;
+      }
       
-      MethodDescriptor md = service.getDescriptorForType().findMethodByName(header.getRequestName());
-      Builder builder = service.getRequestPrototype(md).newBuilderForType();
+      CodedInputStream in = RpcHeaderCodec.newInput(msg);
+
+      RequestHeader header = RpcHeaderCodec.parseDelimited(in, RequestHeader.PARSER);
+      if(header == null) {
+        LOG.error("Parsing packet header failed!");
+        return;
+      }
+      if(header.getCompactHeader()) {
+        compactHeader = true;
+      }
+      MethodDescriptor md = MethodTable.getMethod(header);
+      if(md == null) {
+        LOG.error("Unknown method in request header, call ID:" + header.getId());
+        out.add(RpcHeaderCodec.undecodable(header.getId(), null));
+        return;
+      }
       Message body = null;
-      if (builder != null) {
-        if(builder.mergeDelimitedFrom(in)) {
-          body = builder.build();
-        } else {
-          LOG.error("Parsing packet failed!");
-        }
+      try {
+        body = RpcHeaderCodec.parseDelimited(in, MethodTable.getRequestParser(md));
+      } catch(IOException e) {
+        LOG.error("Parsing packet failed, call ID:" + header.getId() + ": " + e.getMessage());
+      }
+      if(body == null) {
+        LOG.error("Parsing packet failed!");
+        out.add(RpcHeaderCodec.undecodable(header.getId(), md));
+        return;
       }
       RpcCall call = new RpcCall(header.getId(), header, body, md);
+      call.setGroupId(header.getGroupId());
       out.add(call);
     }
   }
   
   class RpcResponseEncoder extends MessageToMessageEncoder<RpcCall> {
+    private RpcRequestDecoder decoder;
+    
+    RpcResponseEncoder(RpcRequestDecoder decoder) {
+      this.decoder = decoder;
+    }
+    
     @Override
     protected  void encode(ChannelHandlerContext ctx,  RpcCall call, List<Object> out) throws Exception {
-      int totalSize = PacketUtils.getTotalSizeofMessages(call.getHeader(), call.getMessage());
-      ByteBuf encoded = ctx.alloc().buffer(totalSize);
-      ByteBufOutputStream os = new ByteBufOutputStream(encoded);
+      if(decoder.isCompactHeader()) {
+        out.add(RpcHeaderCodec.encodeFrame(ctx.alloc(), call));
+        LOG.debug("RpcServer encode response, call ID: " + call.getCallId());
+        return;
+      }
+      // response name is required by older clients
+      ResponseHeader.Builder builder = ResponseHeader.newBuilder();
+      builder.setId(call.getCallId()); 
+      if(call.getMd() != null) {
+        builder.setResponseName(call.getMd().getName());
+      }
+      builder.setMethodId(MethodTable.getMethodId(call.getMd()));
+      Message body = call.getMessage();
+      if(call.isError()) {
+        // older clients ignore the error field and get an empty response
+        builder.setError(true);
+        builder.setBusy(call.isBusy());
+        body = call.getMd() == null ? null 
+            : MethodTable.getResponseParser(call.getMd()).parsePartialFrom(ByteString.EMPTY);
+      }
+      ResponseHeader header = builder.build();
+      
       try {
-        call.getHeader().writeDelimitedTo(os);
-        if (call.getMessage() != null)  {
-          call.getMessage().writeDelimitedTo(os);
-        }
-        out.add(encoded);
+        out.add(RpcHeaderCodec.encodeFrame(ctx.alloc(), header, body));
         LOG.debug("RpcServer encode response, call ID: " + call.getCallId());
       } catch(Exception e) {
         LOG.error("Rpc Server encode exception:" + e.getMessage(), e);
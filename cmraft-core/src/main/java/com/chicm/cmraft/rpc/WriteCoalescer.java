@@ -0,0 +1,127 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+
+import java.util.concurrent.TimeUnit;
+
+import com.chicm.cmraft.common.Configuration;
+
+/**
+ * Coalesces flushes of RPC messages written to a channel. Messages are written without
+ * flushing, the first one schedules a flush, messages written before the flush runs go out
+ * with it in one syscall. By default the flush runs after the tasks already queued on the
+ * channel's event loop, so writes issued in the same event loop tick share one flush.
+ * A flush is done at once when max messages are pending.
+ * All state is confined to the channel's event loop, writes from other threads are handed
+ * over to it as one task each, which keeps them in order.
+ *
+ * raft.rpc.flush.max.messages = 64, 1 flushes every message
+ * raft.rpc.flush.max.delay.us = 0, max delay of a flush in microseconds, 0 for the end
+ * of the current event loop tick
+ * @author chicm
+ *
+ */
+class WriteCoalescer {
+  private final static String MAX_MESSAGES_KEY = "raft.rpc.flush.max.messages";
+  private final static String MAX_DELAY_KEY = "raft.rpc.flush.max.delay.us";
+  private final static int DEFAULT_MAX_MESSAGES = 64;
+  private final static int DEFAULT_MAX_DELAY = 0;
+
+  private final ChannelHandlerContext ctx;
+  private final EventLoop eventLoop;
+  private final Policy policy;
+  private int pending = 0;
+  private boolean flushScheduled = false;
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flushScheduled = false;
+      if(pending > 0) {
+        flush();
+      }
+    }
+  };
+
+  WriteCoalescer(ChannelHandlerContext ctx, Policy policy) {
+    this.ctx = ctx;
+    this.eventLoop = ctx.channel().eventLoop();
+    this.policy = policy;
+  }
+
+  ChannelFuture write(final Object msg) {
+    if(policy.maxMessages <= 1) {
+      return ctx.writeAndFlush(msg);
+    }
+    final ChannelPromise promise = ctx.newPromise();
+    if(eventLoop.inEventLoop()) {
+      write(msg, promise);
+    } else {
+      eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          write(msg, promise);
+        }
+      });
+    }
+    return promise;
+  }
+
+  // runs on event loop
+  private void write(Object msg, ChannelPromise promise) {
+    ctx.write(msg, promise);
+    if(++pending >= policy.maxMessages) {
+      flush();
+    } else if(!flushScheduled) {
+      flushScheduled = true;
+      if(policy.maxDelayMicros > 0) {
+        eventLoop.schedule(flushTask, policy.maxDelayMicros, TimeUnit.MICROSECONDS);
+      } else {
+        eventLoop.execute(flushTask);
+      }
+    }
+  }
+
+  private void flush() {
+    pending = 0;
+    ctx.flush();
+  }
+
+  static class Policy {
+    private final int maxMessages;
+    private final long maxDelayMicros;
+
+    Policy(int maxMessages, long maxDelayMicros) {
+      this.maxMessages = maxMessages;
+      this.maxDelayMicros = maxDelayMicros;
+    }
+
+    static Policy create(Configuration conf) {
+      return new Policy(conf.getInt(MAX_MESSAGES_KEY, DEFAULT_MAX_MESSAGES),
+        conf.getInt(MAX_DELAY_KEY, DEFAULT_MAX_DELAY));
+    }
+  }
+}
@@ -71,8 +71,10 @@ public class BlockingHashMap <K,V> {
     return ret;
   }
   
-  private V remove(K key) {
-    locks.remove(key);
+  /**
+   * Remove the value of the key, for values put after their taker gave up.
+   */
+  public V remove(K key) {
     return map.remove(key);
   }
   
@@ -87,51 +89,57 @@ public class BlockingHashMap <K,V> {
   
   /**
    * Take and remove a value from the hash table, if specified key not in
-   * the hash table, it blocks until timeout  
+   * the hash table, it blocks until timeout. The lock of the key is removed when
+   * take returns, whether it gets the value or not.
    * @param key : key of the value
    * @param timeout: timeout in milliseconds
-   * @return null if it does not get the value at specified timeout and retries
+   * @return null if interrupted
    */
   public V take(K key, int timeout) throws RpcTimeoutException {
     Preconditions.checkNotNull(key);
-    V ret = null;
-    KeyLock lock = locks.get(key);
-    if(lock == null) {
-      lock = new KeyLock();
-      locks.put(key, lock);
+    KeyLock lock = new KeyLock();
+    KeyLock existing = locks.putIfAbsent(key, lock);
+    if(existing != null) {
+      lock = existing;
     }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    lock.lock();
     try {
-      lock.lock();
-      ret = map.get(key);
-      if(ret != null) {
-        remove(key);
-        return ret;
-      }
-      if(timeout==0) {
-        lock.await();
-      } else {
-        lock.await(timeout);
-      }
-      ret = map.get(key);
-      if(ret == null) {
-        throw new RpcTimeoutException("Rpc Timeout");
+      V ret = map.remove(key);
+      while(ret == null) {
+        if(timeout == 0) {
+          lock.await();
+        } else {
+          long remaining = deadline - System.nanoTime();
+          if(remaining <= 0) {
+            throw new RpcTimeoutException("Rpc Timeout");
+          }
+          lock.awaitNanos(remaining);
+        }
+        ret = map.remove(key);
       }
+      return ret;
     } catch (InterruptedException ex) {
       LOG.error("InterruptedException", ex);
-      return ret;
-    }
-    finally {
-        lock.unlock();
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      locks.remove(key, lock);
+      lock.unlock();
     }
-    
-    remove(key);
-    return ret;
   }
   
   public int size() {
     return map.size();
   }
   
+  /**
+   * @return number of keys with takers waiting
+   */
+  int getLockCount() {
+    return locks.size();
+  }
+  
   public boolean isEmpty() {
     return map.isEmpty();
   }
@@ -174,6 +182,10 @@ public class BlockingHashMap <K,V> {
     public void await(int timeout) throws InterruptedException {
       condition.await(timeout, TimeUnit.MILLISECONDS);
     }
+    
+    public long awaitNanos(long nanos) throws InterruptedException {
+      return condition.awaitNanos(nanos);
+    }
   }
 
 }
@@ -30,7 +30,8 @@ import org.apache.commons.logging.LogFactory;
 
 /**
  * CappedPriorityBlockingQueue is a bounded priority blocking queue, while the size reach it's maximum
- * capacity, the put operation is blocked until there is space in the queue to place the element.
+ * capacity, the put operation is blocked until there is space in the queue to place the element,
+ * and the offer operation fails at once.
  * The PriorityBlockingQueue is an unbounded priority queue, for which the put operation never blocked.
  * @author chicm
  *
@@ -62,39 +63,61 @@ public class CappedPriorityBlockingQueue<E> extends PriorityBlockingQueue<E>{
         putLock.unlock();
       }
   }
+  /**
+   * Waits for space in the queue while it is full.
+   */
   @Override
   public void put(E e) {
-    offer(e); 
-  }
-  
-  @Override
-  public boolean add(E e) {
-    return offer(e);
-  }
-  
-  @Override
-  public boolean offer(E e) {
-    boolean ret = false;
     final ReentrantLock putLock = this.putLock;
     try {
       putLock.lockInterruptibly();
+      try {
         while (size() >= this.maxCapacity) {
           LOG.debug("Thread:" + Thread.currentThread().getName() + ": queue is full, waiting...");
           notFull.await();
           LOG.debug("Thread:" + Thread.currentThread().getName() + ": waiting done");
         }
-        
-        ret = super.offer(e);
+        super.offer(e);
         if (size() < this.maxCapacity)
-            notFull.signal();
+          notFull.signal();
+      } finally {
+        putLock.unlock();
+      }
     } catch (InterruptedException ex) {
       LOG.error("InterruptedException", ex);
-      return false;
+      Thread.currentThread().interrupt();
     }
-    finally {
-        putLock.unlock();
+  }
+  
+  @Override
+  public boolean add(E e) {
+    if(!offer(e)) {
+      throw new IllegalStateException("Queue full");
+    }
+    return true;
+  }
+  
+  /**
+   * Never waits, as required by executors using the queue.
+   * @return false if the queue is full
+   */
+  @Override
+  public boolean offer(E e) {
+    final ReentrantLock putLock = this.putLock;
+    putLock.lock();
+    try {
+      if (size() >= this.maxCapacity) {
+        return false;
+      }
+      return super.offer(e);
+    } finally {
+      putLock.unlock();
     }
-    return ret;
+  }
+  
+  @Override
+  public int remainingCapacity() {
+    return Math.max(0, this.maxCapacity - size());
   }
   
   public E poll(long timeout, TimeUnit unit) throws InterruptedException {
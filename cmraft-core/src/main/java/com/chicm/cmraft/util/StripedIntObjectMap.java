@@ -0,0 +1,149 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.util;
+
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A thread safe hash table of primitive int keys. Keys are spread over a fixed number of
+ * open addressing tables, each guarded by its own lock, so that keys are not boxed and
+ * no entry objects are allocated. Removing a key frees its slot right away, the memory
+ * of a table is bounded by the most entries it ever held.
+ *
+ * @author chicm
+ *
+ * @param <V>
+ */
+public class StripedIntObjectMap<V> {
+  private static final int DEFAULT_STRIPES = 16;
+
+  private final IntObjectHashMap<V>[] stripes;
+  private final int mask;
+
+  public StripedIntObjectMap() {
+    this(DEFAULT_STRIPES);
+  }
+
+  /**
+   * @param stripes number of tables, must be a power of 2
+   */
+  @SuppressWarnings("unchecked")
+  public StripedIntObjectMap(int stripes) {
+    Preconditions.checkArgument(stripes > 0 && (stripes & (stripes - 1)) == 0,
+      "stripes must be a power of 2: %s", stripes);
+    this.stripes = new IntObjectHashMap[stripes];
+    for(int i = 0; i < stripes; i++) {
+      this.stripes[i] = new IntObjectHashMap<>();
+    }
+    this.mask = stripes - 1;
+  }
+
+  private IntObjectHashMap<V> stripe(int key) {
+    // spread sequential keys, such as call IDs, over the stripes
+    int h = key * 0x9E3779B9;
+    return stripes[(h ^ (h >>> 16)) & mask];
+  }
+
+  public V put(int key, V value) {
+    Preconditions.checkNotNull(value);
+    IntObjectHashMap<V> stripe = stripe(key);
+    synchronized(stripe) {
+      return stripe.put(key, value);
+    }
+  }
+
+  /**
+   * Map the key to the value only if it is not mapped yet.
+   * @return the value the key is mapped to, null if the value was put
+   */
+  public V putIfAbsent(int key, V value) {
+    Preconditions.checkNotNull(value);
+    IntObjectHashMap<V> stripe = stripe(key);
+    synchronized(stripe) {
+      V existing = stripe.get(key);
+      if(existing != null) {
+        return existing;
+      }
+      stripe.put(key, value);
+      return null;
+    }
+  }
+
+  public V get(int key) {
+    IntObjectHashMap<V> stripe = stripe(key);
+    synchronized(stripe) {
+      return stripe.get(key);
+    }
+  }
+
+  public V remove(int key) {
+    IntObjectHashMap<V> stripe = stripe(key);
+    synchronized(stripe) {
+      return stripe.remove(key);
+    }
+  }
+
+  /**
+   * Remove the key only if it is mapped to the value.
+   * @return true if removed
+   */
+  public boolean remove(int key, V value) {
+    IntObjectHashMap<V> stripe = stripe(key);
+    synchronized(stripe) {
+      if(stripe.get(key) != value) {
+        return false;
+      }
+      stripe.remove(key);
+      return true;
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for(IntObjectHashMap<V> stripe: stripes) {
+      synchronized(stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return snapshot of the values, not consistent across stripes
+   */
+  public List<V> values() {
+    List<V> values = new ArrayList<>();
+    for(IntObjectHashMap<V> stripe: stripes) {
+      synchronized(stripe) {
+        for(IntObjectMap.Entry<V> entry: stripe.entries()) {
+          values.add(entry.value());
+        }
+      }
+    }
+    return values;
+  }
+}
@@ -20,6 +20,11 @@
 
 package com.chicm.cmraft.core;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
 import com.chicm.cmraft.Connection;
 import com.chicm.cmraft.ConnectionManager;
 import com.chicm.cmraft.common.CmRaftConfiguration;
@@ -40,6 +45,8 @@ public class LocalCluster {
   
   private Configuration[] confs;
   private RaftNode[] nodes;
+  private Map<String, String> settings = Collections.emptyMap();
+  private String rootDir = null;
   
   private Connection connection;
 
@@ -54,6 +61,52 @@ public class LocalCluster {
     return instance;
   }
   
+  /**
+   * Start a new cluster of n nodes, not shared with other tests. The test configuration 
+   * is overridden by settings, and logs are stored in a new temporary directory.
+   */
+  public static LocalCluster start(int n, int startPort, Map<String, String> settings) {
+    LocalCluster cluster = new LocalCluster();
+    cluster.settings = settings;
+    cluster.rootDir = createTempDirectory();
+    cluster.createCluster(n, n, startPort);
+    return cluster;
+  }
+  
+  /**
+   * Close all nodes of a cluster created by start, their ports can be used again.
+   */
+  public void shutdown() {
+    if(connection != null) {
+      connection.close();
+    }
+    for(RaftNode node: nodes) {
+      node.close();
+    }
+  }
+  
+  /**
+   * @return the leader once a single leader is elected, or null on timeout
+   */
+  public RaftNode waitForLeader(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while(System.currentTimeMillis() < deadline) {
+      RaftNode leader = null;
+      int nLeader = 0;
+      for(RaftNode node: nodes) {
+        if(node.isLeader()) {
+          leader = node;
+          nLeader++;
+        }
+      }
+      if(nLeader == 1 && leader.hasValidLease()) {
+        return leader;
+      }
+      Thread.sleep(10);
+    }
+    return null;
+  }
+  
   public Connection getConnection() {
     if(connection == null) {
       connection = ConnectionManager.getConnection(getConf(0));
@@ -127,11 +180,25 @@ public class LocalCluster {
     }
   }
   
+  static String createTempDirectory() {
+    try {
+      return Files.createTempDirectory("cmraft-test").toString();
+    } catch(IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
   private void createConfiguration() {
     confs = new Configuration[nodeNumber];
     for(int i = 0; i < nodeNumber; i++) {
       confs[i] = CmRaftConfiguration.create();
       confs[i].useResource("cmraft_cluster_test.properties");
+      for(Map.Entry<String, String> setting: settings.entrySet()) {
+        confs[i].set(setting.getKey(), setting.getValue());
+      }
+      if(rootDir != null) {
+        confs[i].set("raft.root.dir", rootDir);
+      }
       for(int j=0; j < nodeNumber;j++) {
         confs[i].set("raft.server.server" + j, "localhost:" + (startPort+j));
       }
@@ -1,13 +1,25 @@
 package com.chicm.cmraft.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import org.junit.Test;
 
 import com.chicm.cmraft.common.CmRaftConfiguration;
 import com.chicm.cmraft.common.Configuration;
+import com.chicm.cmraft.common.ServerInfo;
 public class TestClusterMemberManager {
   
   public Configuration createConf1() {
@@ -49,6 +61,80 @@ public class TestClusterMemberManager {
     System.out.println("raftserver:" + ClusterMemberManager.getRaftServers(createConf2()));
   }
   
+  @Test
+  public void testJointConsensus() {
+    ClusterMemberManager mgr = new ClusterMemberManager(createConf2());
+    ServerInfo s1 = new ServerInfo("chicm", 2222);
+    ServerInfo s2 = new ServerInfo("chicm", 2223);
+    ServerInfo s3 = new ServerInfo("chicm", 2224);
+    ServerInfo s4 = new ServerInfo("chicm", 2225);
+    ServerInfo s5 = new ServerInfo("chicm", 2226);
+    
+    Set<ServerInfo> oldMembers = new HashSet<>(Arrays.asList(s1, s2, s3));
+    Set<ServerInfo> newMembers = new HashSet<>(Arrays.asList(s1, s2, s3, s4, s5));
+    assertEquals(oldMembers, mgr.getMembers());
+    assertTrue(mgr.isQuorum(new HashSet<>(Arrays.asList(s1, s2))));
+    
+    mgr.setConfiguration(oldMembers, newMembers, Collections.<ServerInfo>emptySet());
+    assertTrue(mgr.isJointConsensus());
+    assertEquals(4, mgr.getRemoteServers().size());
+    // majority of old configuration only
+    assertFalse(mgr.isQuorum(new HashSet<>(Arrays.asList(s1, s2))));
+    // majority of new configuration only
+    assertFalse(mgr.isQuorum(new HashSet<>(Arrays.asList(s1, s4, s5))));
+    assertTrue(mgr.isQuorum(new HashSet<>(Arrays.asList(s1, s2, s4))));
+    
+    Map<ServerInfo, Long> values = new HashMap<>();
+    values.put(s1, 10L);
+    values.put(s2, 9L);
+    values.put(s3, 1L);
+    values.put(s4, 8L);
+    values.put(s5, 2L);
+    assertEquals(8L, mgr.getQuorumValue(values));
+    
+    mgr.setConfiguration(new HashSet<>(Arrays.asList(s2, s3, s4)), null, Collections.<ServerInfo>emptySet());
+    assertFalse(mgr.isJointConsensus());
+    assertFalse(mgr.isMember(s1));
+    assertEquals(new HashSet<>(Arrays.asList(s2, s3, s4)), mgr.getRemoteServers());
+    assertEquals(8L, mgr.getQuorumValue(values));
+    
+    mgr.resetConfiguration();
+    assertEquals(oldMembers, mgr.getMembers());
+  }
+  
+  @Test
+  public void testLearners() {
+    ClusterMemberManager mgr = new ClusterMemberManager(createConf2());
+    ServerInfo s1 = new ServerInfo("chicm", 2222);
+    ServerInfo s2 = new ServerInfo("chicm", 2223);
+    ServerInfo s3 = new ServerInfo("chicm", 2224);
+    ServerInfo s4 = new ServerInfo("chicm", 2225);
+    ServerInfo s5 = new ServerInfo("chicm", 2226);
+    
+    Set<ServerInfo> members = new HashSet<>(Arrays.asList(s1, s2, s3));
+    mgr.setConfiguration(members, null, new HashSet<>(Arrays.asList(s4, s5)));
+    assertTrue(mgr.isLearner(s4));
+    assertFalse(mgr.isMember(s4));
+    assertEquals(4, mgr.getRemoteServers().size());
+    // learners are not counted in quorum
+    assertFalse(mgr.isQuorum(new HashSet<>(Arrays.asList(s1, s4, s5))));
+    assertTrue(mgr.isQuorum(new HashSet<>(Arrays.asList(s1, s2))));
+    
+    Map<ServerInfo, Long> values = new HashMap<>();
+    values.put(s1, 10L);
+    values.put(s4, 10L);
+    values.put(s5, 10L);
+    assertEquals(0L, mgr.getQuorumValue(values));
+    
+    Configuration conf = createConf2();
+    conf.set("raft.local.server", "chicm:2225");
+    conf.set("raft.learner", "true");
+    ClusterMemberManager learner = new ClusterMemberManager(conf);
+    assertEquals(members, learner.getMembers());
+    assertTrue(learner.isLearner(s4));
+    assertEquals(members, learner.getRemoteServers());
+  }
+  
   /*
   @Test
   public void testLocalHost() {
@@ -0,0 +1,118 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestConfirmLeadership {
+  private static final int PORT = 14960;
+  private static LocalCluster cluster;
+  
+  @BeforeClass
+  public static void init() {
+    Map<String, String> settings = new HashMap<>();
+    settings.put("raft.election.timeout", "1000");
+    settings.put("raft.heartbeat.interval", "100");
+    cluster = LocalCluster.start(3, PORT, settings);
+  }
+  
+  @AfterClass
+  public static void shutdown() {
+    cluster.shutdown();
+  }
+  
+  @Test(timeout = 60000)
+  public void testReadsArrivingDuringRoundWaitForNext() throws Exception {
+    RaftNode leader = cluster.waitForLeader(10000);
+    assertNotNull(leader);
+    long rounds = leader.getConfirmRounds();
+    
+    // the first round is held in the event loop, all reads arrive before it is sent
+    final CountDownLatch release = new CountDownLatch(1);
+    leader.getEventLoop().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch(InterruptedException e) {
+        }
+      }
+    });
+    AtomicInteger confirmed = new AtomicInteger(0);
+    List<Thread> readers = startReaders(leader, 20, 1, confirmed);
+    Thread.sleep(200);
+    assertEquals(rounds + 1, leader.getConfirmRounds());
+    
+    // the reads not starting the first round share the second one
+    release.countDown();
+    for(Thread reader: readers) {
+      reader.join();
+    }
+    assertEquals(20, confirmed.get());
+    assertEquals(rounds + 2, leader.getConfirmRounds());
+  }
+  
+  @Test(timeout = 60000)
+  public void testConcurrentReadsShareRounds() throws Exception {
+    RaftNode leader = cluster.waitForLeader(10000);
+    assertNotNull(leader);
+    long rounds = leader.getConfirmRounds();
+    
+    AtomicInteger confirmed = new AtomicInteger(0);
+    for(Thread reader: startReaders(leader, 8, 50, confirmed)) {
+      reader.join();
+    }
+    assertEquals(400, confirmed.get());
+    rounds = leader.getConfirmRounds() - rounds;
+    assertTrue("heartbeat rounds:" + rounds, rounds < 200);
+  }
+  
+  private static List<Thread> startReaders(final RaftNode leader, int threads, final int reads, 
+      final AtomicInteger confirmed) {
+    List<Thread> readers = new ArrayList<>();
+    for(int i = 0; i < threads; i++) {
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for(int j = 0; j < reads; j++) {
+            if(leader.confirmLeadership()) {
+              confirmed.incrementAndGet();
+            }
+          }
+        }
+      });
+      reader.start();
+      readers.add(reader);
+    }
+    return readers;
+  }
+}
@@ -0,0 +1,125 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestElection {
+  private static final int PORT = 15060;
+  private static final int ELECTION_TIMEOUT = 500;
+  
+  private static LocalCluster startCluster(int port) {
+    Map<String, String> settings = new HashMap<>();
+    settings.put("raft.election.timeout", String.valueOf(ELECTION_TIMEOUT));
+    settings.put("raft.heartbeat.interval", "100");
+    return LocalCluster.start(3, port, settings);
+  }
+  
+  @Test(timeout = 60000)
+  public void testRejoiningNodeFailsPreVote() throws Exception {
+    LocalCluster cluster = startCluster(PORT);
+    try {
+      RaftNode leader = cluster.waitForLeader(10000);
+      assertNotNull(leader);
+      long term = leader.getCurrentTerm();
+      RaftNode follower = null;
+      for(RaftNode node: cluster.getNodes()) {
+        if(node != leader) {
+          follower = node;
+        }
+      }
+      
+      // the follower no longer hears from the leader, its PreVote requests still
+      // reach the others, who reject them while they hear from the leader
+      follower.getRpcServer().stopRpcServer();
+      boolean preCandidate = false;
+      long deadline = System.currentTimeMillis() + 6 * ELECTION_TIMEOUT;
+      while(System.currentTimeMillis() < deadline) {
+        State state = follower.getState();
+        assertTrue("state:" + state, state == State.FOLLOWER || state == State.PRE_CANDIDATE);
+        preCandidate |= state == State.PRE_CANDIDATE;
+        assertEquals(term, follower.getCurrentTerm());
+        Thread.sleep(10);
+      }
+      assertTrue(preCandidate);
+      assertTrue(leader.isLeader());
+      assertEquals(term, leader.getCurrentTerm());
+      
+      // once the partition heals it follows the same leader in the same term
+      follower.getRpcServer().startRpcServer();
+      deadline = System.currentTimeMillis() + 10 * ELECTION_TIMEOUT;
+      while(!(follower.getState() == State.FOLLOWER 
+          && leader.getServerInfo().equals(follower.getCurrentLeader()))) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(10);
+      }
+      assertEquals(term, follower.getCurrentTerm());
+      assertSame(leader, cluster.waitForLeader(10000));
+      assertEquals(term, leader.getCurrentTerm());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+  
+  @Test(timeout = 60000)
+  public void testIsolatedLeaderStepsDown() throws Exception {
+    LocalCluster cluster = startCluster(PORT + 5);
+    try {
+      RaftNode leader = cluster.waitForLeader(10000);
+      assertNotNull(leader);
+      long term = leader.getCurrentTerm();
+      
+      // the followers neither answer the leader nor start elections of their own
+      long isolated = System.currentTimeMillis();
+      for(RaftNode node: cluster.getNodes()) {
+        if(node != leader) {
+          node.kill();
+          node.getRpcServer().stopRpcServer();
+        }
+      }
+      while(leader.isLeader()) {
+        assertTrue(System.currentTimeMillis() - isolated < 4 * ELECTION_TIMEOUT);
+        Thread.sleep(10);
+      }
+      long elapsed = System.currentTimeMillis() - isolated;
+      assertTrue("stepped down after " + elapsed + "ms", elapsed >= ELECTION_TIMEOUT / 2);
+      assertFalse(leader.hasValidLease());
+      assertNull(leader.getCurrentLeader());
+      
+      // alone it cannot pass PreVote, so its term stays put
+      long deadline = System.currentTimeMillis() + 4 * ELECTION_TIMEOUT;
+      while(System.currentTimeMillis() < deadline) {
+        State state = leader.getState();
+        assertTrue("state:" + state, state == State.FOLLOWER || state == State.PRE_CANDIDATE);
+        assertEquals(term, leader.getCurrentTerm());
+        Thread.sleep(10);
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
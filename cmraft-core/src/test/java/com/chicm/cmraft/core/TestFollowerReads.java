@@ -0,0 +1,158 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftLogEntry;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadConsistency;
+
+public class TestFollowerReads {
+  private static final int PORT = 15030;
+  private static LocalCluster cluster;
+  
+  @BeforeClass
+  public static void init() {
+    Map<String, String> settings = new HashMap<>();
+    settings.put("raft.election.timeout", "3000");
+    settings.put("raft.heartbeat.interval", "100");
+    cluster = LocalCluster.start(3, PORT, settings);
+  }
+  
+  @AfterClass
+  public static void shutdown() {
+    cluster.shutdown();
+  }
+  
+  /**
+   * Followers serve reads of any consistency from their own state machine, bounded 
+   * staleness reads only while the leader was heard from recently enough, otherwise 
+   * they fall back to a read index from the leader, as linearizable reads do.
+   */
+  @Test(timeout = 60000)
+  public void testFollowerReads() throws Exception {
+    RaftNode leader = cluster.waitForLeader(10000);
+    assertNotNull(leader);
+    assertTrue(leader.getRaftLog().set(TestReadModes.createKeyValue("key", "value")));
+    RaftNode follower = cluster.getNodes()[0] != leader ? cluster.getNodes()[0] : cluster.getNodes()[1];
+    while(read(follower, ReadConsistency.ANY, -1) == null) {
+      Thread.sleep(10);
+    }
+    assertEquals("value", read(follower, ReadConsistency.LINEARIZABLE, -1));
+    assertEquals("value", read(follower, ReadConsistency.BOUNDED_STALENESS, 1000));
+    
+    // no heartbeats while the leader's event loop is held, nor read index confirmation
+    final CountDownLatch release = new CountDownLatch(1);
+    leader.getEventLoop().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch(InterruptedException e) {
+        }
+      }
+    });
+    try {
+      Thread.sleep(500);
+      assertEquals("value", read(follower, ReadConsistency.ANY, -1));
+      assertEquals("value", read(follower, ReadConsistency.BOUNDED_STALENESS, 2000));
+      assertNull(read(follower, ReadConsistency.BOUNDED_STALENESS, 200));
+      assertNull(read(follower, ReadConsistency.LINEARIZABLE, -1));
+    } finally {
+      release.countDown();
+    }
+    
+    while(read(follower, ReadConsistency.BOUNDED_STALENESS, 200) == null) {
+      Thread.sleep(10);
+    }
+    assertEquals("value", read(follower, ReadConsistency.LINEARIZABLE, -1));
+  }
+  
+  /**
+   * A follower whose AppendEntries RPCs fail the consistency check hears from the leader, 
+   * but is neither fresh nor within the lag bound of the leader's commit index.
+   */
+  @Test(timeout = 60000)
+  public void testRejectedAppendsNotFresh() throws Exception {
+    RaftNode leader = cluster.waitForLeader(10000);
+    assertNotNull(leader);
+    assertTrue(leader.getRaftLog().set(TestReadModes.createKeyValue("key", "value")));
+    final RaftNode follower = cluster.getNodes()[0] != leader ? cluster.getNodes()[0] : cluster.getNodes()[1];
+    while(read(follower, ReadConsistency.ANY, -1) == null) {
+      Thread.sleep(10);
+    }
+    
+    final CountDownLatch release = new CountDownLatch(1);
+    leader.getEventLoop().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch(InterruptedException e) {
+        }
+      }
+    });
+    try {
+      Thread.sleep(300);
+      // a leader far ahead, unknown to the follower, so reads falling back to a read index fail at once
+      final ServerInfo other = new ServerInfo("localhost", PORT + 10);
+      final long term = follower.getCurrentTerm();
+      final long commit = follower.getRaftLog().getCommitIndex() + 100;
+      final long prevLogIndex = follower.getRaftLog().getLastApplied() + 50;
+      boolean appended = follower.getEventLoop().call(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          follower.discoverLeader(other, term);
+          return follower.getRaftLog().appendEntries(term, other, commit, prevLogIndex, term, 
+            new ArrayList<RaftLogEntry>());
+        }
+      });
+      assertFalse(appended);
+      assertNull(read(follower, ReadConsistency.BOUNDED_STALENESS, 200));
+      assertNull(read(follower, ReadConsistency.BOUNDED_STALENESS, -1, 10));
+      assertEquals("value", read(follower, ReadConsistency.BOUNDED_STALENESS, 2000));
+      assertEquals("value", read(follower, ReadConsistency.BOUNDED_STALENESS, -1, 200));
+    } finally {
+      release.countDown();
+    }
+  }
+  
+  private static String read(RaftNode node, ReadConsistency consistency, long maxStalenessMs) {
+    return read(node, consistency, maxStalenessMs, -1);
+  }
+  
+  private static String read(RaftNode node, ReadConsistency consistency, long maxStalenessMs, 
+      long maxLagIndex) {
+    byte[] value = node.getRaftLog().get("key".getBytes(), consistency, maxStalenessMs, maxLagIndex);
+    return value == null ? null : new String(value);
+  }
+}
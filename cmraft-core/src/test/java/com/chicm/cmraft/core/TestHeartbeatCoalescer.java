@@ -0,0 +1,122 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.chicm.cmraft.common.CmRaftConfiguration;
+import com.chicm.cmraft.common.Configuration;
+import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GroupHeartbeat;
+
+public class TestHeartbeatCoalescer {
+  private static final int PORT = 14980;
+  private static final int HOSTS = 3;
+  private static final int GROUPS = 4;
+  private static MultiRaftHost[] hosts = new MultiRaftHost[HOSTS];
+  
+  /**
+   * Hosts A, B and C each host groups 1 to 4, except that B does not host group 4. 
+   * Elections never time out, so the only heartbeats are the ones queued by the test.
+   */
+  @BeforeClass
+  public static void init() {
+    for(int i = 0; i < HOSTS; i++) {
+      Configuration conf = CmRaftConfiguration.create();
+      conf.useResource("cmraft_cluster_test.properties");
+      conf.set("raft.root.dir", LocalCluster.createTempDirectory());
+      conf.set("raft.election.timeout", "600000");
+      conf.set("raft.multi.heartbeat.delay", "200");
+      for(int j = 0; j < HOSTS; j++) {
+        if(j != i) {
+          conf.set("raft.server.server" + j, "localhost:" + (PORT + j));
+        }
+      }
+      conf.set("raft.local.server", "localhost:" + (PORT + i));
+      hosts[i] = new MultiRaftHost(conf);
+      for(int group = 1; group <= GROUPS; group++) {
+        if(i != 1 || group != GROUPS) {
+          hosts[i].addGroup(group);
+        }
+      }
+    }
+  }
+  
+  @AfterClass
+  public static void shutdown() {
+    for(MultiRaftHost host: hosts) {
+      host.close();
+    }
+  }
+  
+  @Test(timeout = 60000)
+  public void testCoalesceAndRespond() throws Exception {
+    MultiRaftHost a = hosts[0];
+    ServerInfo b = hosts[1].getLocalServer();
+    ServerInfo c = hosts[2].getLocalServer();
+    HeartbeatCoalescer coalescer = a.getHeartbeatCoalescer();
+    long sent = coalescer.getSentCount();
+    
+    // heartbeats of all groups due within the delay, for both follower hosts
+    for(int group = 1; group <= GROUPS; group++) {
+      coalescer.add(b, heartbeat(group, 5));
+      coalescer.add(c, heartbeat(group, 5));
+    }
+    for(int group = 1; group <= GROUPS; group++) {
+      waitForContact(a.getGroup(group), c);
+    }
+    for(int group = 1; group < GROUPS; group++) {
+      waitForContact(a.getGroup(group), b);
+    }
+    // one RPC for each follower host
+    assertEquals(sent + 2, coalescer.getSentCount());
+    // group 4 is not hosted by B, it is left out of B's response
+    assertEquals(0, a.getGroup(GROUPS).getNodeConnectionManager().getLastContact(b));
+    for(int group = 1; group < GROUPS; group++) {
+      assertEquals(5, hosts[1].getGroup(group).getCurrentTerm());
+    }
+    
+    // a stale heartbeat is not counted as contact, the leader's group learns the newer term
+    RaftNode group2 = a.getGroup(2);
+    long contact = group2.getNodeConnectionManager().getLastContact(b);
+    coalescer.add(b, heartbeat(2, 1));
+    while(group2.getCurrentTerm() != 5) {
+      Thread.sleep(10);
+    }
+    assertEquals(sent + 3, coalescer.getSentCount());
+    assertEquals(contact, group2.getNodeConnectionManager().getLastContact(b));
+    assertTrue(a.getGroup(1).getCurrentTerm() < 5);
+  }
+  
+  private static GroupHeartbeat heartbeat(int group, long term) {
+    return GroupHeartbeat.newBuilder().setGroupId(group).setTerm(term).build();
+  }
+  
+  private static void waitForContact(RaftNode node, ServerInfo server) throws InterruptedException {
+    while(node.getNodeConnectionManager().getLastContact(server) == 0) {
+      Thread.sleep(10);
+    }
+  }
+}
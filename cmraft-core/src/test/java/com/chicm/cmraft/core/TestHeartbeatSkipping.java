@@ -0,0 +1,98 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.chicm.cmraft.common.CmRaftConfiguration;
+import com.chicm.cmraft.common.Configuration;
+
+public class TestHeartbeatSkipping {
+  private static final int PORT = 15020;
+  private static final int HOSTS = 3;
+  private static final int HEARTBEAT_INTERVAL = 1000;
+  private static MultiRaftHost[] hosts = new MultiRaftHost[HOSTS];
+  
+  @BeforeClass
+  public static void init() {
+    for(int i = 0; i < HOSTS; i++) {
+      Configuration conf = CmRaftConfiguration.create();
+      conf.useResource("cmraft_cluster_test.properties");
+      conf.set("raft.root.dir", LocalCluster.createTempDirectory());
+      conf.set("raft.election.timeout", "3000");
+      conf.set("raft.heartbeat.interval", String.valueOf(HEARTBEAT_INTERVAL));
+      conf.set("raft.multi.heartbeat.delay", "10");
+      for(int j = 0; j < HOSTS; j++) {
+        if(j != i) {
+          conf.set("raft.server.server" + j, "localhost:" + (PORT + j));
+        }
+      }
+      conf.set("raft.local.server", "localhost:" + (PORT + i));
+      hosts[i] = new MultiRaftHost(conf);
+      hosts[i].addGroup(1);
+    }
+  }
+  
+  @AfterClass
+  public static void shutdown() {
+    for(MultiRaftHost host: hosts) {
+      host.close();
+    }
+  }
+  
+  /**
+   * Followers receiving entries more often than the heartbeat interval get no heartbeats, 
+   * idle followers get one every interval.
+   */
+  @Test(timeout = 60000)
+  public void testSkipHeartbeatsWhileReplicating() throws Exception {
+    MultiRaftHost leaderHost = null;
+    while(leaderHost == null) {
+      for(MultiRaftHost host: hosts) {
+        if(host.getGroup(1).isLeader()) {
+          leaderHost = host;
+        }
+      }
+      Thread.sleep(10);
+    }
+    RaftNode leader = leaderHost.getGroup(1);
+    HeartbeatCoalescer coalescer = leaderHost.getHeartbeatCoalescer();
+    
+    // at most the round already due when writes start, one RPC per follower
+    long sent = coalescer.getSentCount();
+    for(int i = 0; i < 25; i++) {
+      assertTrue(leader.getRaftLog().set(TestReadModes.createKeyValue("key" + i, "value")));
+      Thread.sleep(HEARTBEAT_INTERVAL / 10);
+    }
+    long busy = coalescer.getSentCount() - sent;
+    assertTrue("heartbeat RPCs while replicating:" + busy, busy <= HOSTS - 1);
+    
+    sent = coalescer.getSentCount();
+    Thread.sleep(HEARTBEAT_INTERVAL * 5 / 2);
+    long idle = coalescer.getSentCount() - sent;
+    assertTrue("heartbeat RPCs while idle:" + idle, idle >= 2 * (HOSTS - 1));
+    assertTrue(leader.isLeader());
+  }
+}
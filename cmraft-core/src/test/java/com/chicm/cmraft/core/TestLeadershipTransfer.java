@@ -0,0 +1,88 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyValuePair;
+import com.google.protobuf.ByteString;
+
+public class TestLeadershipTransfer {
+  private static final int PORT = 14970;
+  private static LocalCluster cluster;
+  
+  @BeforeClass
+  public static void init() {
+    Map<String, String> settings = new HashMap<>();
+    settings.put("raft.election.timeout", "1000");
+    settings.put("raft.heartbeat.interval", "100");
+    cluster = LocalCluster.start(3, PORT, settings);
+  }
+  
+  @AfterClass
+  public static void shutdown() {
+    cluster.shutdown();
+  }
+  
+  @Test(timeout = 60000)
+  public void testTransfer() throws Exception {
+    RaftNode leader = cluster.waitForLeader(10000);
+    assertNotNull(leader);
+    for(int i = 0; i < 10; i++) {
+      assertTrue(leader.getRaftLog().set(KeyValuePair.newBuilder()
+        .setKey(ByteString.copyFromUtf8("key" + i)).setValue(ByteString.copyFromUtf8("value" + i)).build()));
+    }
+    RaftNode target = null;
+    for(RaftNode node: cluster.getNodes()) {
+      if(node != leader) {
+        target = node;
+      }
+    }
+    
+    // the target is caught up by replication driven by its responses, then times out at once
+    long start = System.currentTimeMillis();
+    assertTrue(leader.transferLeadership(target.getServerInfo()));
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertFalse(leader.isLeader());
+    assertFalse(leader.isTransferringLeadership());
+    // the target may have appended its no-op entry already
+    long last = leader.getRaftLog().getLastApplied();
+    assertTrue(target.getRaftLog().getLastApplied() >= last);
+    assertEquals(leader.getRaftLog().getLogTerm(last), target.getRaftLog().getLogTerm(last));
+    assertSame(target, cluster.waitForLeader(10000));
+  }
+  
+  @Test(timeout = 60000)
+  public void testTransferToNonMember() throws Exception {
+    RaftNode leader = cluster.waitForLeader(10000);
+    assertNotNull(leader);
+    assertFalse(leader.transferLeadership(new ServerInfo("localhost", PORT + 10)));
+    assertTrue(leader.isLeader());
+  }
+}
@@ -0,0 +1,153 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.chicm.cmraft.common.CmRaftConfiguration;
+import com.chicm.cmraft.common.Configuration;
+import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.CollectVoteRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.CollectVoteResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GroupHeartbeat;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GroupHeartbeatResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyValuePair;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.MultiHeartbeatRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.MultiHeartbeatResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadConsistency;
+import com.chicm.cmraft.rpc.RpcClient;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+
+public class TestMultiRaftHost {
+  private static final int PORT = 14950;
+
+  @Test(timeout = 60000)
+  public void testCloseAndRestart() throws Exception {
+    Configuration conf = createConfiguration(PORT);
+    MultiRaftHost host = new MultiRaftHost(conf);
+    RaftNode node = host.addGroup(1);
+    host.addGroup(2);
+    while(!node.isLeader()) {
+      Thread.sleep(10);
+    }
+    assertTrue(node.getRaftLog().set(KeyValuePair.newBuilder().setKey(ByteString.copyFromUtf8("key"))
+      .setValue(ByteString.copyFromUtf8("value")).build()));
+    host.close();
+    assertTrue(host.getGroups().isEmpty());
+    try {
+      host.addGroup(3);
+      fail("groups can not be added to a closed host");
+    } catch(IllegalStateException e) {
+    }
+    
+    // event loops stopped, and the flush thread does not keep the JVM alive
+    String eventLoopName = "RaftHost" + host.getLocalServer() + "-event-loop";
+    boolean eventLoopAlive = true;
+    while(eventLoopAlive) {
+      eventLoopAlive = false;
+      for(Thread thread: Thread.getAllStackTraces().keySet()) {
+        if(thread.getName().equals("LogFlushWorker")) {
+          assertTrue(thread.isDaemon());
+        }
+        eventLoopAlive |= thread.getName().startsWith(eventLoopName) && thread.isAlive();
+      }
+      Thread.sleep(10);
+    }
+    
+    // the port is released, and committed entries were flushed on close
+    host = new MultiRaftHost(conf);
+    node = host.addGroup(1);
+    assertEquals("value", new String(node.getRaftLog().get("key".getBytes(), ReadConsistency.ANY, -1, -1)));
+    host.close();
+  }
+  
+  @Test(timeout = 60000)
+  public void testAsyncMultiHeartbeat() throws Exception {
+    Configuration conf = createConfiguration(PORT + 1);
+    // groups 1 and 2 on different event loops
+    conf.set("raft.multi.event.loop.threads", "2");
+    MultiRaftHost host = new MultiRaftHost(conf);
+    RpcClient client = new RpcClient(conf, host.getLocalServer());
+    try {
+      RaftNode node = host.addGroup(1);
+      host.addGroup(2);
+      while(!node.isLeader()) {
+        Thread.sleep(10);
+      }
+      final CountDownLatch release = new CountDownLatch(1);
+      node.getEventLoop().execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch(InterruptedException e) {
+          }
+        }
+      });
+      
+      // stale heartbeats from a remote host, of group 1 and of a group not hosted here
+      MultiHeartbeatRequest request = MultiHeartbeatRequest.newBuilder()
+          .setLeaderId(new ServerInfo("localhost", PORT + 2).toServerId())
+          .addHeartbeats(GroupHeartbeat.newBuilder().setGroupId(1).setTerm(0))
+          .addHeartbeats(GroupHeartbeat.newBuilder().setGroupId(99).setTerm(0)).build();
+      ListenableFuture<MultiHeartbeatResponse> heartbeat = client.callAsync(1, 
+        RaftService.getDescriptor().findMethodByName("multiHeartbeat"), request);
+      
+      // the pending heartbeat holds no control lane thread, votes on the connection pass it
+      CollectVoteRequest vote = CollectVoteRequest.newBuilder()
+          .setCandidateId(host.getLocalServer().toServerId()).setTerm(0)
+          .setLastLogIndex(0).setLastLogTerm(0).build();
+      ListenableFuture<CollectVoteResponse> voted = client.callAsync(2, 
+        RaftService.getDescriptor().findMethodByName("collectVote"), vote);
+      assertNotNull(voted.get(500, TimeUnit.MILLISECONDS));
+      assertFalse(heartbeat.isDone());
+      
+      // responded when group 1 handles its heartbeat, the unknown group is left out
+      release.countDown();
+      MultiHeartbeatResponse response = heartbeat.get(500, TimeUnit.MILLISECONDS);
+      assertEquals(1, response.getResponsesCount());
+      GroupHeartbeatResponse groupResponse = response.getResponses(0);
+      assertEquals(1, groupResponse.getGroupId());
+      assertFalse(groupResponse.getSuccess());
+      assertEquals(node.getCurrentTerm(), groupResponse.getTerm());
+    } finally {
+      client.close();
+      host.close();
+    }
+  }
+  
+  private static Configuration createConfiguration(int port) {
+    Configuration conf = CmRaftConfiguration.create();
+    conf.useResource("cmraft_cluster_test.properties");
+    conf.set("raft.local.server", "localhost:" + port);
+    conf.set("raft.root.dir", LocalCluster.createTempDirectory());
+    conf.set("raft.election.timeout", "300");
+    conf.set("raft.heartbeat.interval", "100");
+    return conf;
+  }
+}
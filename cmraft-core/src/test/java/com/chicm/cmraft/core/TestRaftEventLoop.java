@@ -0,0 +1,128 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TestRaftEventLoop {
+
+  @Test
+  public void testCall() {
+    final RaftEventLoop loop = new RaftEventLoop("test-event-loop");
+    try {
+      Boolean inLoop = loop.call(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          // nested calls run right away
+          return loop.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+              return loop.inEventLoop();
+            }
+          });
+        }
+      });
+      assertTrue(inLoop);
+      assertFalse(loop.inEventLoop());
+    } finally {
+      loop.stop();
+    }
+  }
+  
+  @Test
+  public void testRejectedAfterStop() {
+    RaftEventLoop loop = new RaftEventLoop("test-event-loop");
+    loop.stop();
+    try {
+      loop.execute(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+      fail("execute should be rejected after stop");
+    } catch(RejectedExecutionException e) {
+    }
+    try {
+      loop.call(new Callable<Void>() {
+        @Override
+        public Void call() {
+          return null;
+        }
+      });
+      fail("call should be rejected after stop");
+    } catch(RejectedExecutionException e) {
+    }
+  }
+  
+  @Test(timeout = 10000)
+  public void testQueuedCallFailsOnStop() throws Exception {
+    final RaftEventLoop loop = new RaftEventLoop("test-event-loop");
+    final CountDownLatch running = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        running.countDown();
+        try {
+          release.await();
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    assertTrue(running.await(5, TimeUnit.SECONDS));
+    
+    // queued behind the blocked event, the loop is stopped before it runs
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread caller = new Thread() {
+      @Override
+      public void run() {
+        try {
+          loop.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+              return null;
+            }
+          });
+        } catch(Throwable t) {
+          failure.set(t);
+        }
+      }
+    };
+    caller.start();
+    while(caller.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+    loop.stop();
+    release.countDown();
+    caller.join();
+    assertTrue(failure.get() instanceof CancellationException);
+  }
+}
@@ -0,0 +1,132 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import io.netty.util.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestRaftTimerService {
+  
+  @Test(timeout = 30000)
+  public void testScheduleAndCancel() throws Exception {
+    RaftTimerService service = RaftTimerService.getInstance();
+    final int n = 1000;
+    final CountDownLatch fired = new CountDownLatch(n);
+    final AtomicBoolean early = new AtomicBoolean(false);
+    final long start = System.currentTimeMillis();
+    for(int i = 0; i < n; i++) {
+      final int delay = 100 + i % 100;
+      service.schedule(new Runnable() {
+        @Override
+        public void run() {
+          // the wheel ticks on nanoTime, allow for the coarser wall clock
+          if(System.currentTimeMillis() - start < delay - 5) {
+            early.set(true);
+          }
+          fired.countDown();
+        }
+      }, delay);
+    }
+    
+    final AtomicInteger cancelledRuns = new AtomicInteger(0);
+    for(int i = 0; i < 100; i++) {
+      Timeout timeout = service.schedule(new Runnable() {
+        @Override
+        public void run() {
+          cancelledRuns.incrementAndGet();
+        }
+      }, 100);
+      timeout.cancel();
+    }
+    
+    assertTrue(fired.await(5000, TimeUnit.MILLISECONDS));
+    assertFalse(early.get());
+    Thread.sleep(300);
+    assertEquals(0, cancelledRuns.get());
+    assertEquals(1, countThreads("RaftTimer-wheel"));
+  }
+  
+  /**
+   * Node timers time out every period until reset or stopped, and all of them share the 
+   * threads of the service.
+   */
+  @Test(timeout = 30000)
+  public void testNodeTimers() throws Exception {
+    final AtomicInteger timeouts = new AtomicInteger(0);
+    TimeoutListener listener = new TimeoutListener() {
+      @Override
+      public void timeout() {
+        timeouts.incrementAndGet();
+      }
+    };
+    List<RaftNodeTimer> timers = new ArrayList<>();
+    for(int i = 0; i < 200; i++) {
+      timers.add(RaftNodeTimer.create("timer" + i, 100, listener));
+    }
+    Thread.sleep(550);
+    // 5 timeouts each, give or take one tick
+    assertTrue("timeouts:" + timeouts.get(), timeouts.get() >= 800 && timeouts.get() <= 1200);
+    assertEquals(1, countThreads("RaftTimer-wheel"));
+    assertTrue(countThreads("RaftTimer-callback") <= Math.max(2, Runtime.getRuntime().availableProcessors()));
+    
+    final AtomicInteger resetTimeouts = new AtomicInteger(0);
+    RaftNodeTimer reset = RaftNodeTimer.create("reset", 200, new TimeoutListener() {
+      @Override
+      public void timeout() {
+        resetTimeouts.incrementAndGet();
+      }
+    });
+    for(RaftNodeTimer timer: timers) {
+      timer.stop();
+    }
+    Thread.sleep(50);
+    int stopped = timeouts.get();
+    for(int i = 0; i < 5; i++) {
+      reset.reset();
+      timers.get(0).reset();
+      Thread.sleep(100);
+    }
+    reset.stop();
+    assertEquals(0, resetTimeouts.get());
+    // stopped timers do not restart on reset
+    assertEquals(stopped, timeouts.get());
+  }
+  
+  private static int countThreads(String prefix) {
+    int count = 0;
+    for(Thread thread: Thread.getAllStackTraces().keySet()) {
+      if(thread.getName().startsWith(prefix)) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
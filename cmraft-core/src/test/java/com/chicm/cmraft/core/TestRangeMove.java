@@ -0,0 +1,204 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.chicm.cmraft.Connection;
+import com.chicm.cmraft.ConnectionManager;
+import com.chicm.cmraft.KeyValueStore;
+import com.chicm.cmraft.common.CmRaftConfiguration;
+import com.chicm.cmraft.common.Configuration;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyRange;
+import com.google.protobuf.ByteString;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TestRangeMove {
+  private static final int PORT = 14990;
+  private static final int HOSTS = 3;
+  private static final int GROUPS = 3;
+  private static MultiRaftHost[] hosts = new MultiRaftHost[HOSTS];
+  private static Configuration conf;
+  private static Connection conn;
+  
+  @BeforeClass
+  public static void init() throws Exception {
+    for(int i = 0; i < HOSTS; i++) {
+      conf = CmRaftConfiguration.create();
+      conf.useResource("cmraft_cluster_test.properties");
+      conf.set("raft.root.dir", LocalCluster.createTempDirectory());
+      conf.set("raft.election.timeout", "300");
+      conf.set("raft.heartbeat.interval", "100");
+      for(int j = 0; j < HOSTS; j++) {
+        if(j != i) {
+          conf.set("raft.server.server" + j, "localhost:" + (PORT + j));
+        }
+      }
+      conf.set("raft.local.server", "localhost:" + (PORT + i));
+      hosts[i] = new MultiRaftHost(conf);
+    }
+    for(int group = 0; group < GROUPS; group++) {
+      for(MultiRaftHost host: hosts) {
+        host.addGroup(group);
+      }
+    }
+    for(int group = 0; group < GROUPS; group++) {
+      getLeader(group);
+    }
+    conn = ConnectionManager.getConnection(conf);
+    KeyValueStore kvs = conn.getKeyValueStore();
+    for(char c = 'a'; c <= 'z'; c++) {
+      assertTrue(kvs.set("" + c, "v" + c));
+    }
+  }
+  
+  @AfterClass
+  public static void shutdown() {
+    conn.close();
+    for(MultiRaftHost host: hosts) {
+      host.close();
+    }
+  }
+  
+  /**
+   * The write barrier of a move waits for writes begun before it, not for later ones.
+   */
+  @Test(timeout = 60000)
+  public void testWriteBarrier() throws Exception {
+    final RaftNode node = hosts[0].getGroup(0);
+    assertTrue(node.awaitWrites(0));
+    final long before = node.beginWrite();
+    assertFalse(node.awaitWrites(100));
+    
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> barrier = executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return node.awaitWrites(10000);
+        }
+      });
+      Thread.sleep(100);
+      long after = node.beginWrite();
+      assertFalse(barrier.isDone());
+      node.endWrite(before);
+      // completed by the write ending, long before the barrier's timeout
+      assertTrue(barrier.get(1000, TimeUnit.MILLISECONDS));
+      node.endWrite(after);
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
+  /**
+   * A range fenced by a move which did not finish serves reads from the source group and 
+   * holds writes back, until the move is resumed by splitting the range again.
+   */
+  @Test(timeout = 60000)
+  public void testFencedMoveResumed() throws Exception {
+    final ByteString start = ByteString.copyFromUtf8("m");
+    KeyRange fenced = KeyRange.newBuilder().setStartKey(start).setGroupId(1).setMovingFrom(0).build();
+    assertTrue(getLeader(RangeTable.META_GROUP_ID).getRaftLog().updateRange(fenced, false));
+    for(MultiRaftHost host: hosts) {
+      RangeTable table = host.getGroup(RangeTable.META_GROUP_ID).getRaftLog().getRangeTable();
+      while(!table.isMoving(start)) {
+        Thread.sleep(10);
+      }
+    }
+    
+    final KeyValueStore kvs = conn.getKeyValueStore();
+    assertEquals("vp", kvs.get("p"));
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> write = executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return kvs.set("n", "new");
+        }
+      });
+      Thread.sleep(500);
+      assertFalse(write.isDone());
+      assertEquals("vn", kvs.get("n"));
+      
+      assertTrue(conn.getRangeAdmin().split("m".getBytes(), 1));
+      assertTrue(write.get(10000, TimeUnit.MILLISECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals("new", kvs.get("n"));
+    assertEquals("vp", kvs.get("p"));
+    assertEquals("va", kvs.get("a"));
+    assertEquals(26, kvs.list((String)null).size());
+    assertEquals(1, conn.getRangeAdmin().getGroupId("p".getBytes()));
+    
+    // the source group keeps no keys of the range
+    assertEquals(12, getLeader(0).getRaftLog().list(null).size());
+    assertEquals(14, getLeader(1).getRaftLog().list(null).size());
+  }
+  
+  /**
+   * A split is aborted and the range restored if a server does not fence the range.
+   */
+  @Test(timeout = 60000)
+  public void testRoutingNotConverged() throws Exception {
+    hosts[2].close();
+    for(int group = 0; group < GROUPS; group++) {
+      getLeader(group);
+    }
+    // leaders cached by the connection may be on the closed host
+    conn.close();
+    conn = ConnectionManager.getConnection(conf);
+    assertFalse(conn.getRangeAdmin().split("t".getBytes(), 2));
+    
+    RangeTable table = getLeader(RangeTable.META_GROUP_ID).getRaftLog().getRangeTable();
+    ByteString start = ByteString.copyFromUtf8("t");
+    assertFalse(table.containsStartKey(start));
+    assertFalse(table.isMoving(start));
+    assertEquals(1, table.getGroupId(start));
+    assertEquals("vt", conn.getKeyValueStore().get("t"));
+    assertTrue(conn.getKeyValueStore().set("t", "new"));
+    assertEquals("new", conn.getKeyValueStore().get("t"));
+  }
+  
+  private static RaftNode getLeader(int groupId) throws InterruptedException {
+    while(true) {
+      for(MultiRaftHost host: hosts) {
+        RaftNode node = host.getGroup(groupId);
+        if(node != null && node.isLeader()) {
+          return node;
+        }
+      }
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class TestRangeTable {
+
+  @Test
+  public void testRouting() {
+    RangeTable table = new RangeTable();
+    assertEquals(RangeTable.META_GROUP_ID, table.getGroupId("a".getBytes()));
+    assertEquals(1, table.getGroupIds().size());
+    
+    table.put(ByteString.copyFromUtf8("m"), 1);
+    table.put(ByteString.copyFromUtf8("t"), 2);
+    assertEquals(RangeTable.META_GROUP_ID, table.getGroupId("a".getBytes()));
+    assertEquals(1, table.getGroupId("m".getBytes()));
+    assertEquals(1, table.getGroupId("sz".getBytes()));
+    assertEquals(2, table.getGroupId("t".getBytes()));
+    assertEquals(2, table.getGroupId("zzz".getBytes()));
+    assertEquals(3, table.getGroupIds().size());
+    
+    // unsigned byte order
+    assertEquals(2, table.getGroupId(new byte[] {(byte)0xff}));
+    
+    assertEquals(ByteString.copyFromUtf8("t"), table.getRangeEnd(ByteString.copyFromUtf8("m")));
+    assertNull(table.getRangeEnd(ByteString.copyFromUtf8("t")));
+    assertEquals(1, table.getPrecedingGroupId(ByteString.copyFromUtf8("t")));
+    assertTrue(RangeTable.inRange(ByteString.copyFromUtf8("p"), 
+      ByteString.copyFromUtf8("m"), ByteString.copyFromUtf8("t")));
+    assertFalse(RangeTable.inRange(ByteString.copyFromUtf8("t"), 
+      ByteString.copyFromUtf8("m"), ByteString.copyFromUtf8("t")));
+    
+    RangeTable copy = RangeTable.copyFrom(table.toKeyRanges());
+    assertEquals(table.toKeyRanges(), copy.toKeyRanges());
+    
+    assertTrue(table.remove(ByteString.copyFromUtf8("m")));
+    assertFalse(table.remove(ByteString.copyFromUtf8("m")));
+    assertEquals(RangeTable.META_GROUP_ID, table.getGroupId("p".getBytes()));
+    
+    table.put(ByteString.EMPTY, 1);
+    assertFalse(table.getGroupIds().contains(RangeTable.META_GROUP_ID));
+  }
+  
+  @Test
+  public void testMovingRange() {
+    RangeTable table = new RangeTable();
+    ByteString m = ByteString.copyFromUtf8("m");
+    table.put(m, 1, RangeTable.META_GROUP_ID);
+    table.put(ByteString.copyFromUtf8("t"), 2);
+    assertTrue(table.isMoving(ByteString.copyFromUtf8("p")));
+    assertFalse(table.isMoving(ByteString.copyFromUtf8("a")));
+    assertFalse(table.isMoving(ByteString.copyFromUtf8("x")));
+    assertEquals(RangeTable.META_GROUP_ID, table.getMovingFrom(ByteString.copyFromUtf8("p")));
+    assertEquals(RangeTable.NOT_MOVING, table.getMovingFrom(ByteString.copyFromUtf8("x")));
+    
+    // writes go to the owner, reads to the group the range is moving from
+    assertEquals(1, table.getGroupId("p".getBytes()));
+    assertEquals(RangeTable.META_GROUP_ID, table.getReadGroupId("p".getBytes()));
+    assertEquals(2, table.getReadGroupId("x".getBytes()));
+    assertEquals(3, table.getGroupIds().size());
+    
+    RangeTable copy = RangeTable.copyFrom(table.toKeyRanges());
+    assertEquals(table.toKeyRanges(), copy.toKeyRanges());
+    assertTrue(copy.isMoving(m));
+    
+    table.put(m, 1);
+    assertFalse(table.isMoving(m));
+    assertEquals(1, table.getReadGroupId(m));
+    assertFalse(table.toKeyRanges().equals(copy.toKeyRanges()));
+  }
+}
@@ -0,0 +1,133 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.core;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyValuePair;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ReadConsistency;
+import com.google.protobuf.ByteString;
+
+public class TestReadModes {
+  private static final int PORT = 15010;
+  
+  /**
+   * Without raft.read.mode, every linearizable read on the leader confirms leadership 
+   * with a heartbeat round, even while the leader holds a lease.
+   */
+  @Test(timeout = 60000)
+  public void testReadIndexByDefault() throws Exception {
+    LocalCluster cluster = LocalCluster.start(3, PORT, createSettings(null));
+    try {
+      RaftNode leader = cluster.waitForLeader(10000);
+      assertNotNull(leader);
+      assertTrue(leader.getRaftLog().set(createKeyValue("key", "value")));
+      assertTrue(leader.hasValidLease());
+      
+      long rounds = leader.getConfirmRounds();
+      for(int i = 0; i < 5; i++) {
+        assertEquals("value", read(leader));
+      }
+      assertEquals(rounds + 5, leader.getConfirmRounds());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+  
+  /**
+   * In lease mode reads are served without heartbeat rounds while the lease renewed by 
+   * heartbeats is valid, and rejected once the leader loses contact with the majority.
+   */
+  @Test(timeout = 60000)
+  public void testLeaseReads() throws Exception {
+    LocalCluster cluster = LocalCluster.start(3, PORT + 3, createSettings("lease"));
+    try {
+      RaftNode leader = cluster.waitForLeader(10000);
+      assertNotNull(leader);
+      assertTrue(leader.getRaftLog().set(createKeyValue("key", "value")));
+      
+      long rounds = leader.getConfirmRounds();
+      for(int i = 0; i < 5; i++) {
+        assertEquals("value", read(leader));
+      }
+      assertEquals(rounds, leader.getConfirmRounds());
+      
+      for(RaftNode node: cluster.getNodes()) {
+        if(node != leader) {
+          node.close();
+        }
+      }
+      Thread.sleep(1000);
+      assertFalse(leader.hasValidLease());
+      assertNull(read(leader));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+  
+  /**
+   * In local mode any server reads its own state machine, also without a leader.
+   */
+  @Test(timeout = 60000)
+  public void testLocalReads() throws Exception {
+    LocalCluster cluster = LocalCluster.start(3, PORT + 6, createSettings("local"));
+    try {
+      RaftNode leader = cluster.waitForLeader(10000);
+      assertNotNull(leader);
+      assertTrue(leader.getRaftLog().set(createKeyValue("key", "value")));
+      RaftNode follower = cluster.getNodes()[0] != leader ? cluster.getNodes()[0] : cluster.getNodes()[1];
+      while(read(follower) == null) {
+        Thread.sleep(10);
+      }
+      
+      leader.close();
+      assertEquals("value", read(follower));
+      assertEquals("value", read(follower));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+  
+  private static Map<String, String> createSettings(String readMode) {
+    Map<String, String> settings = new HashMap<>();
+    settings.put("raft.election.timeout", "1000");
+    settings.put("raft.heartbeat.interval", "100");
+    if(readMode != null) {
+      settings.put("raft.read.mode", readMode);
+    }
+    return settings;
+  }
+  
+  static KeyValuePair createKeyValue(String key, String value) {
+    return KeyValuePair.newBuilder().setKey(ByteString.copyFromUtf8(key))
+        .setValue(ByteString.copyFromUtf8(value)).build();
+  }
+  
+  private static String read(RaftNode node) {
+    byte[] value = node.getRaftLog().get("key".getBytes(), ReadConsistency.LINEARIZABLE, -1, -1);
+    return value == null ? null : new String(value);
+  }
+}
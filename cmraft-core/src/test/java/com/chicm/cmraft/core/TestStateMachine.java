@@ -41,6 +41,15 @@ public class TestStateMachine  {
     assertTrue(fsm.getState() == State.FOLLOWER);
     
     fsm.electionTimeout();
+    assertTrue(fsm.getState() == State.PRE_CANDIDATE);
+    
+    fsm.voteReceived();
+    assertTrue(fsm.getState() == State.PRE_CANDIDATE);
+    
+    fsm.electionTimeout();
+    assertTrue(fsm.getState() == State.PRE_CANDIDATE);
+    
+    fsm.preVoteReceived();
     assertTrue(fsm.getState() == State.CANDIDATE);
     
     fsm.electionTimeout();
@@ -58,5 +67,62 @@ public class TestStateMachine  {
     fsm.discoverHigherTerm();
     assertTrue(fsm.getState() == State.FOLLOWER);
   }
+  
+  @Test
+  public void testPreCandidate () {
+    StateMachine fsm = new StateMachine(null);
+    
+    fsm.electionTimeout();
+    assertTrue(fsm.getState() == State.PRE_CANDIDATE);
+    
+    fsm.discoverLeader();
+    assertTrue(fsm.getState() == State.FOLLOWER);
+    
+    fsm.electionTimeout();
+    assertTrue(fsm.getState() == State.PRE_CANDIDATE);
+    
+    fsm.discoverHigherTerm();
+    assertTrue(fsm.getState() == State.FOLLOWER);
+  }
+  
+  @Test
+  public void testLostQuorum () {
+    StateMachine fsm = new StateMachine(null);
+    
+    fsm.lostQuorum();
+    assertTrue(fsm.getState() == State.FOLLOWER);
+    
+    fsm.electionTimeout();
+    fsm.preVoteReceived();
+    fsm.lostQuorum();
+    assertTrue(fsm.getState() == State.CANDIDATE);
+    
+    fsm.voteReceived();
+    assertTrue(fsm.getState() == State.LEADER);
+    
+    fsm.lostQuorum();
+    assertTrue(fsm.getState() == State.FOLLOWER);
+  }
+  
+  @Test
+  public void testTimeoutNow () {
+    StateMachine fsm = new StateMachine(null);
+    
+    fsm.timeoutNow();
+    assertTrue(fsm.getState() == State.CANDIDATE);
+    
+    fsm.voteReceived();
+    assertTrue(fsm.getState() == State.LEADER);
+    
+    fsm.timeoutNow();
+    assertTrue(fsm.getState() == State.LEADER);
+    
+    fsm.discoverHigherTerm();
+    fsm.electionTimeout();
+    assertTrue(fsm.getState() == State.PRE_CANDIDATE);
+    
+    fsm.timeoutNow();
+    assertTrue(fsm.getState() == State.CANDIDATE);
+  }
 
 }
@@ -0,0 +1,170 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.KeyValuePair;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftLogEntry;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RequestHeader;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * Encoding of AppendEntries request frames: through ByteBufOutputStream with a separate
+ * frame length buffer as LengthFieldPrepender did, and in a single pass by RpcHeaderCodec 
+ * with protobuf and compact headers. Entries 0 is a heartbeat. heapCopyEncode writes 
+ * the compact frame into the array of a heap buffer, then copies it into a direct buffer 
+ * as the socket write does for heap buffers, compactEncode writes the direct buffer through
+ * the staging array of the stream.
+ * 
+ * mvn -Pbenchmark clean test-compile, then run main() with the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RpcEncoderBenchmark {
+  private static final MethodDescriptor APPEND_ENTRIES = 
+      RaftService.getDescriptor().findMethodByName("appendEntries");
+  
+  @Param({"0", "10"})
+  public int entries;
+  
+  @Param({"100", "4096"})
+  public int valueSize;
+  
+  private ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+  private RequestHeader header;
+  private AppendEntriesRequest request;
+  private RpcCall call;
+  
+  @Setup
+  public void setup() {
+    AppendEntriesRequest.Builder builder = AppendEntriesRequest.newBuilder();
+    builder.setTerm(12);
+    builder.setLeaderId(new ServerInfo("localhost", 13888).toServerId());
+    builder.setLeaderCommit(100000);
+    builder.setPrevLogIndex(100000);
+    builder.setPrevLogTerm(12);
+    for(int i = 0; i < entries; i++) {
+      RaftLogEntry.Builder entry = RaftLogEntry.newBuilder();
+      entry.setIndex(100001 + i);
+      entry.setTerm(12);
+      entry.setMode(RaftLogEntry.MutationMode.SET);
+      entry.setKv(KeyValuePair.newBuilder()
+        .setKey(ByteString.copyFromUtf8("key" + i)).setValue(ByteString.copyFrom(new byte[valueSize])));
+      builder.addEntries(entry);
+    }
+    request = builder.build();
+    header = RequestHeader.newBuilder().setId(123456).setRequestName(APPEND_ENTRIES.getName())
+        .setMethodId(APPEND_ENTRIES.getIndex()).setGroupId(5).setCompactHeader(true).build();
+    call = new RpcCall(123456, null, request, APPEND_ENTRIES);
+    call.setGroupId(5);
+  }
+  
+  @Benchmark
+  public int streamEncode() throws Exception {
+    int totalSize = PacketUtils.getTotalSizeofMessages(header, request);
+    ByteBuf encoded = alloc.buffer(totalSize);
+    ByteBufOutputStream os = new ByteBufOutputStream(encoded);
+    header.writeDelimitedTo(os);
+    request.writeDelimitedTo(os);
+    ByteBuf length = alloc.buffer(RpcHeaderCodec.LENGTH_FIELD_SIZE).writeInt(encoded.readableBytes());
+    int size = length.readableBytes() + encoded.readableBytes();
+    length.release();
+    encoded.release();
+    return size;
+  }
+  
+  @Benchmark
+  public int singlePassEncode() throws Exception {
+    ByteBuf frame = RpcHeaderCodec.encodeFrame(alloc, header, request);
+    int size = frame.readableBytes();
+    frame.release();
+    return size;
+  }
+  
+  @Benchmark
+  public int compactEncode() throws Exception {
+    ByteBuf frame = RpcHeaderCodec.encodeFrame(alloc, call);
+    int size = frame.readableBytes();
+    frame.release();
+    return size;
+  }
+  
+  @Benchmark
+  public int heapCopyEncode() throws Exception {
+    int size = RpcHeaderCodec.getEncodedSize(call);
+    int length = RpcHeaderCodec.LENGTH_FIELD_SIZE + size;
+    ByteBuf heap = alloc.heapBuffer(length);
+    CodedOutputStream cos = CodedOutputStream.newInstance(heap.array(), 
+      heap.arrayOffset() + heap.writerIndex(), length);
+    cos.writeRawLittleEndian32(Integer.reverseBytes(size));
+    cos.writeRawByte(RpcHeaderCodec.MAGIC);
+    cos.writeRawByte(RpcHeaderCodec.FLAG_GROUP);
+    cos.writeRawLittleEndian32(Integer.reverseBytes(call.getCallId()));
+    cos.writeRawVarint32(MethodTable.getMethodId(call.getMd()));
+    cos.writeRawVarint32(call.getGroupId());
+    call.getMessage().writeTo(cos);
+    cos.checkNoSpaceLeft();
+    heap.writerIndex(heap.writerIndex() + length);
+    ByteBuf direct = alloc.directBuffer(length);
+    direct.writeBytes(heap);
+    heap.release();
+    size = direct.readableBytes();
+    direct.release();
+    return size;
+  }
+  
+  public static void main(String[] args) throws Exception {
+    Options opt = new OptionsBuilder()
+        .include(RpcEncoderBenchmark.class.getSimpleName())
+        .build();
+    new Runner(opt).run();
+  }
+}
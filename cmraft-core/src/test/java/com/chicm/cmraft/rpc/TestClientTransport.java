@@ -0,0 +1,85 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import static org.junit.Assert.*;
+
+import io.netty.util.concurrent.MultithreadEventExecutorGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.chicm.cmraft.common.CmRaftConfiguration;
+import com.chicm.cmraft.common.Configuration;
+import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.core.RaftRpcService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcRequest;
+import com.google.protobuf.ByteString;
+
+public class TestClientTransport {
+  private static final int PORT = 15040;
+  
+  /**
+   * Connections of all clients, also after reconnecting, are served by the threads 
+   * of one event loop group.
+   */
+  @Test(timeout = 60000)
+  public void testClientsShareEventLoopGroup() throws Exception {
+    Configuration conf = CmRaftConfiguration.create();
+    RpcServer server = new RpcServer(conf, RaftRpcService.create(), new ServerInfo("localhost", PORT));
+    server.startRpcServer();
+    ClientTransport transport = ClientTransport.getInstance(conf);
+    assertSame(transport, ClientTransport.getInstance(CmRaftConfiguration.create()));
+    int threads = ((MultithreadEventExecutorGroup)transport.getEventLoopGroup()).executorCount();
+    
+    TestRpcRequest request = TestRpcRequest.newBuilder().setData(ByteString.copyFrom(new byte[10])).build();
+    try {
+      for(int round = 0; round < 3; round++) {
+        List<RpcClient> clients = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+          RpcClient client = new RpcClient(conf, server.getServerInfo());
+          assertNotNull(client.getStub(RpcServer.DEFAULT_GROUP_ID).testRpc(null, request));
+          clients.add(client);
+        }
+        assertTrue(countThreads("RpcClient-io") <= threads);
+        for(RpcClient client: clients) {
+          client.close();
+        }
+      }
+      assertTrue(countThreads("RpcClient-io") <= threads);
+      assertFalse(transport.getEventLoopGroup().isShuttingDown());
+    } finally {
+      server.stopRpcServer();
+    }
+  }
+  
+  static int countThreads(String prefix) {
+    int count = 0;
+    for(Thread thread: Thread.getAllStackTraces().keySet()) {
+      if(thread.getName().startsWith(prefix)) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,99 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import static org.junit.Assert.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.chicm.cmraft.common.CmRaftConfiguration;
+
+import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesResponse;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RequestHeader;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ResponseHeader;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcResponse;
+import com.google.protobuf.BlockingService;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+public class TestMethodTable {
+
+  @Test
+  public void testLookup() {
+    for(MethodDescriptor md: RaftService.getDescriptor().getMethods()) {
+      int id = MethodTable.getMethodId(md);
+      assertSame(md, MethodTable.getMethod(id));
+      assertSame(md, MethodTable.getMethod(RequestHeader.newBuilder().setId(1).setMethodId(id).build()));
+      assertSame(md, MethodTable.getMethod(ResponseHeader.newBuilder().setId(1).setMethodId(id).build()));
+      // headers of older peers carry method names
+      assertSame(md, MethodTable.getMethod(RequestHeader.newBuilder().setId(1).setRequestName(md.getName()).build()));
+      assertSame(md, MethodTable.getMethod(ResponseHeader.newBuilder().setId(1).setResponseName(md.getName()).build()));
+    }
+    
+    MethodDescriptor append = RaftService.getDescriptor().findMethodByName("appendEntries");
+    assertSame(AppendEntriesRequest.PARSER, MethodTable.getRequestParser(append));
+    assertSame(AppendEntriesResponse.PARSER, MethodTable.getResponseParser(append));
+    
+    assertNull(MethodTable.getMethod(-1));
+    assertNull(MethodTable.getMethod(RaftService.getDescriptor().getMethods().size()));
+  }
+  
+  @Test
+  public void testProtobufHeadersCarryNames() throws Exception {
+    MethodDescriptor md = RaftService.getDescriptor().findMethodByName("testRpc");
+    EmbeddedChannel client = new EmbeddedChannel(new ClientChannelHandler(null));
+    RpcCall call = new RpcCall(1, null, TestRpcRequest.getDefaultInstance(), md);
+    call.setGroupId(3);
+    client.writeOutbound(call);
+    RequestHeader request = RequestHeader.PARSER.parseDelimitedFrom(
+      newInput((ByteBuf) client.readOutbound()));
+    // older servers only know the name
+    assertEquals(md.getName(), request.getRequestName());
+    assertEquals(MethodTable.getMethodId(md), request.getMethodId());
+    assertEquals(3, request.getGroupId());
+    
+    EmbeddedChannel server = new EmbeddedChannel(new ServerChannelHandler(
+      Collections.<Integer, BlockingService>emptyMap(), new AtomicLong(), CmRaftConfiguration.create()));
+    server.writeOutbound(new RpcCall(1, null, TestRpcResponse.getDefaultInstance(), md));
+    ResponseHeader response = ResponseHeader.PARSER.parseDelimitedFrom(
+      newInput((ByteBuf) server.readOutbound()));
+    // older clients only know the name
+    assertEquals(md.getName(), response.getResponseName());
+    assertEquals(MethodTable.getMethodId(md), response.getMethodId());
+    assertFalse(client.finish());
+    assertFalse(server.finish());
+  }
+  
+  // skips the frame length
+  private static InputStream newInput(ByteBuf frame) {
+    frame.skipBytes(RpcHeaderCodec.LENGTH_FIELD_SIZE);
+    return new ByteBufInputStream(frame);
+  }
+}
@@ -152,7 +152,7 @@ public class TestNettyServer {
     public RpcCall buildResponse(RpcCall requestCall) {
       ResponseHeader.Builder builder = ResponseHeader.newBuilder();
       builder.setId(requestCall.getCallId()); 
-      builder.setResponseName(requestCall.getMd().getName());
+      builder.setMethodId(MethodTable.getMethodId(requestCall.getMd()));
       ResponseHeader header = builder.build();
       requestCall.setHeader(header);
       //call.setMessage(response);
@@ -193,7 +193,7 @@ public class TestNettyServer {
 
       BlockingService service = RaftRpcService.create().getService();
       
-      MethodDescriptor md = service.getDescriptorForType().findMethodByName(header.getRequestName());
+      MethodDescriptor md = MethodTable.getMethod(header);
       Builder builder = service.getRequestPrototype(md).newBuilderForType();
       Message body = null;
       if (builder != null) {
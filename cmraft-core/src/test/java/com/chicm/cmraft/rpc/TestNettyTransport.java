@@ -0,0 +1,99 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import static org.junit.Assert.*;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.internal.PlatformDependent;
+
+import org.junit.Test;
+
+import com.chicm.cmraft.common.CmRaftConfiguration;
+import com.chicm.cmraft.common.Configuration;
+import com.chicm.cmraft.common.ServerInfo;
+import com.chicm.cmraft.core.RaftRpcService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcRequest;
+import com.google.protobuf.ByteString;
+
+public class TestNettyTransport {
+  private static final int PORT = 15050;
+  private static final boolean EPOLL = Epoll.isAvailable() && PlatformDependent.hasUnsafe();
+  
+  @Test
+  public void testSelect() {
+    NettyTransport nio = NettyTransport.select(createConfiguration(" NIO "));
+    assertFalse(nio.isEpoll());
+    assertEquals(NioSocketChannel.class, nio.getSocketChannelClass());
+    assertEquals(NioServerSocketChannel.class, nio.getServerChannelClass());
+    
+    // epoll when it is usable, NIO otherwise, also if epoll is configured
+    assertEquals(EPOLL, NettyTransport.select(createConfiguration(null)).isEpoll());
+    assertEquals(EPOLL, NettyTransport.select(createConfiguration("auto")).isEpoll());
+    NettyTransport epoll = NettyTransport.select(createConfiguration("epoll"));
+    assertEquals(EPOLL, epoll.isEpoll());
+    assertEquals(EPOLL ? EpollSocketChannel.class : NioSocketChannel.class, epoll.getSocketChannelClass());
+    
+    try {
+      NettyTransport.select(createConfiguration("kqueue"));
+      fail("unknown transport should be rejected");
+    } catch(RuntimeException e) {
+    }
+  }
+  
+  /**
+   * The server accepts and serves calls on each transport, with several accept threads 
+   * sharing the port on epoll, and one accept thread on NIO.
+   */
+  @Test(timeout = 60000)
+  public void testServeOnTransports() throws Exception {
+    TestRpcRequest request = TestRpcRequest.newBuilder().setData(ByteString.copyFrom(new byte[10])).build();
+    String[] transports = {"nio", "epoll"};
+    for(int i = 0; i < transports.length; i++) {
+      Configuration conf = createConfiguration(transports[i]);
+      conf.set("raft.rpc.server.accept.threads", "2");
+      RpcServer server = new RpcServer(conf, RaftRpcService.create(), new ServerInfo("localhost", PORT + i));
+      assertTrue(server.startRpcServer());
+      try {
+        for(int j = 0; j < 4; j++) {
+          RpcClient client = new RpcClient(conf, server.getServerInfo());
+          assertNotNull(client.getStub(RpcServer.DEFAULT_GROUP_ID).testRpc(null, request));
+          client.close();
+        }
+      } finally {
+        server.stopRpcServer();
+      }
+    }
+  }
+  
+  private static Configuration createConfiguration(String transport) {
+    Configuration conf = CmRaftConfiguration.create();
+    if(transport == null) {
+      conf.remove("raft.rpc.transport");
+    } else {
+      conf.set("raft.rpc.transport", transport);
+    }
+    return conf;
+  }
+}
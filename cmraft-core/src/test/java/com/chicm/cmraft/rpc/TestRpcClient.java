@@ -20,15 +20,266 @@
 
 package com.chicm.cmraft.rpc;
 
+import static org.junit.Assert.*;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import com.chicm.cmraft.common.CmRaftConfiguration;
 import com.chicm.cmraft.common.Configuration;
 import com.chicm.cmraft.common.ServerInfo;
-import com.chicm.cmraft.core.RaftRpcService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RequestHeader;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.ResponseHeader;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcResponse;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
 
 public class TestRpcClient {
+  private static final int RPC_TIMEOUT = 500;
+  private static final MethodDescriptor TEST_RPC = RaftService.getDescriptor().findMethodByName("testRpc");
+  private static final TestRpcRequest REQUEST = TestRpcRequest.newBuilder()
+      .setData(ByteString.copyFromUtf8("ping")).build();
+  
+  @Test
+  public void testSingleConnectAndTimeout() throws Exception {
+    // never responds
+    StubServer server = new StubServer(-1);
+    RpcClient client = new RpcClient(createConfiguration(), server.getServerInfo());
+    try {
+      List<ListenableFuture<TestRpcResponse>> futures = new ArrayList<>();
+      for(int i = 0; i < 50; i++) {
+        futures.add(client.<TestRpcResponse>callAsync(RpcServer.DEFAULT_GROUP_ID, TEST_RPC, REQUEST));
+      }
+      for(ListenableFuture<TestRpcResponse> future: futures) {
+        assertFailure(future, RpcTimeoutException.class);
+      }
+      // calls made while connecting were queued behind one connect
+      assertEquals(1, server.getAccepted());
+      assertEquals(50, server.getRequests());
+      assertEquals(0, client.getPendingCallCount());
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+  
+  @Test
+  public void testLateResponse() throws Exception {
+    // responds to the first call after it timed out, then at once
+    StubServer server = new StubServer(RPC_TIMEOUT * 2);
+    RpcClient client = new RpcClient(createConfiguration(), server.getServerInfo());
+    try {
+      ListenableFuture<TestRpcResponse> late = client.callAsync(RpcServer.DEFAULT_GROUP_ID, TEST_RPC, REQUEST);
+      assertFailure(late, RpcTimeoutException.class);
+      assertTrue(server.awaitResponse());
+      
+      // the late response was dropped, the connection keeps serving calls
+      ListenableFuture<TestRpcResponse> next = client.callAsync(RpcServer.DEFAULT_GROUP_ID, TEST_RPC, REQUEST);
+      assertEquals(REQUEST.getData(), next.get(RPC_TIMEOUT, TimeUnit.MILLISECONDS).getResult());
+      assertEquals(0, client.getPendingCallCount());
+      assertEquals(1, server.getAccepted());
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+  
+  @Test
+  public void testConnectionClose() throws Exception {
+    // closes the connection on the first request
+    StubServer server = new StubServer(StubServer.CLOSE);
+    Configuration conf = createConfiguration();
+    conf.set("raft.rpc.timeout", "10000");
+    RpcClient client = new RpcClient(conf, server.getServerInfo());
+    try {
+      ListenableFuture<TestRpcResponse> future = client.callAsync(RpcServer.DEFAULT_GROUP_ID, TEST_RPC, REQUEST);
+      // failed by the close, long before the timeout
+      try {
+        future.get(RPC_TIMEOUT * 4, TimeUnit.MILLISECONDS);
+        fail("call should fail");
+      } catch(ExecutionException e) {
+        assertEquals(ServiceException.class, e.getCause().getClass());
+      }
+      assertEquals(0, client.getPendingCallCount());
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+  
+  @Test
+  public void testConnectFailure() throws Exception {
+    StubServer server = new StubServer(-1);
+    ServerInfo closed = server.getServerInfo();
+    server.close();
+    RpcClient client = new RpcClient(createConfiguration(), closed);
+    // not connected, close does nothing
+    client.close();
+    List<ListenableFuture<TestRpcResponse>> futures = new ArrayList<>();
+    for(int i = 0; i < 10; i++) {
+      futures.add(client.<TestRpcResponse>callAsync(RpcServer.DEFAULT_GROUP_ID, TEST_RPC, REQUEST));
+    }
+    for(ListenableFuture<TestRpcResponse> future: futures) {
+      assertFailure(future, ServiceException.class);
+    }
+    assertFalse(client.isConnected());
+  }
+  
+  @Test
+  public void testCallIdsPerClient() throws Exception {
+    StubServer server = new StubServer(-1);
+    RpcClient client = new RpcClient(createConfiguration(), server.getServerInfo());
+    int callId = client.generateCallId();
+    // another client does not reset, nor take, the call IDs of the first one
+    RpcClient other = new RpcClient(createConfiguration(), server.getServerInfo());
+    other.generateCallId();
+    assertEquals(callId, client.getCallId());
+    assertEquals(callId + 1, client.generateCallId());
+    server.close();
+  }
+  
+  private static Configuration createConfiguration() {
+    Configuration conf = CmRaftConfiguration.create();
+    conf.set("raft.rpc.timeout", String.valueOf(RPC_TIMEOUT));
+    return conf;
+  }
+  
+  private static void assertFailure(ListenableFuture<?> future, Class<?> type) throws Exception {
+    try {
+      future.get(RPC_TIMEOUT * 4, TimeUnit.MILLISECONDS);
+      fail("call should fail");
+    } catch(ExecutionException e) {
+      assertTrue(e.getCause().toString(), type.isInstance(e.getCause()));
+    }
+  }
+  
+  /**
+   * Socket server speaking protobuf headers, responding to testRpc with the request data.
+   */
+  static class StubServer implements Runnable {
+    static final int CLOSE = -2;
+    private final ServerSocket serverSocket;
+    /** delay of the first response, -1 to never respond, CLOSE to close the connection */
+    private final int firstDelay;
+    private final AtomicInteger accepted = new AtomicInteger(0);
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final CountDownLatch responded = new CountDownLatch(1);
+    private final List<Socket> sockets = new ArrayList<>();
+    
+    StubServer(int firstDelay) throws IOException {
+      this.firstDelay = firstDelay;
+      serverSocket = new ServerSocket(0);
+      Thread t = new Thread(this, "StubServer");
+      t.setDaemon(true);
+      t.start();
+    }
+    
+    ServerInfo getServerInfo() {
+      return new ServerInfo("localhost", serverSocket.getLocalPort());
+    }
+    
+    int getAccepted() {
+      return accepted.get();
+    }
+    
+    int getRequests() {
+      return requests.get();
+    }
+    
+    boolean awaitResponse() throws InterruptedException {
+      return responded.await(RPC_TIMEOUT * 4, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public void run() {
+      try {
+        while(true) {
+          final Socket socket = serverSocket.accept();
+          accepted.incrementAndGet();
+          synchronized(sockets) {
+            sockets.add(socket);
+          }
+          Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              serve(socket);
+            }
+          }, "StubServer-connection");
+          t.setDaemon(true);
+          t.start();
+        }
+      } catch(IOException e) {
+        // closed
+      }
+    }
+    
+    private void serve(Socket socket) {
+      try {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        boolean first = true;
+        while(true) {
+          byte[] frame = new byte[in.readInt()];
+          in.readFully(frame);
+          requests.incrementAndGet();
+          CodedInputStream cis = CodedInputStream.newInstance(frame);
+          RequestHeader header = RpcHeaderCodec.parseDelimited(cis, RequestHeader.PARSER);
+          TestRpcRequest request = RpcHeaderCodec.parseDelimited(cis, TestRpcRequest.PARSER);
+          if(first && firstDelay == CLOSE) {
+            socket.close();
+            return;
+          }
+          if(first && firstDelay == -1) {
+            continue;
+          }
+          if(first) {
+            Thread.sleep(firstDelay);
+          }
+          first = false;
+          ResponseHeader responseHeader = ResponseHeader.newBuilder().setId(header.getId())
+              .setResponseName(TEST_RPC.getName()).setMethodId(header.getMethodId()).build();
+          TestRpcResponse response = TestRpcResponse.newBuilder().setResult(request.getData()).build();
+          ByteBuf buf = RpcHeaderCodec.encodeFrame(UnpooledByteBufAllocator.DEFAULT, responseHeader, response);
+          byte[] bytes = new byte[buf.readableBytes()];
+          buf.readBytes(bytes);
+          buf.release();
+          out.write(bytes);
+          out.flush();
+          responded.countDown();
+        }
+      } catch(IOException | InterruptedException e) {
+        // connection closed
+      }
+    }
+    
+    void close() throws IOException {
+      serverSocket.close();
+      synchronized(sockets) {
+        for(Socket socket: sockets) {
+          socket.close();
+        }
+      }
+    }
+  }
 
   public static void main(String[] args) throws Exception {
     //RpcServer server = new RpcServer(CmRaftConfiguration.create(), RaftRpcService.create());
@@ -38,7 +289,7 @@ public class TestRpcClient {
     //int port = ServerInfo.parseFromString(conf.getString("raft.server.local")).getPort();
       
       for(int i =0; i < 1; i++) {
-        final RpcClient client = new RpcClient(CmRaftConfiguration.create(), new ServerInfo( "localhost", 12888));
+        final RpcClient client = new RpcClient(conf, new ServerInfo( "localhost", 12888));
   
         //client.sendRequest(1024*1024);
        
@@ -55,5 +306,3 @@ public class TestRpcClient {
   }
 
 }
-
-
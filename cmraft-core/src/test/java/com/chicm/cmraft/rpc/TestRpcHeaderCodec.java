@@ -0,0 +1,259 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import static org.junit.Assert.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.chicm.cmraft.common.CmRaftConfiguration;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RequestHeader;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcResponse;
+import com.google.protobuf.BlockingService;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+public class TestRpcHeaderCodec {
+  private static final MethodDescriptor TEST_RPC = 
+      RaftService.getDescriptor().findMethodByName("testRpc");
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    TestRpcRequest request = TestRpcRequest.newBuilder()
+        .setData(ByteString.copyFromUtf8("hello")).build();
+    RpcCall call = new RpcCall(Integer.MAX_VALUE, null, request, TEST_RPC);
+    call.setGroupId(300);
+    
+    ByteBuf buf = encodeFrame(call);
+    assertEquals(RpcHeaderCodec.getEncodedSize(call), buf.readableBytes());
+    assertTrue(RpcHeaderCodec.isCompact(buf));
+    
+    RpcCall decoded = RpcHeaderCodec.decode(buf, true);
+    assertEquals(Integer.MAX_VALUE, decoded.getCallId());
+    assertEquals(300, decoded.getGroupId());
+    assertSame(TEST_RPC, decoded.getMd());
+    assertFalse(decoded.isError());
+    assertEquals(request, decoded.getMessage());
+    
+    // default group and empty response
+    call = new RpcCall(1, null, TestRpcResponse.getDefaultInstance(), TEST_RPC);
+    buf = encodeFrame(call);
+    assertEquals(7, buf.readableBytes());
+    decoded = RpcHeaderCodec.decode(buf, false);
+    assertEquals(RpcServer.DEFAULT_GROUP_ID, decoded.getGroupId());
+    assertEquals(TestRpcResponse.getDefaultInstance(), decoded.getMessage());
+    
+    // error responses have no message
+    call.setError(true);
+    buf = encodeFrame(call);
+    decoded = RpcHeaderCodec.decode(buf, false);
+    assertTrue(decoded.isError());
+    assertFalse(decoded.isBusy());
+    assertNull(decoded.getMessage());
+    
+    call.setBusy(true);
+    decoded = RpcHeaderCodec.decode(encodeFrame(call), false);
+    assertTrue(decoded.isError());
+    assertTrue(decoded.isBusy());
+  }
+  
+  @Test
+  public void testProtobufHeaderFrame() throws Exception {
+    RequestHeader header = RequestHeader.newBuilder().setId(Integer.MAX_VALUE)
+        .setRequestName(TEST_RPC.getName()).setMethodId(TEST_RPC.getIndex())
+        .setGroupId(Integer.MAX_VALUE).setCompactHeader(true).build();
+    TestRpcRequest request = TestRpcRequest.newBuilder()
+        .setData(ByteString.copyFromUtf8("hello")).build();
+    ByteBuf frame = RpcHeaderCodec.encodeFrame(UnpooledByteBufAllocator.DEFAULT, header, request);
+    assertEquals(frame.readableBytes() - RpcHeaderCodec.LENGTH_FIELD_SIZE, frame.readInt());
+    assertFalse(RpcHeaderCodec.isCompact(frame));
+    
+    // same bytes as writing length delimited messages to a stream
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    header.writeDelimitedTo(expected);
+    request.writeDelimitedTo(expected);
+    byte[] actual = new byte[frame.readableBytes()];
+    frame.readBytes(actual);
+    assertArrayEquals(expected.toByteArray(), actual);
+  }
+  
+  @Test
+  public void testProtobufHeaderError() throws Exception {
+    EmbeddedChannel server = new EmbeddedChannel(new ServerChannelHandler(
+      Collections.<Integer, BlockingService>emptyMap(), new AtomicLong(), CmRaftConfiguration.create()));
+    final List<RpcCall> responses = new ArrayList<>();
+    EmbeddedChannel client = new EmbeddedChannel(new ClientChannelHandler(new RpcClientEventListener() {
+      @Override
+      public void onRpcResponse(RpcCall call) {
+        responses.add(call);
+      }
+      @Override
+      public void channelClosed() {
+      }
+    }));
+    
+    // a client not asking for compact headers calls an unknown group
+    RequestHeader header = RequestHeader.newBuilder().setId(5)
+        .setRequestName(TEST_RPC.getName()).setMethodId(TEST_RPC.getIndex()).setGroupId(99).build();
+    TestRpcRequest request = TestRpcRequest.newBuilder().setData(ByteString.copyFromUtf8("hello")).build();
+    server.writeInbound(RpcHeaderCodec.encodeFrame(UnpooledByteBufAllocator.DEFAULT, header, request));
+    server.runPendingTasks();
+    ByteBuf response = (ByteBuf) server.readOutbound();
+    assertFalse(RpcHeaderCodec.isCompact(response));
+    client.writeInbound(response);
+    assertEquals(1, responses.size());
+    assertEquals(5, responses.get(0).getCallId());
+    assertSame(TEST_RPC, responses.get(0).getMd());
+    assertTrue(responses.get(0).isError());
+    assertFalse(responses.get(0).isBusy());
+    assertNull(responses.get(0).getMessage());
+    
+    RpcCall busy = new RpcCall(6, null, null, TEST_RPC);
+    busy.setError(true);
+    busy.setBusy(true);
+    server.writeOutbound(busy);
+    client.writeInbound(server.readOutbound());
+    assertEquals(2, responses.size());
+    assertEquals(6, responses.get(1).getCallId());
+    assertTrue(responses.get(1).isError());
+    assertTrue(responses.get(1).isBusy());
+    assertFalse(server.finish());
+    assertFalse(client.finish());
+  }
+  
+  @Test
+  public void testUndecodableRequests() throws Exception {
+    final List<RpcCall> responses = new ArrayList<>();
+    EmbeddedChannel client = new EmbeddedChannel(new ClientChannelHandler(new RpcClientEventListener() {
+      @Override
+      public void onRpcResponse(RpcCall call) {
+        responses.add(call);
+      }
+      @Override
+      public void channelClosed() {
+      }
+    }));
+    
+    // unknown method ID, and a message cut short, in compact headers
+    EmbeddedChannel server = newServerChannel();
+    ByteBuf unknown = UnpooledByteBufAllocator.DEFAULT.buffer();
+    unknown.writeInt(7).writeByte(RpcHeaderCodec.MAGIC).writeByte(0).writeInt(7).writeByte(100);
+    ByteBuf truncated = UnpooledByteBufAllocator.DEFAULT.buffer();
+    truncated.writeInt(10).writeByte(RpcHeaderCodec.MAGIC).writeByte(0).writeInt(8)
+      .writeByte(TEST_RPC.getIndex()).writeByte(0x0A).writeByte(100).writeByte(1);
+    // too short to hold a call ID, dropped
+    ByteBuf tooShort = UnpooledByteBufAllocator.DEFAULT.buffer();
+    tooShort.writeInt(2).writeByte(RpcHeaderCodec.MAGIC).writeByte(0);
+    server.writeInbound(unknown);
+    server.writeInbound(truncated);
+    server.writeInbound(tooShort);
+    ByteBuf response;
+    while((response = (ByteBuf) server.readOutbound()) != null) {
+      assertTrue(RpcHeaderCodec.isCompact(response.slice(RpcHeaderCodec.LENGTH_FIELD_SIZE, 1)));
+      client.writeInbound(response);
+    }
+    assertEquals(2, responses.size());
+    assertEquals(7, responses.get(0).getCallId());
+    assertNull(responses.get(0).getMd());
+    assertTrue(responses.get(0).isError());
+    assertEquals(8, responses.get(1).getCallId());
+    assertSame(TEST_RPC, responses.get(1).getMd());
+    assertTrue(responses.get(1).isError());
+    assertFalse(responses.get(1).isBusy());
+    assertFalse(server.finish());
+    
+    // unknown method in a protobuf header
+    server = newServerChannel();
+    RequestHeader header = RequestHeader.newBuilder().setId(9).setRequestName("unknownRpc")
+        .setMethodId(100).build();
+    server.writeInbound(RpcHeaderCodec.encodeFrame(UnpooledByteBufAllocator.DEFAULT, header, 
+      TestRpcRequest.getDefaultInstance()));
+    response = (ByteBuf) server.readOutbound();
+    assertFalse(RpcHeaderCodec.isCompact(response.slice(RpcHeaderCodec.LENGTH_FIELD_SIZE, 1)));
+    client.writeInbound(response);
+    assertEquals(3, responses.size());
+    assertEquals(9, responses.get(2).getCallId());
+    assertNull(responses.get(2).getMd());
+    assertTrue(responses.get(2).isError());
+    assertFalse(server.finish());
+    assertFalse(client.finish());
+  }
+  
+  private static EmbeddedChannel newServerChannel() {
+    return new EmbeddedChannel(new ServerChannelHandler(
+      Collections.<Integer, BlockingService>emptyMap(), new AtomicLong(), CmRaftConfiguration.create()));
+  }
+  
+  @Test
+  public void testSliceDecode() throws Exception {
+    byte[] data = new byte[64 * 1024];
+    data[0] = 1;
+    TestRpcRequest request = TestRpcRequest.newBuilder().setData(ByteString.copyFrom(data)).build();
+    ByteBuf encoded = RpcHeaderCodec.encodeFrame(PooledByteBufAllocator.DEFAULT, 
+      new RpcCall(1, null, request, TEST_RPC));
+    assertTrue(encoded.isDirect());
+    
+    // heap frames are parsed from their array, direct frames through a stream
+    ByteBuf heap = PooledByteBufAllocator.DEFAULT.heapBuffer(encoded.readableBytes());
+    heap.writeBytes(encoded, encoded.readerIndex(), encoded.readableBytes());
+    for(ByteBuf inbound: new ByteBuf[] {encoded, heap}) {
+      EmbeddedChannel channel = new EmbeddedChannel(new RpcFrameDecoder(Integer.MAX_VALUE));
+      assertTrue(channel.writeInbound(inbound));
+      ByteBuf frame = (ByteBuf) channel.readInbound();
+      int dataIndex = frame.capacity() - data.length;
+      // a slice of the inbound buffer, not a copy
+      frame.setByte(dataIndex, 2);
+      assertEquals(2, inbound.getByte(RpcHeaderCodec.LENGTH_FIELD_SIZE + dataIndex));
+      assertEquals(1, inbound.refCnt());
+      
+      RpcCall decoded = RpcHeaderCodec.decode(frame, true);
+      ByteString decodedData = ((TestRpcRequest)decoded.getMessage()).getData();
+      assertEquals(data.length, decodedData.size());
+      assertEquals(2, decodedData.byteAt(0));
+      
+      // decoded bytes are copies, they outlive the pooled frame
+      frame.setByte(dataIndex, 3);
+      frame.release();
+      assertEquals(0, inbound.refCnt());
+      assertEquals(2, decodedData.byteAt(0));
+      assertFalse(channel.finish());
+    }
+  }
+  
+  // strips the frame length, as done by LengthFieldBasedFrameDecoder
+  private static ByteBuf encodeFrame(RpcCall call) throws Exception {
+    ByteBuf frame = RpcHeaderCodec.encodeFrame(UnpooledByteBufAllocator.DEFAULT, call);
+    assertEquals(frame.readableBytes() - RpcHeaderCodec.LENGTH_FIELD_SIZE, frame.readInt());
+    return frame;
+  }
+}
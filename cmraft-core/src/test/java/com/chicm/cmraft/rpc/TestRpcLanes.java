@@ -0,0 +1,94 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import com.chicm.cmraft.protobuf.generated.RaftProtos.AppendEntriesRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.CollectVoteRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.GetRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftLogEntry;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.RaftService;
+import com.chicm.cmraft.rpc.RpcLanes.Lane;
+import com.google.protobuf.Message;
+
+public class TestRpcLanes {
+  
+  @Test
+  public void testGetLane() {
+    assertEquals(Lane.CONTROL, getLane("collectVote", CollectVoteRequest.getDefaultInstance()));
+    assertEquals(Lane.CLIENT, getLane("get", GetRequest.getDefaultInstance()));
+    
+    // heartbeats of a single group are appendEntries without entries
+    assertEquals(Lane.CONTROL, getLane("appendEntries", AppendEntriesRequest.getDefaultInstance()));
+    AppendEntriesRequest replication = AppendEntriesRequest.newBuilder()
+        .addEntries(RaftLogEntry.getDefaultInstance()).buildPartial();
+    assertEquals(Lane.REPLICATION, getLane("appendEntries", replication));
+  }
+  
+  @Test
+  public void testAdmission() throws Exception {
+    RpcLanes lanes = new RpcLanes(new int[] {1, 1, 1}, new int[] {1, 1, 1});
+    Executor[] executors = lanes.newChannelExecutors();
+    RpcCall call = new RpcCall(1, null, GetRequest.getDefaultInstance(), 
+      RaftService.getDescriptor().findMethodByName("get"));
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    
+    assertTrue(lanes.execute(executors, call, new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch(InterruptedException e) {
+        }
+      }
+    }));
+    started.await();
+    // client lane full, other lanes are not affected
+    assertFalse(lanes.execute(executors, call, new Runnable() {
+      @Override
+      public void run() {
+        fail("rejected call must not run");
+      }
+    }));
+    assertEquals(1, lanes.getQueueDepth(Lane.CLIENT));
+    assertEquals(1, lanes.getRejectedCount(Lane.CLIENT));
+    assertEquals(0, lanes.getRejectedCount(Lane.CONTROL));
+    
+    release.countDown();
+    for(int i = 0; i < 100 && lanes.getQueueDepth(Lane.CLIENT) > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, lanes.getQueueDepth(Lane.CLIENT));
+  }
+  
+  private static Lane getLane(String method, Message request) {
+    return RpcLanes.getLane(new RpcCall(1, null, request, 
+      RaftService.getDescriptor().findMethodByName(method)));
+  }
+}
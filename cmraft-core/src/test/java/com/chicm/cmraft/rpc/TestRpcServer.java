@@ -20,12 +20,19 @@
 
 package com.chicm.cmraft.rpc;
 
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
 import com.chicm.cmraft.common.CmRaftConfiguration;
+import com.chicm.cmraft.common.Configuration;
 import com.chicm.cmraft.common.ServerInfo;
 import com.chicm.cmraft.core.RaftRpcService;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcRequest;
+import com.chicm.cmraft.protobuf.generated.RaftProtos.TestRpcResponse;
+import com.google.protobuf.ByteString;
 
 public class TestRpcServer {
 
@@ -54,6 +61,28 @@ public class TestRpcServer {
     RpcServer server = new RpcServer(CmRaftConfiguration.create(), RaftRpcService.create(), new ServerInfo("localhost", 12888));
     //server.startRpcServer();
   }
+  
+  @Test
+  public void testGroupRouting() throws Exception {
+    Configuration conf = CmRaftConfiguration.create();
+    RpcServer server = new RpcServer(conf, new ServerInfo("localhost", 12887));
+    server.registerService(7, RaftRpcService.create().getService());
+    server.startRpcServer();
+    
+    try {
+      server.registerService(7, RaftRpcService.create().getService());
+      fail("registering a group twice should fail");
+    } catch(IllegalStateException e) {
+    }
+    
+    RpcClient client = new RpcClient(conf, server.getServerInfo());
+    TestRpcRequest.Builder builder = TestRpcRequest.newBuilder();
+    builder.setData(ByteString.copyFrom(new byte[10]));
+    TestRpcResponse response = client.getStub(7).testRpc(null, builder.build());
+    assertNotNull(response);
+    assertTrue(client.getStub(7) == client.getStub(7));
+    client.close();
+  }
 }
 
 
@@ -0,0 +1,79 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.rpc;
+
+import static org.junit.Assert.*;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Test;
+
+public class TestWriteCoalescer {
+  
+  @Test
+  public void testCoalescing() throws Exception {
+    FlushCounter counter = new FlushCounter();
+    EmbeddedChannel channel = new EmbeddedChannel(counter, new ChannelInboundHandlerAdapter());
+    ChannelHandlerContext ctx = channel.pipeline().lastContext();
+    WriteCoalescer writer = new WriteCoalescer(ctx, new WriteCoalescer.Policy(3, 0));
+    
+    // flushed at the end of the event loop tick
+    writer.write("1");
+    ChannelFuture f = writer.write("2");
+    assertEquals(0, counter.flushes);
+    assertNull(channel.readOutbound());
+    channel.runPendingTasks();
+    assertEquals(1, counter.flushes);
+    assertTrue(f.isSuccess());
+    assertEquals("1", channel.readOutbound());
+    assertEquals("2", channel.readOutbound());
+    
+    // flushed at once with max messages pending
+    writer.write("3");
+    writer.write("4");
+    writer.write("5");
+    assertEquals(2, counter.flushes);
+    channel.runPendingTasks();
+    assertEquals(2, counter.flushes);
+    
+    // no coalescing
+    writer = new WriteCoalescer(ctx, new WriteCoalescer.Policy(1, 0));
+    writer.write("6");
+    assertEquals(3, counter.flushes);
+    for(int i = 3; i <= 6; i++) {
+      assertEquals(String.valueOf(i), channel.readOutbound());
+    }
+    assertFalse(channel.finish());
+  }
+  
+  static class FlushCounter extends ChannelOutboundHandlerAdapter {
+    int flushes = 0;
+    
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+      flushes++;
+      super.flush(ctx);
+    }
+  }
+}
@@ -28,6 +28,8 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import com.chicm.cmraft.rpc.RpcTimeoutException;
+
 public class TestBlockingHashMap {
   public final static int testnumber = 100000;
   private static BlockingHashMap<Integer, String> map = new BlockingHashMap<>();
@@ -114,4 +116,22 @@ public class TestBlockingHashMap {
     
   }
   
+  @Test
+  public void testTimeout() throws Exception {
+    BlockingHashMap<Integer, String> timeoutMap = new BlockingHashMap<>();
+    for(int i = 0; i < 100; i++) {
+      try {
+        timeoutMap.take(i, 1);
+        fail("take must time out");
+      } catch(RpcTimeoutException e) {
+      }
+    }
+    // no lock left behind by timed out takers
+    assertEquals(0, timeoutMap.getLockCount());
+    
+    // late values are removed by their owners
+    timeoutMap.put(1, "late");
+    assertEquals("late", timeoutMap.remove(1));
+    assertTrue(timeoutMap.isEmpty());
+  }
 }
@@ -0,0 +1,56 @@
+/**
+* Copyright 2014 The CmRaft Project
+*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at:
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+* WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+* License for the specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.chicm.cmraft.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestStripedIntObjectMap {
+  
+  @Test
+  public void testPutRemove() {
+    StripedIntObjectMap<String> map = new StripedIntObjectMap<>(4);
+    for(int i = -1000; i < 1000; i++) {
+      assertNull(map.put(i, "V" + i));
+    }
+    assertEquals(2000, map.size());
+    assertEquals(2000, map.values().size());
+    assertEquals("V-5", map.get(-5));
+    
+    assertEquals("V-5", map.putIfAbsent(-5, "other"));
+    assertEquals("V-5", map.get(-5));
+    assertNull(map.putIfAbsent(1000, "V1000"));
+    assertEquals("V1000", map.remove(1000));
+    
+    String value = map.get(7);
+    assertFalse(map.remove(7, "other"));
+    assertTrue(map.remove(7, value));
+    assertFalse(map.remove(7, value));
+    assertNull(map.get(7));
+    
+    for(int i = -1000; i < 1000; i++) {
+      map.remove(i);
+    }
+    assertEquals(0, map.size());
+    assertTrue(map.values().isEmpty());
+  }
+}